@@ -60,6 +60,8 @@ import net.minecraft.world.entity.EntityLookup;
 import net.minecraft.world.level.storage.LevelStorage;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.json.JSONArray;
+import org.json.JSONObject;
 import org.xml.sax.SAXException;
 
 import javax.xml.stream.XMLStreamException;
@@ -102,6 +104,10 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
     public Map<String, MobEntity> controllableEntities = new HashMap();
 
     private MissionDiagnostics missionEndedData = new MissionDiagnostics();
+    // Video hooks of the running mission, for the stats query on the mission control thread.
+    private volatile List<VideoHook> activeVideoHooks = Collections.emptyList();
+    // The running mission's observation and reward channels, for the same stats query.
+    private volatile List<TCPSocketChannel> activeAgentChannels = Collections.emptyList();
     private IScreenHelper screenHelper = new ScreenHelper();
     protected IMalmoModClient inputController;
     private static final String mod_version_xml = "0.1.0";
@@ -561,13 +567,15 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
                 // 2: MALMO_CANCEL_REQUEST
                 // 3: MALMO_FIND_SERVER<experiment_id>
                 // 4: MALMO_KILL_CLIENT
-                // 5: MissionInit
+                // 5: MALMO_VIDEO_STATS
+                // 6: MissionInit
 
                 String reservePrefixGeneral = "MALMO_REQUEST_CLIENT:";
                 String reservePrefix = reservePrefixGeneral + mod_version_xml + ":";
                 String findServerPrefix = "MALMO_FIND_SERVER";
                 String cancelRequestCommand = "MALMO_CANCEL_REQUEST";
                 String killClientCommand = "MALMO_KILL_CLIENT";
+                String videoStatsCommand = "MALMO_VIDEO_STATS";
                 
                 if (command.startsWith(reservePrefix))
                 {
@@ -629,6 +637,29 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
                         reply("MALMONOSERVER", dos);
                     }
                 }
+                else if (command.equals(videoStatsCommand))
+                {
+                    // Live video pipeline statistics for the mission in progress, one entry per producer,
+                    // and the state of the command queue.
+                    JSONArray stats = new JSONArray();
+                    for (VideoHook hook : ClientStateMachine.this.activeVideoHooks)
+                        stats.put(hook.getStats());
+                    JSONObject jo = new JSONObject().put("video", stats);
+                    TCPInputPoller commandPoller = ClientStateMachine.this.controlInputPoller;
+                    if (commandPoller != null)
+                    {
+                        JSONObject commandStats = new JSONObject();
+                        commandStats.put("queueDepth", commandPoller.getQueueDepth());
+                        commandStats.put("highWaterMark", commandPoller.getHighWaterMark());
+                        commandStats.put("dropped", commandPoller.getCommandsDropped());
+                        jo.put("commands", commandStats);
+                    }
+                    JSONArray channels = new JSONArray();
+                    for (TCPSocketChannel channel : ClientStateMachine.this.activeAgentChannels)
+                        channels.put(channel.getStats());
+                    jo.put("channels", channels);
+                    reply(jo.toString(), dos);
+                }
                 else if (command.equals(killClientCommand))
                 {
                     // Kill switch provided in case AI takes over the world...
@@ -1019,6 +1050,9 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
                     ClientStateMachine.this.controlInputPoller = new TCPInputPoller(AddressHelper.MIN_FREE_PORT, AddressHelper.MAX_FREE_PORT, true, "com");
                 else
                     ClientStateMachine.this.controlInputPoller = new TCPInputPoller(requestedPort, "com");
+                // Unbounded unless asked otherwise, eg -Dvereya.commands.capacity=256 -Dvereya.commands.overflow=DROP_NEWEST
+                ClientStateMachine.this.controlInputPoller.setCapacity(Integer.getInteger("vereya.commands.capacity", 0),
+                        getCommandOverflowPolicy());
                 ClientStateMachine.this.controlInputPoller.start();
             }
             // Make sure the cac is up-to-date:
@@ -1667,9 +1701,19 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
         private String quitCode = "";
         private TCPSocketChannel observationSocket = null;
         private TCPSocketChannel rewardSocket = null;
+        // The one connection all of the above share, for agents that asked for agentTransport="multiplexed".
+        private MultiplexedConnection multiplexer = null;
+        // Writes the mission to disk, for missions that ask for a MissionRecording.
+        private MissionRecorder recorder = null;
+        // Encodes observations, and keeps their key dictionary, for agents that asked for CBOR.
+        private ObservationWriter observationWriter = null;
+        // The connection the observation writer's committed definitions went out on.
+        private int observationConnection = 0;
         private long lastPingSent = 0;
         private long pingFrequencyMs = 1000;
         private HashMap<String, Float> actionStatus = new HashMap<>();
+        // Reused every tick by checkForControlCommand.
+        private final List<String> pendingCommands = new ArrayList<String>();
 
         private long frameTimestamp = 0;
 
@@ -1721,13 +1765,17 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
             if (currentMissionBehaviour().rewardProducer != null)
                 currentMissionBehaviour().rewardProducer.prepare(currentMissionInit());
 
+            openRecorder();
             for (IVideoProducer videoProducer : currentMissionBehaviour().videoProducers)
             {
                 VideoHook hook = new VideoHook();
                 this.videoHooks.add(hook);
                 frameProduced();
-                hook.start(currentMissionInit(), videoProducer, this);
+                hook.start(currentMissionInit(), videoProducer, this, this.recorder, this.multiplexer);
             }
+            if (this.recorder != null)
+                this.recorder.start();
+            ClientStateMachine.this.activeVideoHooks = Collections.unmodifiableList(new ArrayList<>(this.videoHooks));
 
             //Setup status for ContinuousMovementCommands
             initActionStatus();
@@ -1761,8 +1809,20 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
             // Close our communication channels:
             closeSockets();
 
+            ClientStateMachine.this.activeVideoHooks = Collections.emptyList();
             for (VideoHook hook : this.videoHooks)
                 hook.stop(ClientStateMachine.this.missionEndedData);
+            // Only once the video senders have stopped writing to it.
+            if (this.multiplexer != null)
+            {
+                this.multiplexer.close();
+                this.multiplexer = null;
+            }
+            if (this.recorder != null)
+            {
+                this.recorder.stop(ClientStateMachine.this.missionEndedData);
+                this.recorder = null;
+            }
 
             // Return Minecraft speed to "normal":
             // TimeHelper.setMinecraftClientClockSpeed(20);
@@ -1939,16 +1999,99 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
         private void openSockets()
         {
             ClientAgentConnection cac = currentMissionInit().getClientAgentConnection();
-            this.observationSocket = new TCPSocketChannel(cac.getAgentIPAddress(), cac.getAgentObservationsPort(), "obs");
-            this.rewardSocket = new TCPSocketChannel(cac.getAgentIPAddress(), cac.getAgentRewardsPort(), "rew");
+            if (cac.getAgentTransport() == AgentTransport.MULTIPLEXED)
+            {
+                this.multiplexer = new MultiplexedConnection(cac.getAgentIPAddress(), cac.getAgentObservationsPort(), "mux",
+                        currentMissionInit().getExperimentUID(), currentMissionInit().getClientRole());
+                this.multiplexer.setCommandPoller(ClientStateMachine.this.controlInputPoller);
+                this.observationSocket = this.multiplexer.openChannel("obs", MultiplexedConnection.PRIORITY_OBSERVATIONS, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+                this.rewardSocket = this.multiplexer.openChannel("rew", MultiplexedConnection.PRIORITY_REWARDS, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+            }
+            else
+            {
+                this.multiplexer = null;
+                // Queued rather than blocking, so that an agent which stops reading can't stall the client tick.
+                this.observationSocket = new TCPSocketChannel(cac.getAgentIPAddress(), cac.getAgentObservationsPort(), "obs", TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+                this.rewardSocket = new TCPSocketChannel(cac.getAgentIPAddress(), cac.getAgentRewardsPort(), "rew", TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+            }
+            ClientStateMachine.this.activeAgentChannels = Collections.unmodifiableList(Arrays.asList(this.observationSocket, this.rewardSocket));
+            // A new connection starts with an empty dictionary.
+            this.observationWriter = cac.getObservationFormat() == ObservationFormat.CBOR ? new ObservationWriter() : null;
+            this.observationConnection = connectionCount();
+        }
+
+        /** Goes up whenever the multiplexed connection is made again; 0 for separate connections, which aren't. */
+        private int connectionCount()
+        {
+            return this.multiplexer != null ? this.multiplexer.getConnectionCount() : 0;
         }
 
         private void closeSockets()
         {
+            ClientStateMachine.this.activeAgentChannels = Collections.emptyList();
             this.observationSocket.close();
             this.rewardSocket.close();
         }
 
+        private void openRecorder()
+        {
+            this.recorder = null;
+            ModSettings modSettings = currentMissionInit().getMission().getModSettings();
+            if (modSettings == null || modSettings.getMissionRecording() == null)
+                return;
+            try
+            {
+                this.recorder = new MissionRecorder(currentMissionInit(), modSettings.getMissionRecording());
+            }
+            catch (IOException e)
+            {
+                LOGGER.error("Failed to start recording the mission - continuing without", e);
+                ClientStateMachine.this.getScreenHelper().addFragment("ERROR: Could not record mission", ScreenHelper.TextCategory.TXT_CLIENT_WARNING, 5000);
+            }
+        }
+
+        /** Gather and send the observations as CBOR, for agents that asked for that format. */
+        private void sendBinaryObservations(ClientAgentConnection cac)
+        {
+            ObservationWriter out = this.observationWriter;
+            if (currentMissionBehaviour() == null || currentMissionBehaviour().observationProducer == null)
+                return;
+            Profiler profiler = MinecraftClient.getInstance().getProfiler();
+            profiler.push("writeObservations");
+            JsonObject json = new JsonObject();
+            json.add(VereyaModClient.CONTROLLABLE, new JsonObject());
+            int connection = connectionCount();
+            if (connection != this.observationConnection) {
+                // Reconnected: the agent has none of the definitions.
+                out.redefine();
+                this.observationConnection = connection;
+            }
+            out.begin();
+            currentMissionBehaviour().observationProducer.writeObservations(out, json, currentMissionInit());
+            VereyaModClient.InputType inptype = ClientStateMachine.this.inputController.getInputType();
+            json.add("input_type", new JsonPrimitive(inptype.name()));
+            json.add("isPaused", new JsonPrimitive(MinecraftClient.getInstance().isPaused()));
+            json.add("actionStatus", actionStatusToJSON());
+            out.writeJson(json);
+            out.finish();
+            profiler.pop();
+            if (this.recorder != null)
+                this.recorder.recordObservation(out.getBuffer(), out.getLength());
+            if (cac == null || AddressHelper.getMissionControlPort() == 0)
+                return;
+            if (this.observationSocket.offerTCPBytes(out.getBuffer(), 0, out.getLength()) == TCPSocketChannel.SendResult.QUEUED) {
+                // The agent will see any ids this message defined, so later ones needn't repeat them -
+                // unless it went out on a connection made since it was written.
+                if (connectionCount() == connection)
+                    out.commit();
+                this.failedTCPObservationSendCount = 0;
+            } else {
+                this.failedTCPObservationSendCount++;
+                TCPUtils.Log(Level.WARNING, "Observation signal delivery failure count at " + this.failedTCPObservationSendCount);
+                ClientStateMachine.this.getScreenHelper().addFragment("ERROR: Agent missed observation signal", ScreenHelper.TextCategory.TXT_CLIENT_WARNING, 5000);
+            }
+        }
+
         private void sendData()
         {
             TCPUtils.LogSection ls = new TCPUtils.LogSection("Sending data");
@@ -1956,7 +2099,12 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
             // Create the observation data:
             String data = "";
            // Minecraft.getMinecraft().mcProfiler.startSection("malmoGatherObservationJSON");
-            if (currentMissionBehaviour() != null && currentMissionBehaviour().observationProducer != null)
+            if (this.observationWriter != null)
+            {
+                // Sent from there; data stays empty so the JSON path below does nothing.
+                sendBinaryObservations(currentMissionInit().getClientAgentConnection());
+            }
+            else if (currentMissionBehaviour() != null && currentMissionBehaviour().observationProducer != null)
             {
                 JsonObject json = new JsonObject();
                 json.add(VereyaModClient.CONTROLLABLE, new JsonObject());
@@ -1970,6 +2118,8 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
                 data = json.toString();
                 profiler.pop();
             }
+            if (this.recorder != null && data.length() > 2)
+                this.recorder.recordObservation(data);
             // Minecraft.getMinecraft().mcProfiler.endStartSection("malmoSendTCPObservations");
 
             ClientAgentConnection cac = currentMissionInit().getClientAgentConnection();
@@ -1980,7 +2130,8 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
 
                 } else {
                     // Bung the whole shebang off via TCP:
-                    if (this.observationSocket.sendTCPString(data)) {
+                    // Queued: a full queue means the agent has stopped keeping up, which counts as a failure.
+                    if (this.observationSocket.offerTCPString(data) == TCPSocketChannel.SendResult.QUEUED) {
                         this.failedTCPObservationSendCount = 0;
                     } else {
                         // Failed to send observation message.
@@ -2000,6 +2151,8 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
                 if (!reward.isEmpty())
                 {
                     String strReward = reward.getAsSimpleString();
+                    if (this.recorder != null)
+                        this.recorder.recordReward(strReward);
 //                    Minecraft.getMinecraft().mcProfiler.startSection("malmoSendTCPReward");
 
 //                    ScoreHelper.logReward(strReward);
@@ -2010,7 +2163,7 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
 //                            envServer.addRewards(reward.getRewardTotal());
 //                        }
                     } else {
-                        if (this.rewardSocket.sendTCPString(strReward)) {
+                        if (this.rewardSocket.offerTCPString(strReward) == TCPSocketChannel.SendResult.QUEUED) {
                             this.failedTCPRewardSendCount = 0; // Reset the count of consecutive TCP failures.
                         } else {
                             // Failed to send TCP message - probably because the agent has quit under our feet.
@@ -2027,8 +2180,8 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
             int maxFailedTCPSendCount = 0;
             for (VideoHook hook : this.videoHooks)
             {
-                if (hook.failedTCPSendCount > maxFailedTCPSendCount)
-                    maxFailedTCPSendCount = hook.failedTCPSendCount;
+                if (hook.getFailedTCPSendCount() > maxFailedTCPSendCount)
+                    maxFailedTCPSendCount = hook.getFailedTCPSendCount();
             }
             if (maxFailedTCPSendCount > 0)
                 TCPUtils.Log(Level.WARNING, "Video signal failure count at " + maxFailedTCPSendCount);
@@ -2056,36 +2209,44 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
         private void checkForControlCommand()
         {
             // Minecraft.getMinecraft().mcProfiler.endStartSection("malmoCommandHandling");
-            String command;
             boolean quitHandlerFired = false;
             IWantToQuit quitHandler = (currentMissionBehaviour() != null) ? currentMissionBehaviour().quitProducer : null;
-            command = ClientStateMachine.this.controlInputPoller.getCommand();
-            while (command != null && command.length() > 0 && !quitHandlerFired)
+            // Everything that has arrived since the last tick, in one go.
+            List<String> commands = this.pendingCommands;
+            commands.clear();
+            ClientStateMachine.this.controlInputPoller.drainTo(commands);
+            for (int i = 0; i < commands.size() && !quitHandlerFired; i++)
             {
+                String command = commands.get(i);
+                if (command == null || command.length() == 0)
+                    continue;
                 // TCPUtils.Log(Level.INFO, "Act on " + command);
                 // Pass the command to our various control overrides:
                 // Minecraft.getMinecraft().mcProfiler.startSection("malmoCommandAct");
-                if (command != null) LOGGER.debug("Command " + command);
+                LOGGER.debug("Command " + command);
                 boolean handled = handleCommand(command);
+                // Only commands that were acted on are part of the recorded trajectory.
+                if (handled && this.recorder != null)
+                    this.recorder.recordCommand(command);
                 //use this info for sending data into python API
                 if (handled) updateActionStatus(command);
                 //trigger the reward for sending a command
                 if (handled && currentMissionBehaviour().rewardProducer != null){
                     currentMissionBehaviour().rewardProducer.trigger(CommandBase.class);
                 }
-                if ((command != null) && !handled){
+                if (!handled){
                     LOGGER.warn("Command " + command + " not handled");
                 }
-                // Get the next command:
-                command = ClientStateMachine.this.controlInputPoller.getCommand();
                 // If there *is* another command (commands came in faster than one per client tick),
                 // then we should check our quit producer before deciding whether to execute it.
+                // Anything left once it fires is dropped along with the mission.
                 // Minecraft.getMinecraft().mcProfiler.endStartSection("malmoCommandRecheckQuitHandlers");
-                if (command != null && command.length() > 0 && handled)
+                if (i + 1 < commands.size() && handled)
                     quitHandlerFired = (quitHandler != null && quitHandler.doIWantToQuit(currentMissionInit()));
 
                 // Minecraft.getMinecraft().mcProfiler.endSection();
             }
+            commands.clear();
         }
 
         /**
@@ -2428,4 +2589,19 @@ public class ClientStateMachine extends StateMachine implements IVereyaMessageLi
             ++totalTicks;
         }
     }
+
+    /** The -Dvereya.commands.overflow policy; a value that isn't one is logged and DROP_OLDEST used. */
+    private static TCPInputPoller.OverflowPolicy getCommandOverflowPolicy()
+    {
+        String value = System.getProperty("vereya.commands.overflow", "DROP_OLDEST");
+        try
+        {
+            return TCPInputPoller.OverflowPolicy.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        }
+        catch (IllegalArgumentException e)
+        {
+            LOGGER.warn("Unknown vereya.commands.overflow policy \"" + value + "\"; using DROP_OLDEST");
+            return TCPInputPoller.OverflowPolicy.DROP_OLDEST;
+        }
+    }
 }
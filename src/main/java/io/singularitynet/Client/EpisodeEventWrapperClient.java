@@ -2,6 +2,8 @@ package io.singularitynet.Client;
 
 import io.singularitynet.EpisodeEventWrapper;
 import io.singularitynet.TitleScreenEvents;
+import io.singularitynet.utils.GlStateTracker;
+import io.singularitynet.utils.TextureHelper;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientChunkEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientLifecycleEvents;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
@@ -22,7 +24,12 @@ public class EpisodeEventWrapperClient extends EpisodeEventWrapper implements Cl
         LogManager.getLogger().info("Setting up EpisodeEventWrapper for Client events");
         ClientTickEvents.END_CLIENT_TICK.register(client -> {this.onEndTick(client);});
         ClientChunkEvents.CHUNK_LOAD.register((world, chunk) -> {this.onChunkLoad(world, chunk);});
-        WorldRenderEvents.END.register((context) -> {this.onRenderTickEnd(context);});
+        WorldRenderEvents.END.register((context) -> {
+            this.onRenderTickEnd(context);
+            // The segmentation pass is a nested world render, not a frame of its own.
+            if (!TextureHelper.colourmapFrame)
+                GlStateTracker.endFrame();
+        });
         WorldRenderEvents.START.register((context) -> {this.onRenderTickStart(context);});
         ClientLifecycleEvents.CLIENT_STARTED.register((client) -> {this.onClientStarted(client);});
         TitleScreenEvents.END_TITLESCREEN_INIT.register(()-> {this.onTitleScreenEndInit();});
@@ -0,0 +1,87 @@
+package io.singularitynet.Client;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decides which rendered frames a video producer should capture.
+ * <p>
+ * Works either on a target frame rate (wall-clock period between captures) or, if no
+ * rate is given, on a fixed frame interval. On top of that it applies a back-off factor
+ * that doubles whenever the sender's queue is found full, and steps back down once the
+ * queue has stayed empty for a while - so a slow agent costs us fewer readbacks rather
+ * than a growing backlog.
+ * <p>
+ * Used only from the render thread.
+ */
+public class FrameRateController {
+    private static final Logger LOGGER = LogManager.getLogger(FrameRateController.class);
+    private static final int MAX_BACKOFF = 8;
+    // Consecutive captures with an empty queue before the back-off is relaxed.
+    private static final int RECOVERY_CAPTURES = 30;
+
+    private final String name;
+    private final int frameInterval;
+    private final long periodNs;
+    private int backoff = 1;
+    private int framesSinceCapture = 0;
+    private long nextCaptureNs = 0;
+    private int healthyCaptures = 0;
+
+    /**
+     * @param frameInterval capture one frame in this many; used when targetFps is not positive.
+     * @param targetFps maximum captures per second, or zero.
+     * @param name used in log messages.
+     */
+    public FrameRateController(int frameInterval, double targetFps, String name) {
+        this.frameInterval = Math.max(1, frameInterval);
+        this.periodNs = targetFps > 0 ? (long) (1000000000L / targetFps) : 0;
+        this.name = name;
+    }
+
+    /** Should the frame rendered at timeNowNs be captured? Call exactly once per rendered frame. */
+    public boolean shouldCapture(long timeNowNs) {
+        if (this.periodNs > 0) {
+            long period = this.periodNs * this.backoff;
+            if (this.nextCaptureNs != 0 && timeNowNs < this.nextCaptureNs)
+                return false;
+            // Don't try to catch up on captures we were too slow to make.
+            if (this.nextCaptureNs == 0 || timeNowNs - this.nextCaptureNs > period)
+                this.nextCaptureNs = timeNowNs;
+            this.nextCaptureNs += period;
+            return true;
+        }
+        this.framesSinceCapture++;
+        if (this.framesSinceCapture < this.frameInterval * this.backoff)
+            return false;
+        this.framesSinceCapture = 0;
+        return true;
+    }
+
+    /**
+     * Report how full the sender's queue was when a capture was made.
+     *
+     * @param pending frames waiting to be sent.
+     * @param capacity the queue length.
+     */
+    public void onQueueState(int pending, int capacity) {
+        if (pending >= capacity) {
+            this.healthyCaptures = 0;
+            if (this.backoff < MAX_BACKOFF) {
+                this.backoff *= 2;
+                LOGGER.debug("{}: agent falling behind, sending 1/{} of the requested rate", this.name, this.backoff);
+            }
+        } else if (pending == 0 && this.backoff > 1) {
+            if (++this.healthyCaptures >= RECOVERY_CAPTURES) {
+                this.healthyCaptures = 0;
+                this.backoff /= 2;
+                LOGGER.debug("{}: agent caught up, sending 1/{} of the requested rate", this.name, this.backoff);
+            }
+        }
+    }
+
+    /** Current divisor applied to the requested rate. */
+    public int getBackoff() {
+        return this.backoff;
+    }
+}
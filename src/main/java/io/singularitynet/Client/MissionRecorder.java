@@ -0,0 +1,485 @@
+package io.singularitynet.Client;
+
+import io.singularitynet.MissionHandlerInterfaces.IVideoProducer;
+import io.singularitynet.projectmalmo.MissionDiagnostics;
+import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.projectmalmo.MissionRecording;
+import io.singularitynet.utils.SchemaHelper;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes a mission to disk as it runs - every captured video frame, and the observations,
+ * rewards and commands - for missions with a MissionRecording in their ModSettings.
+ * <p>
+ * The render and client threads only copy into a preallocated slot and queue it; a writer
+ * thread appends the records to segment files through a FileChannel. Frame slots are never
+ * waited for: when the writer has fallen behind and a stream has none free, the frame is left
+ * out of the recording and counted, as is any other record that finds the queue full.
+ * <p>
+ * A recording directory holds "mission.xml", the MissionInit; "data-00000.seg" onwards, the
+ * segments; and "index.bin". All integers are little-endian. Each segment starts with a
+ * 16-byte header (magic "VRYD", u16 version, u16 header size, u32 segment number, u32 zero),
+ * followed by records:
+ * <pre>
+ * offset size
+ *   0     1   kind: {@link #KIND_FRAME}, {@link #KIND_OBSERVATION}, {@link #KIND_REWARD} or {@link #KIND_COMMAND}
+ *   1     1   stream: for frames, the ordinal of the producer's VideoType; for observations,
+ *             {@link #STREAM_CBOR} if they were sent as CBOR; otherwise 0
+ *   2     2   zero
+ *   4     4   payload length in bytes
+ *   8     8   sequence number, counted separately per kind and stream
+ *  16     8   time, milliseconds since the epoch
+ *  24     -   payload
+ * </pre>
+ * A frame's payload is a {@link VideoFrameHeader} followed by its raw pixels; the others are
+ * the UTF-8 text the agent would have received (or sent, for commands), or for CBOR observations
+ * the message bytes, which define dictionary ids only once: a reader keeps the definitions
+ * from every observation record, so a dropped one can leave later ids unnamed. The index starts
+ * with a 16-byte header (magic "VRYX", u16 version, u16 entry size, u32 zero, u32 zero), then
+ * holds one fixed-size entry per record, in the order written, so entry n is at
+ * 16 + n * {@link #INDEX_ENTRY_SIZE}:
+ * <pre>
+ *   0     1   kind
+ *   1     1   stream
+ *   2     2   zero
+ *   4     4   segment number
+ *   8     8   offset of the record within its segment
+ *  16     4   length of the record, including its 24-byte header
+ *  20     4   zero
+ *  24     8   sequence number
+ *  32     8   capture time, System.nanoTime() on the client (frames), or when recorded
+ *  40     8   time, milliseconds since the epoch
+ * </pre>
+ */
+public class MissionRecorder implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(MissionRecorder.class);
+
+    public static final int KIND_FRAME = 1;
+    public static final int KIND_OBSERVATION = 2;
+    public static final int KIND_REWARD = 3;
+    public static final int KIND_COMMAND = 4;
+    /** Stream of observations sent in the CBOR format of {@link io.singularitynet.utils.ObservationWriter}. */
+    public static final int STREAM_CBOR = 1;
+
+    public static final int SEGMENT_MAGIC = 0x44595256; // "VRYD" when written little-endian
+    public static final int INDEX_MAGIC = 0x58595256;   // "VRYX" when written little-endian
+    public static final short VERSION = 1;
+    public static final int FILE_HEADER_SIZE = 16;
+    public static final int RECORD_HEADER_SIZE = 24;
+    public static final int INDEX_ENTRY_SIZE = 48;
+
+    // Room for every stream's frame slots, with plenty to spare for the small records.
+    private static final int QUEUE_LENGTH = 4096;
+    // Index entries are buffered and written whenever the queue runs dry, or this many pile up.
+    private static final int INDEX_BATCH = 256;
+    private static final long POLL_MS = 100;
+    private static final long STOP_TIMEOUT_MS = 10000;
+
+    /** One record waiting for the writer; frame slots are reused, the rest are not. */
+    private static class Record {
+        final FrameStream owner;
+        final VideoFrameSender.Frame frame;
+        int kind;
+        int stream;
+        long seq;
+        long timeNs;
+        long timeMs;
+        byte[] data;
+
+        Record(FrameStream owner, int capacity) {
+            this.owner = owner;
+            this.frame = capacity > 0 ? new VideoFrameSender.Frame(capacity) : null;
+        }
+    }
+
+    /** The frame slots and counters of one video stream. */
+    public class FrameStream {
+        private final int stream;
+        private final ArrayBlockingQueue<Record> free;
+        // Only touched by the thread recording this stream's frames.
+        private long nextSeq = 0;
+        private Record acquired = null;
+        // Counted by the recording thread, and by the writer if it fails.
+        private final AtomicLong framesDropped = new AtomicLong();
+        private volatile long framesRecorded = 0;
+
+        private FrameStream(int stream, int slots, int initialCapacity) {
+            this.stream = stream;
+            this.free = new ArrayBlockingQueue<>(slots);
+            for (int i = 0; i < slots; i++)
+                this.free.add(new Record(this, initialCapacity));
+        }
+
+        /**
+         * Copy a captured frame, whose pixels lie between position and limit, into a free slot
+         * and queue it for writing. Never waits.
+         *
+         * @return false if the frame was dropped from the recording.
+         */
+        public boolean record(VideoFrameSender.Frame src) {
+            VideoFrameSender.Frame dst = acquire();
+            if (dst == null)
+                return false;
+            ByteBuffer pixels = src.pixels.duplicate();
+            dst.ensureCapacity(pixels.remaining()).put(pixels).flip();
+            dst.width = src.width;
+            dst.height = src.height;
+            dst.channels = src.channels;
+            dst.captureTimeNs = src.captureTimeNs;
+            dst.pose.copyFrom(src.pose);
+            dst.instances.copyFrom(src.instances);
+            return submit();
+        }
+
+        /**
+         * A free slot to capture a frame straight into, for frames the sender has no slot for;
+         * null, and the frame counted as dropped, if none is free. Hand it back with
+         * {@link #submit} or {@link #release} before acquiring another. Never waits.
+         */
+        public VideoFrameSender.Frame acquire() {
+            Record r = this.free.poll();
+            if (r == null || !MissionRecorder.this.running) {
+                if (r != null)
+                    this.free.offer(r);
+                this.framesDropped.incrementAndGet();
+                return null;
+            }
+            this.acquired = r;
+            return r.frame;
+        }
+
+        /**
+         * Queue the acquired slot, whose pixels lie between position and limit, for writing.
+         *
+         * @return false if the frame was dropped from the recording.
+         */
+        public boolean submit() {
+            Record r = this.acquired;
+            this.acquired = null;
+            VideoFrameSender.Frame dst = r.frame;
+            dst.encoding = VideoFrameHeader.ENCODING_RAW;
+            dst.seq = this.nextSeq++;
+            r.kind = KIND_FRAME;
+            r.stream = this.stream;
+            r.seq = dst.seq;
+            r.timeNs = dst.captureTimeNs;
+            r.timeMs = System.currentTimeMillis();
+            if (!MissionRecorder.this.queue.offer(r)) {
+                this.free.offer(r);
+                this.framesDropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        /** Give back the acquired slot unused. */
+        public void release() {
+            Record r = this.acquired;
+            this.acquired = null;
+            if (r != null)
+                this.free.offer(r);
+        }
+    }
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int frameQueueLength;
+    private final ArrayBlockingQueue<Record> queue = new ArrayBlockingQueue<>(QUEUE_LENGTH);
+    private final FrameStream[] streams = new FrameStream[IVideoProducer.VideoType.values().length];
+    // Sequence numbers of the records other than frames, by kind; client thread only.
+    private final long[] textSeq = new long[KIND_COMMAND + 1];
+    private volatile boolean running = false;
+    private Thread thread;
+
+    // Writer thread only.
+    private FileChannel segment;
+    private int segmentNumber = -1;
+    private long segmentOffset = 0;
+    private FileChannel index;
+    private final ByteBuffer indexEntries = ByteBuffer.allocateDirect(INDEX_BATCH * INDEX_ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final ByteBuffer recordHeader = ByteBuffer.allocateDirect(RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer frameHeader = VideoFrameHeader.allocate();
+    private boolean failed = false;
+
+    // Counters - written by one thread, read by anyone.
+    private volatile long recordsWritten = 0;
+    private final AtomicLong recordsDropped = new AtomicLong();
+    private volatile long bytesWritten = 0;
+
+    /**
+     * Create the recording directory for this mission and write the MissionInit into it.
+     * Call {@link #start} once the video streams have been added.
+     */
+    public MissionRecorder(MissionInit missionInit, MissionRecording spec) throws IOException {
+        this.segmentSize = spec.getSegmentSizeMb() * 1024L * 1024L;
+        this.frameQueueLength = spec.getFrameQueueLength();
+        String name = (missionInit.getExperimentUID() + "-role" + missionInit.getClientRole()).replaceAll("[^A-Za-z0-9._-]", "_");
+        Path parent = Paths.get(spec.getDestination());
+        Path dir = parent.resolve(name);
+        // Never append to an earlier run of the same experiment.
+        for (int run = 2; Files.exists(dir); run++)
+            dir = parent.resolve(name + "-" + run);
+        Files.createDirectories(dir);
+        this.directory = dir;
+        try {
+            Files.writeString(dir.resolve("mission.xml"), SchemaHelper.serialiseObject(missionInit, MissionInit.class));
+        } catch (Exception e) {
+            LOGGER.warn("MissionRecorder: failed to write mission.xml", e);
+        }
+        this.index = FileChannel.open(dir.resolve("index.bin"), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writeFileHeader(this.index, INDEX_MAGIC, (short) INDEX_ENTRY_SIZE, 0);
+    }
+
+    public Path getDirectory() { return this.directory; }
+
+    /**
+     * Slots for one video stream's frames, each sized for initialCapacity bytes of pixels to
+     * begin with. Call before {@link #start}.
+     */
+    public FrameStream addStream(IVideoProducer.VideoType type, int initialCapacity) {
+        int stream = type.ordinal();
+        if (this.streams[stream] == null)
+            this.streams[stream] = new FrameStream(stream, this.frameQueueLength, initialCapacity);
+        return this.streams[stream];
+    }
+
+    public void start() {
+        this.running = true;
+        this.thread = new Thread(this, "MissionRecorder");
+        this.thread.setDaemon(true);
+        this.thread.start();
+        LOGGER.info("MissionRecorder: recording to {}", this.directory);
+    }
+
+    public void recordObservation(String json) {
+        recordText(KIND_OBSERVATION, json);
+    }
+
+    /** An observation in CBOR; the first length bytes of message are copied. */
+    public void recordObservation(byte[] message, int length) {
+        if (!this.running)
+            return;
+        Record r = new Record(null, 0);
+        r.kind = KIND_OBSERVATION;
+        r.stream = STREAM_CBOR;
+        r.seq = this.textSeq[KIND_OBSERVATION]++;
+        r.timeNs = System.nanoTime();
+        r.timeMs = System.currentTimeMillis();
+        r.data = Arrays.copyOf(message, length);
+        if (!this.queue.offer(r))
+            this.recordsDropped.incrementAndGet();
+    }
+
+    public void recordReward(String reward) {
+        recordText(KIND_REWARD, reward);
+    }
+
+    public void recordCommand(String command) {
+        recordText(KIND_COMMAND, command);
+    }
+
+    private void recordText(int kind, String text) {
+        if (!this.running)
+            return;
+        Record r = new Record(null, 0);
+        r.kind = kind;
+        r.seq = this.textSeq[kind]++;
+        r.timeNs = System.nanoTime();
+        r.timeMs = System.currentTimeMillis();
+        r.data = text.getBytes(StandardCharsets.UTF_8);
+        if (!this.queue.offer(r))
+            this.recordsDropped.incrementAndGet();
+    }
+
+    /**
+     * Write out whatever is still queued, close the files, and add a summary to diags, if given.
+     */
+    public void stop(MissionDiagnostics diags) {
+        this.running = false;
+        if (this.thread != null) {
+            try {
+                this.thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (this.thread.isAlive())
+                LOGGER.warn("MissionRecorder: writer still busy after {} ms, abandoning the rest", STOP_TIMEOUT_MS);
+            this.thread = null;
+        } else {
+            closeFiles();
+        }
+        long framesRecorded = 0;
+        long framesDropped = 0;
+        for (FrameStream s : this.streams) {
+            if (s != null) {
+                framesRecorded += s.framesRecorded;
+                framesDropped += s.framesDropped.get();
+            }
+        }
+        LOGGER.info("MissionRecorder: {} frames recorded, {} dropped; {} records, {} bytes in {} segments, {} records dropped",
+                framesRecorded, framesDropped, this.recordsWritten, this.bytesWritten, this.segmentNumber + 1, this.recordsDropped.get());
+        if (diags != null) {
+            MissionDiagnostics.Recording rec = new MissionDiagnostics.Recording();
+            rec.setDirectory(this.directory.toString());
+            rec.setFramesRecorded(framesRecorded);
+            rec.setFramesDropped(framesDropped);
+            rec.setRecordsWritten(this.recordsWritten);
+            rec.setRecordsDropped(this.recordsDropped.get());
+            rec.setBytesWritten(this.bytesWritten);
+            rec.setSegments(this.segmentNumber + 1);
+            diags.setRecording(rec);
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (this.running || !this.queue.isEmpty()) {
+                Record r;
+                try {
+                    r = this.queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (r != null) {
+                    write(r);
+                    if (r.owner != null)
+                        r.owner.free.offer(r);
+                }
+                if (r == null || this.queue.isEmpty() || !this.indexEntries.hasRemaining())
+                    flushIndex();
+            }
+        } finally {
+            closeFiles();
+        }
+    }
+
+    private void write(Record r) {
+        if (this.failed) {
+            drop(r);
+            return;
+        }
+        try {
+            ByteBuffer[] buffers;
+            if (r.frame != null) {
+                this.frameHeader = VideoFrameHeader.write(this.frameHeader, r.frame, r.timeMs);
+                buffers = new ByteBuffer[]{this.recordHeader, this.frameHeader, r.frame.pixels.duplicate()};
+            } else {
+                buffers = new ByteBuffer[]{this.recordHeader, ByteBuffer.wrap(r.data)};
+            }
+            long payload = 0;
+            for (int i = 1; i < buffers.length; i++)
+                payload += buffers[i].remaining();
+            long length = RECORD_HEADER_SIZE + payload;
+            if (this.segment == null || (this.segmentOffset > FILE_HEADER_SIZE && this.segmentOffset + length > this.segmentSize))
+                openSegment(this.segmentNumber + 1);
+            this.recordHeader.clear();
+            this.recordHeader.put((byte) r.kind);
+            this.recordHeader.put((byte) r.stream);
+            this.recordHeader.putShort((short) 0);
+            this.recordHeader.putInt((int) payload);
+            this.recordHeader.putLong(r.seq);
+            this.recordHeader.putLong(r.timeMs);
+            this.recordHeader.flip();
+            long offset = this.segmentOffset;
+            long remaining = length;
+            while (remaining > 0)
+                remaining -= this.segment.write(buffers);
+            this.segmentOffset += length;
+
+            this.indexEntries.put((byte) r.kind);
+            this.indexEntries.put((byte) r.stream);
+            this.indexEntries.putShort((short) 0);
+            this.indexEntries.putInt(this.segmentNumber);
+            this.indexEntries.putLong(offset);
+            this.indexEntries.putInt((int) length);
+            this.indexEntries.putInt(0);
+            this.indexEntries.putLong(r.seq);
+            this.indexEntries.putLong(r.timeNs);
+            this.indexEntries.putLong(r.timeMs);
+
+            this.recordsWritten++;
+            this.bytesWritten += length;
+            if (r.owner != null)
+                r.owner.framesRecorded++;
+        } catch (IOException e) {
+            LOGGER.warn("MissionRecorder: failed to write to {}, recording stopped", this.directory, e);
+            this.failed = true;
+            drop(r);
+        }
+    }
+
+    private void drop(Record r) {
+        if (r.owner != null)
+            r.owner.framesDropped.incrementAndGet();
+        else
+            this.recordsDropped.incrementAndGet();
+    }
+
+    private void openSegment(int number) throws IOException {
+        if (this.segment != null)
+            this.segment.close();
+        this.segment = null;
+        Path path = this.directory.resolve(String.format("data-%05d.seg", number));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        writeFileHeader(channel, SEGMENT_MAGIC, (short) FILE_HEADER_SIZE, number);
+        this.segment = channel;
+        this.segmentNumber = number;
+        this.segmentOffset = FILE_HEADER_SIZE;
+    }
+
+    private static void writeFileHeader(FileChannel channel, int magic, short field, int number) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(magic);
+        header.putShort(VERSION);
+        header.putShort(field);
+        header.putInt(number);
+        header.putInt(0);
+        header.flip();
+        while (header.hasRemaining())
+            channel.write(header);
+    }
+
+    private void flushIndex() {
+        if (this.indexEntries.position() == 0)
+            return;
+        this.indexEntries.flip();
+        try {
+            if (!this.failed) {
+                while (this.indexEntries.hasRemaining())
+                    this.index.write(this.indexEntries);
+            }
+        } catch (IOException e) {
+            LOGGER.warn("MissionRecorder: failed to write the index in {}, recording stopped", this.directory, e);
+            this.failed = true;
+        }
+        this.indexEntries.clear();
+    }
+
+    private void closeFiles() {
+        flushIndex();
+        try {
+            if (this.segment != null)
+                this.segment.close();
+            this.index.close();
+        } catch (IOException e) {
+            LOGGER.warn("MissionRecorder: failed to close the files in {}", this.directory, e);
+        }
+        this.segment = null;
+    }
+}
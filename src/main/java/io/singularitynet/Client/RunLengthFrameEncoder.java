@@ -0,0 +1,152 @@
+package io.singularitynet.Client;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Palette + run-length encoder for frames made of large flat regions, such as colour maps.
+ * <p>
+ * Encoded layout, little-endian:
+ * <pre>
+ * u32           palette size N
+ * N * channels  palette entries, each exactly as the pixel's bytes appear in the raw frame
+ * u32           run count
+ * runs          palette index (u8 if N &lt;= 256, else u16), then run length as an unsigned LEB128 varint
+ * </pre>
+ * Runs cover the pixels in the same order as the raw frame (rows bottom-up) and may span rows.
+ * <p>
+ * Holds reusable scratch arrays, so use one instance per thread.
+ */
+public class RunLengthFrameEncoder {
+    private static final int MAX_PALETTE = 65536;
+
+    // Open-addressing map from packed pixel value to palette index + 1 (0 = empty slot).
+    private int[] keys = new int[1024];
+    private int[] slots = new int[1024];
+    private int[] palette = new int[256];
+    private int paletteSize = 0;
+    private int[] runIndex = new int[4096];
+    private int[] runLength = new int[4096];
+    private int runCount = 0;
+
+    /**
+     * Encode {@code pixelCount} pixels of {@code channels} bytes (1 to 4) from {@code src}
+     * into {@code dst}, starting at position 0 of each.
+     *
+     * @return the number of bytes written, or -1 if the frame has too many distinct values or
+     * would not come out smaller than {@code maxBytes}, in which case it should be sent raw.
+     */
+    public int encode(ByteBuffer src, int pixelCount, int channels, ByteBuffer dst, int maxBytes) {
+        if (channels < 1 || channels > 4)
+            return -1;
+        Arrays.fill(this.slots, 0);
+        this.paletteSize = 0;
+        this.runCount = 0;
+
+        int previous = 0;
+        int previousIndex = -1;
+        int length = 0;
+        for (int i = 0, off = 0; i < pixelCount; i++, off += channels) {
+            int value = src.get(off) & 0xFF;
+            if (channels > 1) value |= (src.get(off + 1) & 0xFF) << 8;
+            if (channels > 2) value |= (src.get(off + 2) & 0xFF) << 16;
+            if (channels > 3) value |= (src.get(off + 3) & 0xFF) << 24;
+            if (previousIndex >= 0 && value == previous) {
+                length++;
+                continue;
+            }
+            if (previousIndex >= 0)
+                addRun(previousIndex, length);
+            previousIndex = indexOf(value);
+            if (previousIndex < 0)
+                return -1; // Too many colours to be worth it.
+            previous = value;
+            length = 1;
+        }
+        if (previousIndex >= 0)
+            addRun(previousIndex, length);
+
+        int indexBytes = this.paletteSize <= 256 ? 1 : 2;
+        // Upper bound: a varint run length never takes more than 5 bytes.
+        long bound = 8L + (long) this.paletteSize * channels + (long) this.runCount * (indexBytes + 5);
+        if (bound > maxBytes || bound > dst.capacity())
+            return -1;
+
+        dst.clear();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        dst.putInt(this.paletteSize);
+        for (int p = 0; p < this.paletteSize; p++) {
+            int value = this.palette[p];
+            for (int c = 0; c < channels; c++)
+                dst.put((byte) (value >>> (8 * c)));
+        }
+        dst.putInt(this.runCount);
+        for (int r = 0; r < this.runCount; r++) {
+            if (indexBytes == 1)
+                dst.put((byte) this.runIndex[r]);
+            else
+                dst.putShort((short) this.runIndex[r]);
+            int run = this.runLength[r];
+            while ((run & ~0x7F) != 0) {
+                dst.put((byte) ((run & 0x7F) | 0x80));
+                run >>>= 7;
+            }
+            dst.put((byte) run);
+        }
+        dst.flip();
+        return dst.limit();
+    }
+
+    private void addRun(int index, int length) {
+        if (this.runCount == this.runIndex.length) {
+            this.runIndex = Arrays.copyOf(this.runIndex, this.runCount * 2);
+            this.runLength = Arrays.copyOf(this.runLength, this.runCount * 2);
+        }
+        this.runIndex[this.runCount] = index;
+        this.runLength[this.runCount] = length;
+        this.runCount++;
+    }
+
+    /** Palette index of value, adding it if new; -1 if the palette is full. */
+    private int indexOf(int value) {
+        int mask = this.slots.length - 1;
+        int slot = mix(value) & mask;
+        while (this.slots[slot] != 0) {
+            if (this.keys[slot] == value)
+                return this.slots[slot] - 1;
+            slot = (slot + 1) & mask;
+        }
+        if (this.paletteSize == MAX_PALETTE)
+            return -1;
+        int index = this.paletteSize++;
+        if (index == this.palette.length)
+            this.palette = Arrays.copyOf(this.palette, index * 2);
+        this.palette[index] = value;
+        this.keys[slot] = value;
+        this.slots[slot] = index + 1;
+        // Keep the load factor at or below a half.
+        if (this.paletteSize * 2 > this.slots.length)
+            grow();
+        return index;
+    }
+
+    private void grow() {
+        int capacity = this.slots.length * 2;
+        this.keys = new int[capacity];
+        this.slots = new int[capacity];
+        int mask = capacity - 1;
+        for (int index = 0; index < this.paletteSize; index++) {
+            int slot = mix(this.palette[index]) & mask;
+            while (this.slots[slot] != 0)
+                slot = (slot + 1) & mask;
+            this.keys[slot] = this.palette[index];
+            this.slots[slot] = index + 1;
+        }
+    }
+
+    private static int mix(int value) {
+        int h = value * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
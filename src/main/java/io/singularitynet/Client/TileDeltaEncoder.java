@@ -0,0 +1,165 @@
+package io.singularitynet.Client;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Tile delta encoder: sends only the parts of a frame that changed since the previous frame
+ * the agent received.
+ * <p>
+ * The frame is split into {@link #TILE_SIZE}-pixel square tiles (clipped at the right and top
+ * edges) and a 64-bit hash of each tile's bytes is compared with the hash from the reference
+ * frame. Encoded layout, little-endian:
+ * <pre>
+ * u64      sequence number of this frame
+ * u64      sequence number of the frame this one is a delta against, or -1 for a keyframe
+ * u16      tile size in pixels
+ * u16      reserved, zero
+ * bitmap   one bit per tile, least significant bit first, set if the tile's pixels follow;
+ *          tiles are numbered row by row in the same order as the raw frame's rows
+ * tiles    for each set bit in order, the tile's rows of pixels, each row tileWidth * channels bytes
+ * </pre>
+ * Tiles whose bit is clear are unchanged from the reference frame. A keyframe has every bit set.
+ * <p>
+ * Call {@link #commit} once a frame has been delivered, so that it becomes the reference for the
+ * next one, or {@link #reset} if it could not be, to force a keyframe. Not thread-safe.
+ */
+public class TileDeltaEncoder {
+    public static final int TILE_SIZE = 32;
+    public static final int HEADER_SIZE = 20;
+
+    private final int keyframeInterval;
+    private long[] referenceHashes = new long[0];
+    private long[] pendingHashes = new long[0];
+    private long referenceSeq = -1;
+    private int referenceWidth;
+    private int referenceHeight;
+    private int referenceChannels;
+    private int framesSinceKeyframe = 0;
+
+    private long pendingSeq = -1;
+    private boolean pendingKeyframe;
+    private int pendingWidth;
+    private int pendingHeight;
+    private int pendingChannels;
+
+    /**
+     * @param keyframeInterval the most frames that may be sent between keyframes; 1 makes every frame a keyframe.
+     */
+    public TileDeltaEncoder(int keyframeInterval) {
+        this.keyframeInterval = Math.max(1, keyframeInterval);
+    }
+
+    /** Largest possible encoding of a frame of this size: the raw pixels plus header and bitmap. */
+    public static int maxEncodedSize(int width, int height, int channels) {
+        return HEADER_SIZE + bitmapBytes(tileCount(width, height)) + width * height * channels;
+    }
+
+    /**
+     * Encode the frame in {@code src}, starting at position 0, into {@code dst}, which must hold at
+     * least {@link #maxEncodedSize} bytes. The result is flipped, ready to be written.
+     *
+     * @return the number of bytes written.
+     */
+    public int encode(ByteBuffer src, int width, int height, int channels, long seq, ByteBuffer dst) {
+        int tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        int tileCount = tileCount(width, height);
+        if (this.pendingHashes.length < tileCount)
+            this.pendingHashes = new long[tileCount];
+        boolean keyframe = this.referenceSeq < 0
+                || width != this.referenceWidth || height != this.referenceHeight || channels != this.referenceChannels
+                || this.framesSinceKeyframe + 1 >= this.keyframeInterval;
+
+        int bitmapStart = HEADER_SIZE;
+        int bitmapBytes = bitmapBytes(tileCount);
+        dst.clear();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        dst.putLong(seq);
+        dst.putLong(keyframe ? -1L : this.referenceSeq);
+        dst.putShort((short) TILE_SIZE);
+        dst.putShort((short) 0);
+        for (int i = 0; i < bitmapBytes; i++)
+            dst.put((byte) 0);
+
+        int out = bitmapStart + bitmapBytes;
+        int stride = width * channels;
+        for (int tile = 0; tile < tileCount; tile++) {
+            int x0 = (tile % tilesX) * TILE_SIZE;
+            int y0 = (tile / tilesX) * TILE_SIZE;
+            int rowBytes = Math.min(TILE_SIZE, width - x0) * channels;
+            int rows = Math.min(TILE_SIZE, height - y0);
+            int first = y0 * stride + x0 * channels;
+            long hash = hashTile(src, first, rowBytes, rows, stride);
+            this.pendingHashes[tile] = hash;
+            if (!keyframe && this.referenceHashes[tile] == hash)
+                continue;
+            int bit = bitmapStart + (tile >>> 3);
+            dst.put(bit, (byte) (dst.get(bit) | (1 << (tile & 7))));
+            for (int r = 0, off = first; r < rows; r++, off += stride) {
+                dst.put(out, src, off, rowBytes);
+                out += rowBytes;
+            }
+        }
+        dst.position(out);
+        dst.flip();
+
+        this.pendingSeq = seq;
+        this.pendingKeyframe = keyframe;
+        this.pendingWidth = width;
+        this.pendingHeight = height;
+        this.pendingChannels = channels;
+        return out;
+    }
+
+    /** The last frame encoded has reached the agent; encode the next one against it. */
+    public void commit() {
+        if (this.pendingSeq < 0)
+            return;
+        long[] swap = this.referenceHashes;
+        this.referenceHashes = this.pendingHashes;
+        this.pendingHashes = swap;
+        this.referenceSeq = this.pendingSeq;
+        this.referenceWidth = this.pendingWidth;
+        this.referenceHeight = this.pendingHeight;
+        this.referenceChannels = this.pendingChannels;
+        this.framesSinceKeyframe = this.pendingKeyframe ? 0 : this.framesSinceKeyframe + 1;
+        this.pendingSeq = -1;
+    }
+
+    /** The agent may have missed a frame; make the next one a keyframe. */
+    public void reset() {
+        this.referenceSeq = -1;
+        this.pendingSeq = -1;
+    }
+
+    private static int tileCount(int width, int height) {
+        return ((width + TILE_SIZE - 1) / TILE_SIZE) * ((height + TILE_SIZE - 1) / TILE_SIZE);
+    }
+
+    private static int bitmapBytes(int tileCount) {
+        return (tileCount + 7) / 8;
+    }
+
+    private static long hashTile(ByteBuffer src, int first, int rowBytes, int rows, int stride) {
+        long h = 0x9E3779B97F4A7C15L ^ rowBytes;
+        for (int r = 0, off = first; r < rows; r++, off += stride) {
+            int i = 0;
+            for (; i + 8 <= rowBytes; i += 8)
+                h = Long.rotateLeft(h ^ mix(src.getLong(off + i)), 27) * 0x9E3779B97F4A7C15L + 0x52DCE729L;
+            long tail = 0;
+            for (; i < rowBytes; i++)
+                tail = (tail << 8) | (src.get(off + i) & 0xFF);
+            h = Long.rotateLeft(h ^ mix(tail ^ r), 27) * 0x9E3779B97F4A7C15L + 0x52DCE729L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= 0xFF51AFD7ED558CCDL;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,95 @@
+package io.singularitynet.Client;
+
+import io.singularitynet.utils.InstanceTable;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Fixed-layout binary header sent ahead of each video frame when the agent asks for
+ * {@code videoFrameHeader="binary"}. All fields are little-endian:
+ * <pre>
+ * offset size
+ *   0     4   magic, the bytes "VRYF"
+ *   4     2   version ({@link #VERSION})
+ *   6     2   header size in bytes, pixels start at this offset
+ *   8     8   sequence number of the frame within this stream
+ *  16     8   capture time, System.nanoTime() on the client
+ *  24     8   send time, milliseconds since the epoch
+ *  32    20   x, y, z, yaw, pitch (float32)
+ *  52    12   width, height, channels (int32)
+ *  64    64   projection matrix, 16 x float32, column-major
+ * 128    64   modelview matrix, 16 x float32, column-major
+ * 192     4   pixel encoding: {@link #ENCODING_RAW}, {@link #ENCODING_RLE} or {@link #ENCODING_DELTA} (version 2)
+ * 196     4   number of instance table entries that follow (version 3, zero before)
+ * 200     -   instance table, see {@link InstanceTable}; only for instance segmentation
+ * </pre>
+ * Readers should skip {@code headerSize} bytes to reach the pixels, so that later
+ * versions can append fields without breaking them. The magic can never be mistaken
+ * for the big-endian length that starts a JSON header.
+ */
+public final class VideoFrameHeader {
+    public static final int MAGIC = 0x46595256; // "VRYF" when written little-endian
+    public static final short VERSION = 3;
+    /** Size of the fixed fields; the instance table, if any, makes the header longer. */
+    public static final int SIZE = 200;
+    // The header size field is 16 bits, which bounds the instance table.
+    private static final int MAX_SIZE = 0xFFFF;
+    /** Pixels follow as read back. */
+    public static final int ENCODING_RAW = 0;
+    /** Pixels follow as encoded by {@link RunLengthFrameEncoder}. */
+    public static final int ENCODING_RLE = 1;
+    /** Pixels follow as encoded by {@link TileDeltaEncoder}. */
+    public static final int ENCODING_DELTA = 2;
+
+    private VideoFrameHeader() {}
+
+    /** Allocate a direct buffer suitable for {@link #write}; reuse it for every frame. */
+    public static ByteBuffer allocate() {
+        return allocate(SIZE);
+    }
+
+    private static ByteBuffer allocate(int capacity) {
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Fill {@code dst} with the header for {@code frame} and flip it, ready to be written.
+     *
+     * @return dst, or a larger buffer to use from now on if the instance table didn't fit in it.
+     */
+    public static ByteBuffer write(ByteBuffer dst, VideoFrameSender.Frame frame, long sendTimeMs) {
+        InstanceTable instances = frame.instances;
+        // Entries that would overflow the header size field are left out.
+        int count = instances.countFitting(MAX_SIZE - SIZE);
+        int size = SIZE + instances.getBinarySize(count);
+        if (dst.capacity() < size)
+            dst = allocate(size);
+        dst.clear();
+        dst.order(ByteOrder.LITTLE_ENDIAN);
+        dst.putInt(MAGIC);
+        dst.putShort(VERSION);
+        dst.putShort((short) size);
+        dst.putLong(frame.seq);
+        dst.putLong(frame.captureTimeNs);
+        dst.putLong(sendTimeMs);
+        VideoHook.FramePose pose = frame.pose;
+        dst.putFloat(pose.x);
+        dst.putFloat(pose.y);
+        dst.putFloat(pose.z);
+        dst.putFloat(pose.yaw);
+        dst.putFloat(pose.pitch);
+        dst.putInt(frame.width);
+        dst.putInt(frame.height);
+        dst.putInt(frame.channels);
+        for (int i = 0; i < 16; i++)
+            dst.putFloat(pose.projection[i]);
+        for (int i = 0; i < 16; i++)
+            dst.putFloat(pose.modelview[i]);
+        dst.putInt(frame.encoding);
+        dst.putInt(count);
+        instances.write(dst, count);
+        dst.flip();
+        return dst;
+    }
+}
@@ -0,0 +1,487 @@
+package io.singularitynet.Client;
+
+import io.singularitynet.projectmalmo.FrameEncoding;
+import io.singularitynet.projectmalmo.FrameHeaderFormat;
+import io.singularitynet.projectmalmo.VideoSendPolicy;
+import io.singularitynet.utils.InstanceTable;
+import io.singularitynet.utils.SharedMemoryFrameRing;
+import io.singularitynet.utils.TCPSocketChannel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.json.JSONObject;
+import org.lwjgl.BufferUtils;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Ships video frames to the agent from a dedicated thread, so that a slow agent
+ * never stalls the render thread on a socket write.
+ * <p>
+ * Frames live in a fixed pool of preallocated slots, each holding a direct pixel
+ * buffer. The render thread {@link #acquire}s a free slot, reads the frame
+ * straight into it, and {@link #submit}s it; the sender thread builds the header
+ * and writes it out, then returns the slot to the pool. When every slot is busy
+ * the {@link VideoSendPolicy} decides whether the oldest queued frame is dropped,
+ * the new frame is skipped, or the render thread waits.
+ */
+public class VideoFrameSender implements Runnable {
+    private static final Logger LOGGER = LogManager.getLogger(VideoFrameSender.class);
+    private static final long STOP_TIMEOUT_MS = 2000;
+    // Shared-memory transport: how often to check for a free slot, and how long to wait for one.
+    private static final long RING_POLL_NS = 200000L;
+    private static final long RING_WAIT_TIMEOUT_NS = 30000000000L;
+    // Room in each ring slot for the frame header, over and above the pixels.
+    private static final int RING_HEADER_ROOM = 8192;
+
+    /** A frame slot - pixel data plus everything needed to build its header. */
+    public static class Frame {
+        ByteBuffer pixels;
+        final VideoHook.FramePose pose = new VideoHook.FramePose();
+        int width;
+        int height;
+        int channels;
+        long seq;
+        long captureTimeNs;
+        long submitTimeNs;
+        // Set by the sender thread: one of the VideoFrameHeader.ENCODING_ values.
+        int encoding;
+        // Entities in an instance segmentation frame; empty otherwise.
+        final InstanceTable instances = new InstanceTable();
+
+        Frame(int capacity) {
+            this.pixels = BufferUtils.createByteBuffer(Math.max(1, capacity));
+        }
+
+        /** Returns a cleared pixel buffer of at least the given capacity, reallocating if required. */
+        public ByteBuffer ensureCapacity(int capacity) {
+            if (this.pixels.capacity() < capacity) {
+                this.pixels = BufferUtils.createByteBuffer(capacity);
+            }
+            this.pixels.clear();
+            return this.pixels;
+        }
+
+        public ByteBuffer getPixels() { return this.pixels; }
+
+        /** Attach a copy of the producer's instance table, or none if null. */
+        public void setInstances(InstanceTable table) { this.instances.copyFrom(table); }
+    }
+
+    private final VideoSendPolicy policy;
+    private final FrameHeaderFormat headerFormat;
+    private final FrameEncoding encoding;
+    // Only touched by the sender thread.
+    private ByteBuffer binaryHeader = VideoFrameHeader.allocate();
+    private RunLengthFrameEncoder runLengthEncoder;
+    private final TileDeltaEncoder deltaEncoder;
+    private ByteBuffer encoded;
+    private long nextSeq = 0;
+    private final String name;
+    private final VideoPipelineStats stats = new VideoPipelineStats();
+    private final ArrayDeque<Frame> free = new ArrayDeque<>();
+    private final ArrayDeque<Frame> queued = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition frameQueued = this.lock.newCondition();
+    private final Condition slotFreed = this.lock.newCondition();
+    private final int queueLength;
+    private volatile boolean running = false;
+    private Thread thread;
+
+    private volatile TCPSocketChannel connection;
+    // Shared-memory transport; ringDirectory is null when frames go over TCP. The ring
+    // itself is created, and announced to the agent, when the first frame is sent.
+    private Path ringDirectory;
+    private SharedMemoryFrameRing ring;
+    private int ringGeneration = 0;
+
+    // Counters - written by the sender thread (or under the lock), read by anyone.
+    private volatile int failedSendCount = 0;
+    private volatile long retryTimeNs = 0;
+    private volatile long framesSent = 0;
+    private volatile long framesQueued = 0;
+    private volatile long framesDropped = 0;
+    private volatile long timeOfFirstFrame = 0;
+    private volatile long timeOfLastFrame = 0;
+
+    /**
+     * @param connection the channel frames are written to.
+     * @param policy what to do when all slots are busy.
+     * @param headerFormat header sent ahead of each frame's pixels.
+     * @param encoding how the pixels are encoded before sending.
+     * @param keyframeInterval with FrameEncoding.DELTA, the most frames between keyframes.
+     * @param queueLength number of frames that may wait to be sent.
+     * @param initialCapacity initial size, in bytes, of each slot's pixel buffer.
+     * @param name name used for the thread and in log messages.
+     */
+    public VideoFrameSender(TCPSocketChannel connection, VideoSendPolicy policy, FrameHeaderFormat headerFormat, FrameEncoding encoding, int keyframeInterval, int queueLength, int initialCapacity, String name) {
+        this.connection = connection;
+        this.policy = policy != null ? policy : VideoSendPolicy.DROP_OLDEST;
+        this.headerFormat = headerFormat != null ? headerFormat : FrameHeaderFormat.JSON;
+        this.encoding = encoding != null ? encoding : FrameEncoding.RAW;
+        this.deltaEncoder = this.encoding == FrameEncoding.DELTA ? new TileDeltaEncoder(keyframeInterval) : null;
+        this.queueLength = Math.max(1, queueLength);
+        this.name = name;
+        // One slot being filled by the render thread and one being written, plus the queue itself.
+        for (int i = 0; i < this.queueLength + 2; i++) {
+            this.free.add(new Frame(initialCapacity));
+        }
+    }
+
+    /**
+     * Write frames into a memory-mapped ring in the given directory instead of the socket.
+     * The socket is then only used to tell the agent where the ring is. Call before {@link #start}.
+     */
+    public void useSharedMemory(Path directory) {
+        this.ringDirectory = directory;
+    }
+
+    public void start() {
+        this.running = true;
+        this.thread = new Thread(this, "VideoSender-" + this.name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Stop the sender thread, abandoning any frames still queued, and close the connection.
+     */
+    public void stop() {
+        this.lock.lock();
+        try {
+            this.running = false;
+            this.frameQueued.signalAll();
+            this.slotFreed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        // Closing the channel unblocks a write in progress.
+        this.connection.close();
+        if (this.thread != null) {
+            try {
+                this.thread.join(STOP_TIMEOUT_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            this.thread = null;
+        }
+        if (this.ring != null) {
+            this.ring.close();
+            this.ring = null;
+        }
+    }
+
+    /**
+     * Take a slot for the render thread to read the next frame into.
+     *
+     * @return a free slot, or null if the frame should not be captured (policy is dropNewest and
+     * every slot is busy, or the sender has been stopped).
+     */
+    public Frame acquire() {
+        this.lock.lock();
+        try {
+            while (this.running) {
+                Frame frame = this.free.pollFirst();
+                if (frame != null) {
+                    return frame;
+                }
+                switch (this.policy) {
+                    case DROP_OLDEST:
+                        frame = this.queued.pollFirst();
+                        if (frame != null) {
+                            this.framesDropped++;
+                            return frame;
+                        }
+                        // Nothing queued - every other slot is in flight; wait for one.
+                        break;
+                    case DROP_NEWEST:
+                        this.framesDropped++;
+                        return null;
+                    default:
+                        break;
+                }
+                this.slotFreed.awaitUninterruptibly();
+            }
+            return null;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Hand a filled slot over to the sender thread. */
+    public void submit(Frame frame) {
+        this.lock.lock();
+        try {
+            frame.seq = this.nextSeq++;
+            frame.submitTimeNs = System.nanoTime();
+            this.queued.addLast(frame);
+            this.framesQueued++;
+            this.frameQueued.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Return a slot to the pool without sending it. */
+    public void release(Frame frame) {
+        this.lock.lock();
+        try {
+            this.free.addLast(frame);
+            this.slotFreed.signal();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Number of frames currently waiting to be sent. */
+    public int getPendingCount() {
+        this.lock.lock();
+        try {
+            return this.queued.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    public int getQueueLength() { return this.queueLength; }
+
+    public int getFailedSendCount() { return this.failedSendCount; }
+
+    /** System.nanoTime() before which the render thread should not bother capturing frames. */
+    public long getRetryTimeNs() { return this.retryTimeNs; }
+
+    public long getFramesSent() { return this.framesSent; }
+
+    public long getFramesQueued() { return this.framesQueued; }
+
+    public long getFramesDropped() { return this.framesDropped; }
+
+    public long getTimeOfFirstFrame() { return this.timeOfFirstFrame; }
+
+    public long getTimeOfLastFrame() { return this.timeOfLastFrame; }
+
+    /** Latency histograms for this stream; the render thread records its own stages here too. */
+    public VideoPipelineStats getStats() { return this.stats; }
+
+    @Override
+    public void run() {
+        while (true) {
+            Frame frame;
+            this.lock.lock();
+            try {
+                while (this.running && this.queued.isEmpty()) {
+                    this.frameQueued.awaitUninterruptibly();
+                }
+                if (!this.running) {
+                    return;
+                }
+                frame = this.queued.pollFirst();
+            } finally {
+                this.lock.unlock();
+            }
+            this.stats.record(VideoPipelineStats.Stage.QUEUE, System.nanoTime() - frame.submitTimeNs);
+            try {
+                send(frame);
+            } finally {
+                release(frame);
+            }
+        }
+    }
+
+    private void send(Frame frame) {
+        boolean success = false;
+        try {
+            if (!awaitRingRoom()) {
+                // The agent hasn't freed a slot and the policy says not to wait for it.
+                this.lock.lock();
+                try {
+                    this.framesDropped++;
+                } finally {
+                    this.lock.unlock();
+                }
+                return;
+            }
+            long start = System.nanoTime();
+            ByteBuffer payload = encode(frame);
+            int frame_buf_len = payload.remaining();
+            ByteBuffer[] buffers;
+            int length;
+            if (this.headerFormat == FrameHeaderFormat.BINARY) {
+                this.binaryHeader = VideoFrameHeader.write(this.binaryHeader, frame, System.currentTimeMillis());
+                buffers = new ByteBuffer[]{this.binaryHeader, payload};
+                length = this.binaryHeader.remaining() + frame_buf_len;
+            } else {
+                buffers = jsonHeader(frame, payload);
+                length = buffers[0].remaining() + buffers[1].remaining() + frame_buf_len;
+            }
+            long built = System.nanoTime();
+            this.stats.record(VideoPipelineStats.Stage.HEADER, built - start);
+            success = deliver(buffers, length);
+            if (success)
+                this.stats.record(VideoPipelineStats.Stage.WRITE, System.nanoTime() - built);
+        } catch (Exception e) {
+            LOGGER.warn("{}: failed to send frame", this.name, e);
+        }
+
+        if (this.deltaEncoder != null) {
+            // Only a frame the agent has received can be the reference for the next delta.
+            if (success)
+                this.deltaEncoder.commit();
+            else
+                this.deltaEncoder.reset();
+        }
+        if (success) {
+            this.failedSendCount = 0;    // Reset count of failed sends.
+            this.timeOfLastFrame = System.currentTimeMillis();
+            if (this.timeOfFirstFrame == 0)
+                this.timeOfFirstFrame = this.timeOfLastFrame;
+            this.framesSent++;
+            return;
+        }
+
+        LOGGER.info("{}: failed to send frame - will retry in {} seconds", this.name, VideoHook.RETRY_GAP_NS / 1000000000L);
+        this.retryTimeNs = System.nanoTime() + VideoHook.RETRY_GAP_NS;
+        this.failedSendCount++;
+        // Anything already queued would hit the same failure; give the slots back.
+        this.lock.lock();
+        try {
+            while (!this.queued.isEmpty()) {
+                this.free.addLast(this.queued.pollFirst());
+                this.framesDropped++;
+            }
+            this.slotFreed.signalAll();
+        } finally {
+            this.lock.unlock();
+        }
+        TCPSocketChannel current = this.connection;
+        if (this.running && current.exception != null) {
+            LOGGER.info("{}: reconnecting", this.name);
+            this.connection = new TCPSocketChannel(current.getAddress(), current.getPort(), "vid");
+            if (this.ring != null) {
+                // The new connection needs telling about a ring; start a fresh one.
+                this.ring.close();
+                this.ring = null;
+            }
+        }
+    }
+
+    /**
+     * The bytes to send for this frame's pixels, encoded if the producer asked for it (and, for
+     * run-length encoding, if that makes them smaller). Sets frame.encoding to match.
+     */
+    private ByteBuffer encode(Frame frame) {
+        ByteBuffer raw = frame.pixels.duplicate();
+        raw.position(0);
+        frame.encoding = VideoFrameHeader.ENCODING_RAW;
+        if (this.encoding == FrameEncoding.DELTA) {
+            int maxBytes = TileDeltaEncoder.maxEncodedSize(frame.width, frame.height, frame.channels);
+            if (this.encoded == null || this.encoded.capacity() < maxBytes)
+                this.encoded = BufferUtils.createByteBuffer(maxBytes);
+            this.deltaEncoder.encode(raw, frame.width, frame.height, frame.channels, frame.seq, this.encoded);
+            frame.encoding = VideoFrameHeader.ENCODING_DELTA;
+            return this.encoded.duplicate();
+        }
+        if (this.encoding != FrameEncoding.RLE)
+            return raw;
+        int rawBytes = raw.remaining();
+        if (this.runLengthEncoder == null)
+            this.runLengthEncoder = new RunLengthFrameEncoder();
+        if (this.encoded == null || this.encoded.capacity() < rawBytes)
+            this.encoded = BufferUtils.createByteBuffer(rawBytes);
+        int length = this.runLengthEncoder.encode(raw, frame.width * frame.height, frame.channels, this.encoded, rawBytes);
+        if (length < 0)
+            return raw;
+        frame.encoding = VideoFrameHeader.ENCODING_RLE;
+        return this.encoded.duplicate();
+    }
+
+    /** Write one complete frame to whichever transport is in use. */
+    private boolean deliver(ByteBuffer[] buffers, int length) throws IOException {
+        if (this.ringDirectory == null)
+            return this.connection.sendTCPBytes(buffers, length);
+        if (this.ring == null || !this.ring.canHold(length))
+            openRing(length);
+        return this.ring.write(buffers, length);
+    }
+
+    /**
+     * Wait for the agent to free a ring slot, if the policy allows.
+     *
+     * @return false if the frame should be dropped instead.
+     */
+    private boolean awaitRingRoom() throws IOException {
+        if (this.ring == null)
+            return true;
+        long deadline = System.nanoTime() + RING_WAIT_TIMEOUT_NS;
+        while (!this.ring.hasRoom()) {
+            if (this.policy != VideoSendPolicy.BLOCK || !this.running)
+                return false;
+            if (System.nanoTime() > deadline)
+                throw new IOException("agent has not read from the shared memory ring for " + (RING_WAIT_TIMEOUT_NS / 1000000000L) + " seconds");
+            LockSupport.parkNanos(RING_POLL_NS);
+        }
+        return true;
+    }
+
+    /**
+     * (Re)create the ring with slots big enough for frames of about this size, and tell the
+     * agent where to find it.
+     */
+    private void openRing(int frameBytes) throws IOException {
+        if (this.ring != null)
+            this.ring.close();
+        this.ring = null;
+        this.ringGeneration++;
+        Path path = this.ringDirectory.resolve("vereya-" + ProcessHandle.current().pid() + "-" + this.name + "-" + this.ringGeneration + ".ring");
+        // Leave some headroom so that a slightly larger window doesn't force another ring straight away.
+        SharedMemoryFrameRing newRing = new SharedMemoryFrameRing(path, this.queueLength + 1, frameBytes + frameBytes / 4 + RING_HEADER_ROOM);
+        JSONObject announcement = new JSONObject();
+        announcement.put("sharedMemory", path.toString());
+        announcement.put("version", SharedMemoryFrameRing.VERSION);
+        announcement.put("slots", newRing.getSlotCount());
+        announcement.put("slotSize", newRing.getSlotSize());
+        if (!this.connection.sendTCPString(announcement.toString())) {
+            newRing.close();
+            throw new IOException("failed to announce shared memory ring " + path);
+        }
+        LOGGER.info("{}: sending frames through shared memory ring {}", this.name, path);
+        this.ring = newRing;
+    }
+
+    /** The original header: a big-endian length followed by a JSON object, then the payload. */
+    private ByteBuffer[] jsonHeader(Frame frame, ByteBuffer payload) {
+        Map<String, Number> header_map = new HashMap<>();
+        header_map.put("x", frame.pose.x);
+        header_map.put("y", frame.pose.y);
+        header_map.put("z", frame.pose.z);
+        header_map.put("yaw", frame.pose.yaw);
+        header_map.put("pitch", frame.pose.pitch);
+        header_map.put("img_width", frame.width);
+        header_map.put("img_height", frame.height);
+        header_map.put("img_ch", frame.channels);
+        JSONObject jo_header = new JSONObject(header_map);
+        if (frame.encoding == VideoFrameHeader.ENCODING_RLE)
+            jo_header.put("encoding", "rle");
+        else if (frame.encoding == VideoFrameHeader.ENCODING_DELTA)
+            jo_header.put("encoding", "delta");
+        if (frame.instances.size() > 0)
+            jo_header.put("instances", frame.instances.toJson());
+        jo_header.append("projectionMatrix", frame.pose.projection);
+        jo_header.append("modelViewMatrix", frame.pose.modelview);
+        byte[] jo_bytes = jo_header.toString().getBytes(StandardCharsets.UTF_8);
+        int jo_len = jo_bytes.length;
+        ByteBuffer jo_len_buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(jo_len);
+        jo_len_buffer.flip();
+        return new ByteBuffer[]{jo_len_buffer, ByteBuffer.wrap(jo_bytes), payload};
+    }
+}
@@ -6,8 +6,13 @@ import io.singularitynet.MissionHandlerInterfaces.IVideoProducer;
 import io.singularitynet.projectmalmo.ClientAgentConnection;
 import io.singularitynet.projectmalmo.MissionDiagnostics;
 import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.projectmalmo.RenderTarget;
+import io.singularitynet.projectmalmo.VideoTransport;
 import io.singularitynet.utils.AddressHelper;
+import io.singularitynet.utils.MultiplexedConnection;
+import io.singularitynet.utils.OffscreenRenderTarget;
 import io.singularitynet.utils.TCPSocketChannel;
+import io.singularitynet.utils.TextureHelper;
 import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderContext;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gl.Framebuffer;
@@ -15,18 +20,11 @@ import net.minecraft.client.network.ClientPlayerEntity;
 import net.minecraft.client.util.Window;
 import net.minecraft.util.math.Vec3d;
 import org.apache.logging.log4j.LogManager;
-import org.lwjgl.BufferUtils;
-import org.json.*;
-
-import static org.lwjgl.opengl.GL11.*;
+import org.json.JSONObject;
 
 import java.math.BigDecimal;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.FloatBuffer;
-import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.Paths;
 
 
 /**
@@ -37,25 +35,11 @@ import java.util.Map;
  */
 public class VideoHook {
 
-    private static FloatBuffer createDirectFloatBuffer(int number){
-        ByteBuffer vbb = ByteBuffer.allocateDirect(number * 4);
-        vbb.order(ByteOrder.nativeOrder());
-        FloatBuffer fb = vbb.asFloatBuffer();
-        return fb;
-    }
-
-    public static final FloatBuffer projection = createDirectFloatBuffer(16);
-    public static final FloatBuffer modelview = createDirectFloatBuffer(16);
     /**
      * If the sockets are not yet open we delay before retrying. Value is in
      * nanoseconds.
      */
-    private static final long RETRY_GAP_NS = 5000000000L;
-
-    /**
-     * The time in nanoseconds after which we should try sending again.
-     */
-    private long retry_time_ns = 0;
+    static final long RETRY_GAP_NS = 5000000000L;
 
 
     private Framebuffer framebuffer = MinecraftClient.getInstance().getFramebuffer();
@@ -64,7 +48,10 @@ public class VideoHook {
      */
     private boolean isRunning = false;
 
-    private String tictac = "tic";
+    /**
+     * Decides which rendered frames are captured and sent.
+     */
+    private FrameRateController frameRate;
 
     /**
      * MissionInit object for passing to the IVideoProducer.
@@ -77,14 +64,9 @@ public class VideoHook {
     private IVideoProducer videoProducer;
 
     /**
-     * Public count of consecutive TCP failures - used to terminate a mission if nothing is listening
+     * Owns our connection to the agent and writes frames to it from its own thread.
      */
-    public int failedTCPSendCount = 0;
-
-    /**
-     * Object which maintains our connection to the agent.
-     */
-    private TCPSocketChannel connection = null;
+    private volatile VideoFrameSender sender = null;
 
     private int renderWidth;
     private int renderHeight;
@@ -93,19 +75,64 @@ public class VideoHook {
 
     private int texChannels = 4;
 
-    ByteBuffer buffer;
+    // True if the mission renders the world offscreen rather than into the window.
+    private boolean offscreen = false;
+
+    // System.nanoTime() at the start of the current render tick, for the render stage latency.
+    private long renderStartNs = 0;
+
+    // Set at the start of a render tick whose frame is to be captured, cleared once it is.
+    private boolean captureDue = false;
+    // For a colour map: segmentation pass count when the pass for the due capture was requested.
+    private long segmentationPassMark = -1;
+    private int segmentationWaits = 0;
+
     // check also Malmo/src/TimestampedVideoFrame.h
 
-    // For diagnostic purposes:
-    private long timeOfFirstFrame = 0;
-    private long timeOfLastFrame = 0;
-    private long framesSent = 0;
+    /**
+     * Camera pose and matrices captured alongside a frame readback. Producers with
+     * asynchronous readback return pixels a few captures late, so we keep a small ring
+     * of poses and send the one that was current when those pixels were rendered.
+     */
+    static class FramePose {
+        float x;
+        float y;
+        float z;
+        float yaw;
+        float pitch;
+        final float[] projection = new float[16];
+        final float[] modelview = new float[16];
+
+        void copyFrom(FramePose other) {
+            this.x = other.x;
+            this.y = other.y;
+            this.z = other.z;
+            this.yaw = other.yaw;
+            this.pitch = other.pitch;
+            System.arraycopy(other.projection, 0, this.projection, 0, 16);
+            System.arraycopy(other.modelview, 0, this.modelview, 0, 16);
+        }
+    }
+
+    private static final int POSE_RING_SIZE = 4;
+    // One pose per readback issued; sized in start() to cover the producer's latency.
+    private FramePose[] poses = new FramePose[0];
+    private int poseIndex = 0;
+
     private VideoProducedObserver observer;
 
+    /**
+     * Where captured frames are also written to disk, or null if the mission isn't recorded.
+     */
+    private MissionRecorder.FrameStream recording = null;
+
     /**
      * Resize the rendering and start sending video over TCP.
+     *
+     * @param recorder if not null, captured frames are recorded through it too.
+     * @param multiplexer if not null, frames are sent on a channel of this rather than to the producer's port.
      */
-    public void start(MissionInit missionInit, IVideoProducer videoProducer, VideoProducedObserver observer)
+    public void start(MissionInit missionInit, IVideoProducer videoProducer, VideoProducedObserver observer, MissionRecorder recorder, MultiplexedConnection multiplexer)
     {
         if (videoProducer == null)
         {
@@ -113,30 +140,38 @@ public class VideoHook {
         }
 
         videoProducer.prepare(missionInit);
+        this.poses = new FramePose[Math.max(POSE_RING_SIZE, videoProducer.getFrameLatency() + 1)];
+        for (int i = 0; i < this.poses.length; i++)
+            this.poses[i] = new FramePose();
+        this.poseIndex = 0;
         this.missionInit = missionInit;
         this.videoProducer = videoProducer;
         this.observer = observer;
-        // Choose channel count per video type and size the buffer for producer dims.
-        switch (videoProducer.getVideoType()) {
-            case COLOUR_MAP:
-                this.texChannels = 3; // BGR for segmentation
-                break;
-            case DEPTH_MAP:
-                this.texChannels = 2; // 2-byte depth encoding (uint16 per pixel)
-                break;
-            default:
-                this.texChannels = 4; // BGRA for standard video
-                break;
+        // Bytes per pixel, eg BGRA video, BGR(A) colour map, uint16 depth, 8-bit luminance.
+        this.texChannels = videoProducer.getChannels();
+        ClientAgentConnection cac = missionInit.getClientAgentConnection();
+        this.offscreen = cac != null && cac.getRenderTarget() == RenderTarget.OFFSCREEN;
+        if (this.offscreen) {
+            // Render at the producer's size whatever the window does. Producers that don't scale
+            // on the GPU all share one size, the first one asked for (enable() warns about any
+            // other); a scaling producer only picks the size if nobody has.
+            this.renderWidth = 0;
+            this.renderHeight = 0;
+            if (!videoProducer.isScaledOnGpu() || !OffscreenRenderTarget.isActive())
+                OffscreenRenderTarget.enable(videoProducer.getRequestedWidth(), videoProducer.getRequestedHeight());
+        } else if (!videoProducer.isScaledOnGpu()) {
+            this.renderWidth = videoProducer.getWidth();
+            this.renderHeight = videoProducer.getHeight();
+        } else {
+            // The producer scales on the GPU; leave the window alone.
+            this.renderWidth = 0;
+            this.renderHeight = 0;
         }
         int initW = Math.max(1, videoProducer.getWidth());
         int initH = Math.max(1, videoProducer.getHeight());
-        this.buffer = BufferUtils.createByteBuffer(initW * initH * this.texChannels);
-        this.renderWidth = videoProducer.getWidth();
-        this.renderHeight = videoProducer.getHeight();
         resizeIfNeeded();
         // Display.setResizable(false); // prevent the user from resizing using the window borders
 
-        ClientAgentConnection cac = missionInit.getClientAgentConnection();
         if (cac == null)
             return;	// Don't start up if we don't have any connection details.
 
@@ -156,10 +191,28 @@ public class VideoHook {
             case COLOUR_MAP:
                 agentPort = cac.getAgentColourMapPort();
                 break;
+            case MULTIMODAL:
+                agentPort = cac.getAgentMultimodalPort() != null ? cac.getAgentMultimodalPort() : cac.getAgentVideoPort();
+                break;
         }
 
-        this.connection = new TCPSocketChannel(agentIPAddress, agentPort, "vid");
-        this.failedTCPSendCount = 0;
+        TCPSocketChannel connection;
+        if (multiplexer != null)
+            connection = multiplexer.openChannel("vid-" + videoProducer.getVideoType(), MultiplexedConnection.PRIORITY_VIDEO, 0);
+        else
+            connection = new TCPSocketChannel(agentIPAddress, agentPort, "vid");
+        this.sender = new VideoFrameSender(connection, cac.getVideoSendPolicy(), cac.getVideoFrameHeader(), videoProducer.getEncoding(), videoProducer.getKeyframeInterval(),
+                cac.getVideoQueueLength(), initW * initH * this.texChannels, videoProducer.getVideoType().toString());
+        if (cac.getVideoTransport() == VideoTransport.SHARED_MEMORY) {
+            String dir = cac.getSharedMemoryDirectory();
+            this.sender.useSharedMemory(Paths.get(dir != null && !dir.isEmpty() ? dir : System.getProperty("java.io.tmpdir")));
+        }
+        this.sender.start();
+        this.recording = recorder != null ? recorder.addStream(videoProducer.getVideoType(), initW * initH * this.texChannels) : null;
+        this.frameRate = new FrameRateController(videoProducer.getFrameInterval(), videoProducer.getTargetFps(),
+                videoProducer.getVideoType().toString());
+        this.captureDue = false;
+        this.segmentationPassMark = -1;
         this.isRunning = true;
     }
 
@@ -219,9 +272,12 @@ public class VideoHook {
         {
             System.out.println("Failed to unregister video hook: " + e);
         } */
-        // Close our TCP socket:
-        this.connection.close();
+        // Stop the sender thread and close our TCP socket:
+        this.sender.stop();
+        this.recording = null;
         this.isRunning = false;
+        if (this.offscreen)
+            OffscreenRenderTarget.disable();
 
         // allow the user to resize the window again
         // Display.setResizable(true);
@@ -231,11 +287,17 @@ public class VideoHook {
         {
             MissionDiagnostics.VideoData vd = new MissionDiagnostics.VideoData();
             vd.setFrameType(this.videoProducer.getVideoType().toString());
-            vd.setFramesSent((int) this.framesSent);
-            if (this.timeOfLastFrame == this.timeOfFirstFrame)
+            long framesSent = this.sender.getFramesSent();
+            long timeOfFirstFrame = this.sender.getTimeOfFirstFrame();
+            long timeOfLastFrame = this.sender.getTimeOfLastFrame();
+            vd.setFramesSent((int) framesSent);
+            vd.setFramesQueued((int) this.sender.getFramesQueued());
+            vd.setFramesDropped((int) this.sender.getFramesDropped());
+            if (timeOfLastFrame == timeOfFirstFrame)
                 vd.setAverageFpsSent(new BigDecimal(0));
             else
-                vd.setAverageFpsSent(new BigDecimal(1000.0 * this.framesSent / (this.timeOfLastFrame - this.timeOfFirstFrame)));
+                vd.setAverageFpsSent(new BigDecimal(1000.0 * framesSent / (timeOfLastFrame - timeOfFirstFrame)));
+            this.sender.getStats().addTo(vd.getLatency());
             diags.getVideoData().add(vd);
         }
     }
@@ -248,35 +310,24 @@ public class VideoHook {
      */
 
     public void onRenderStart(WorldRenderContext event) {
+        // The segmentation pass is a nested world render; its events are not frames of their own.
+        if (TextureHelper.colourmapFrame)
+            return;
+        this.renderStartNs = System.nanoTime();
+        // Decide now rather than after the render, so that a producer with a colour map only
+        // gets the segmentation pass rendered for frames that will actually be captured.
+        if (this.isRunning && !this.captureDue && this.frameRate.shouldCapture(this.renderStartNs)) {
+            this.captureDue = true;
+            if (this.videoProducer.needsSegmentationPass()) {
+                this.segmentationPassMark = TextureHelper.requestSegmentationPass();
+                this.segmentationWaits = 0;
+            }
+        }
         // this is here in case the user has resized the window during a mission
         // but currently we allow resizing
         // resizeIfNeeded();
     }
 
-    private static int pack(int x, int y) {
-        return y * 4 + x;
-    }
-
-
-    public void readColumnMajor(float[] float_arr, FloatBuffer buf) {
-        float_arr[0] = buf.get(pack(0, 0));
-        float_arr[1] = buf.get(pack(0, 1));
-        float_arr[2] = buf.get(pack(0, 2));
-        float_arr[3] = buf.get(pack(0, 3));
-        float_arr[4] = buf.get(pack(1, 0));
-        float_arr[5] = buf.get(pack(1, 1));
-        float_arr[6] = buf.get(pack(1, 2));
-        float_arr[7] = buf.get(pack(1, 3));
-        float_arr[8] = buf.get(pack(2, 0));
-        float_arr[9] = buf.get(pack(2, 1));
-        float_arr[10] = buf.get(pack(2, 2));
-        float_arr[11] = buf.get(pack(2, 3));
-        float_arr[12] = buf.get(pack(3, 0));
-        float_arr[13] = buf.get(pack(3, 1));
-        float_arr[14] = buf.get(pack(3, 2));
-        float_arr[15] = buf.get(pack(3, 3));
-    }
-
     /**
      * Called when the world has been rendered but not yet the GUI or player hand.
      *
@@ -289,17 +340,14 @@ public class VideoHook {
         // only the colourmap videoproducer needs to do anything.
         /*
         boolean colourmapFrame = TextureHelper.colourmapFrame;
-        boolean colourmapVideoProducer = this.videoProducer.getVideoType() == IVideoProducer.VideoType.COLOUR_MAP;
+        boolean colourmapVideoProducer = this.videoProducer.needsSegmentationPass();
         if (colourmapFrame != colourmapVideoProducer)
             return;*/
 
+        if (TextureHelper.colourmapFrame)
+            return;
+
         ClientPlayerEntity player = MinecraftClient.getInstance().player;
-        Vec3d pos = player.getPos();
-        float x = (float) pos.getX();
-        float y = (float) pos.getX();
-        float z = (float) pos.getX();
-        float yaw = player.getYaw();
-        float pitch = player.getPitch();
         /*
         float yaw = player.prevRotationYaw + (player.rotationYaw - player.prevRotationYaw) * event.getPartialTicks();
         float pitch = player.prevRotationPitch + (player.rotationPitch - player.prevRotationPitch) * event.getPartialTicks();*/
@@ -309,95 +357,164 @@ public class VideoHook {
         if (observer != null)
             observer.frameProduced();
 
-        if (time_now < retry_time_ns)
+        if (!this.isRunning)
+            return;
+        // While the sender waits to reconnect, frames are still captured for the recording.
+        boolean sending = time_now >= this.sender.getRetryTimeNs();
+        if (!sending && this.recording == null)
             return;
 
-        boolean success = false;
+        if (AddressHelper.getMissionControlPort() == 0)
+            return;
 
-        long time_after_render_ns = 0;
+        // Decided in onRenderStart, so that skipped frames cost nothing.
+        if (!this.captureDue)
+            return;
+        // The segmentation pass may run after this event; if so, capture at the next one.
+        // Should it not have run by then either, drop the capture rather than send a stale map.
+        if (this.segmentationPassMark >= 0 && TextureHelper.getSegmentationPassCount() <= this.segmentationPassMark) {
+            if (++this.segmentationWaits > 1) {
+                this.captureDue = false;
+                this.segmentationPassMark = -1;
+            }
+            return;
+        }
+        this.captureDue = false;
+        this.segmentationPassMark = -1;
+        this.frameRate.onQueueState(this.sender.getPendingCount(), this.sender.getQueueLength());
 
+        VideoFrameSender.Frame frame = null;
+        // True if frame is a slot of the recorder's rather than the sender's.
+        boolean recorderSlot = false;
         try
         {
-            if (AddressHelper.getMissionControlPort() == 0 || tictac.equals("tac")) {
-                tictac = "tic";
-                success = true;
-                time_after_render_ns = System.nanoTime();
-            } else {
-                tictac = "tac";
-                Map<String, Number> header_map = new HashMap<>();
-                this.buffer.clear();
-                header_map.put("x", x);
-                header_map.put("y", y);
-                header_map.put("z", z);
-                header_map.put("yaw", yaw);
-                header_map.put("pitch", pitch);
-                glGetFloatv(GL_PROJECTION_MATRIX, projection);
-                glGetFloatv(GL_MODELVIEW_MATRIX, modelview);
-                int[] sizes = this.videoProducer.writeFrame(this.missionInit, this.buffer);
-                int imgW = Math.max(1, sizes[0]);
-                int imgH = Math.max(1, sizes[1]);
-                int requiredLen = imgW * imgH * this.texChannels;
-                if (this.buffer.capacity() < requiredLen) {
-                    this.buffer = BufferUtils.createByteBuffer(requiredLen);
-                    // Re-fetch frame into newly sized buffer
-                    sizes = this.videoProducer.writeFrame(this.missionInit, this.buffer);
-                    imgW = Math.max(1, sizes[0]);
-                    imgH = Math.max(1, sizes[1]);
-                    requiredLen = imgW * imgH * this.texChannels;
-                }
-                this.buffer.limit(requiredLen);
-                header_map.put("img_width", imgW);
-                header_map.put("img_height", imgH);
-                header_map.put("img_ch", this.texChannels);
-                JSONObject jo_header = new JSONObject(header_map);
-                float[] proj_floats = new float[16];
-                float[] modelview_floats = new float[16];
-                readColumnMajor(proj_floats, projection.asReadOnlyBuffer());
-                readColumnMajor(modelview_floats, modelview.asReadOnlyBuffer());
-                jo_header.append("projectionMatrix", proj_floats);
-                jo_header.append("modelViewMatrix", modelview_floats);
-                byte[] jo_bytes = jo_header.toString().getBytes(StandardCharsets.UTF_8);
-                int jo_len = jo_bytes.length;
-                time_after_render_ns = System.nanoTime();
-                if (this.buffer != null) {
-                    ByteBuffer jo_len_buffer = ByteBuffer.allocate(4).order(ByteOrder.BIG_ENDIAN).putInt(jo_len);
-                    jo_len_buffer.flip();
-                    int frame_buf_len = this.buffer.remaining();
-                    ByteBuffer payload = this.buffer.slice();
-                    payload.limit(frame_buf_len);
-                    ByteBuffer[] buffers = {jo_len_buffer, ByteBuffer.wrap(jo_bytes), payload};
-                    success = this.connection.sendTCPBytes(buffers, jo_len + frame_buf_len + 4);
-                }
+            // Record the pose for this capture; with asynchronous readback the pixels we get
+            // back below belong to an earlier capture, so look its pose up in the ring.
+            FramePose captured = this.poses[this.poseIndex];
+            Vec3d pos = player.getPos();
+            captured.x = (float) pos.getX();
+            captured.y = (float) pos.getY();
+            captured.z = (float) pos.getZ();
+            captured.yaw = player.getYaw();
+            captured.pitch = player.getPitch();
+            // The matrices the world was rendered with, column-major; asking GL for them would
+            // stall, and the fixed-function matrices aren't what a core profile renders with.
+            event.projectionMatrix().get(captured.projection);
+            event.positionMatrix().get(captured.modelview);
+            int capturedIndex = this.poseIndex;
+
+            VideoPipelineStats stats = this.sender.getStats();
+            if (this.renderStartNs != 0)
+                stats.record(VideoPipelineStats.Stage.RENDER, time_now - this.renderStartNs);
+
+            // Take a free slot from the sender; null means the policy wants this frame skipped.
+            // A frame the agent won't get is still recorded, read straight into a recorder slot.
+            long acquireStart = System.nanoTime();
+            frame = sending ? this.sender.acquire() : null;
+            long enqueueNs = System.nanoTime() - acquireStart;
+            if (frame == null) {
+                if (this.recording == null)
+                    return;
+                frame = this.recording.acquire();
+                if (frame == null)
+                    return;
+                recorderSlot = true;
             }
 
-            long time_after_ns = System.nanoTime();
-            float ms_send = (time_after_ns - time_after_render_ns) / 1000000.0f;
-            float ms_render = (time_after_render_ns - time_now) / 1000000.0f;
-            if (success)
-            {
-                this.failedTCPSendCount = 0;    // Reset count of failed sends.
-                this.timeOfLastFrame = System.currentTimeMillis();
-                if (this.timeOfFirstFrame == 0)
-                    this.timeOfFirstFrame = this.timeOfLastFrame;
-                this.framesSent++;
-                //            System.out.format("Total: %.2fms; collecting took %.2fms; sending %d bytes took %.2fms\n", ms_send + ms_render, ms_render, size, ms_send);
-                //            System.out.println("Collect: " + ms_render + "; Send: " + ms_send);
+            // Size the buffer up front so that asynchronous producers never have to re-read.
+            int expectedLen = Math.max(1, this.videoProducer.getWidth()) * Math.max(1, this.videoProducer.getHeight()) * this.texChannels;
+            ByteBuffer buffer = frame.ensureCapacity(expectedLen);
+            long readbackStart = System.nanoTime();
+            int[] sizes;
+            try {
+                sizes = this.videoProducer.writeFrame(this.missionInit, buffer);
+            } finally {
+                // A readback was issued for this pose, so the ring moves on in step with the
+                // producer's pipeline - but only then, not for frames skipped before this point.
+                this.poseIndex = (capturedIndex + 1) % this.poses.length;
             }
+            int latency = Math.min(this.poses.length - 1, Math.max(0, this.videoProducer.getFrameLatency()));
+            FramePose pose = this.poses[(capturedIndex + this.poses.length - latency) % this.poses.length];
+            if (sizes[0] <= 0 || sizes[1] <= 0) {
+                // Asynchronous readback still filling its pipeline - nothing to send yet. (A frame
+                // that didn't fit comes back with its size instead, and is collected below.)
+                return;
+            }
+            int imgW = Math.max(1, sizes[0]);
+            int imgH = Math.max(1, sizes[1]);
+            int requiredLen = imgW * imgH * this.texChannels;
+            if (buffer.capacity() < requiredLen) {
+                buffer = frame.ensureCapacity(requiredLen);
+                // Re-fetch frame into newly sized buffer; an asynchronous producer hands over the
+                // read it couldn't deliver just now rather than issuing another.
+                sizes = this.videoProducer.writeFrame(this.missionInit, buffer);
+                if (sizes[0] <= 0 || sizes[1] <= 0)
+                    return;
+                imgW = Math.max(1, sizes[0]);
+                imgH = Math.max(1, sizes[1]);
+                requiredLen = imgW * imgH * this.texChannels;
+            }
+            stats.record(VideoPipelineStats.Stage.READBACK, System.nanoTime() - readbackStart);
+            buffer.position(0);
+            buffer.limit(requiredLen);
+            frame.width = imgW;
+            frame.height = imgH;
+            frame.channels = this.texChannels;
+            frame.captureTimeNs = time_now;
+            frame.pose.copyFrom(pose);
+            frame.setInstances(this.videoProducer.getInstanceTable());
+            if (recorderSlot) {
+                frame = null;
+                this.recording.submit();
+                return;
+            }
+            // Copied into a slot of the recorder's own, if it has one free; never waits for the disk.
+            if (this.recording != null)
+                this.recording.record(frame);
+            // The header is built and the frame written out on the sender thread.
+            long submitStart = System.nanoTime();
+            this.sender.submit(frame);
+            frame = null;
+            stats.record(VideoPipelineStats.Stage.ENQUEUE, enqueueNs + System.nanoTime() - submitStart);
         }
         catch (Exception e)
         {
-            System.out.format(e.getMessage());
+            LogManager.getLogger().warn("Failed to capture video frame", e);
         }
-
-        if (!success) {
-            System.out.format("Failed to send frame - will retry in %d seconds\n", RETRY_GAP_NS / 1000000000L);
-            if (this.connection.exception != null){
-                System.out.println("reconnecting");
-                this.connection = new TCPSocketChannel(connection.getAddress(), connection.getPort(), "vid");
+        finally
+        {
+            if (frame != null) {
+                if (recorderSlot)
+                    this.recording.release();
+                else
+                    this.sender.release(frame);
             }
-
-            retry_time_ns = time_now + RETRY_GAP_NS;
-            this.failedTCPSendCount++;
         }
     }
+
+    /**
+     * Live counters and per-stage latencies for this stream, for the agent's stats query.
+     */
+    public JSONObject getStats()
+    {
+        JSONObject jo = new JSONObject();
+        VideoFrameSender sender = this.sender;
+        if (sender == null)
+            return jo;
+        jo.put("frameType", this.videoProducer.getVideoType().toString());
+        jo.put("framesSent", sender.getFramesSent());
+        jo.put("framesQueued", sender.getFramesQueued());
+        jo.put("framesDropped", sender.getFramesDropped());
+        jo.put("pending", sender.getPendingCount());
+        jo.put("latencyMs", sender.getStats().toJson());
+        return jo;
+    }
+
+    /**
+     * Count of consecutive failed frame sends - used to terminate a mission if nothing is listening.
+     */
+    public int getFailedTCPSendCount()
+    {
+        return this.sender != null ? this.sender.getFailedSendCount() : 0;
+    }
 }
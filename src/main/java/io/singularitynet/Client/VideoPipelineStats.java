@@ -0,0 +1,92 @@
+package io.singularitynet.Client;
+
+import io.singularitynet.projectmalmo.MissionDiagnostics;
+import io.singularitynet.utils.LatencyHistogram;
+import org.json.JSONObject;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-stage latency histograms for one video producer's pipeline, from the end of the world
+ * render to the frame leaving through the socket. Comparing the stages shows whether a slow
+ * stream is limited by the GPU (render, readback), the client's CPU (header) or the agent and
+ * network (queue, write).
+ */
+public class VideoPipelineStats {
+    public enum Stage {
+        /** World render, from the start of the render tick until the frame is ready to read. */
+        RENDER("render"),
+        /** The producer's writeFrame, i.e. reading the pixels back from the GPU. */
+        READBACK("readback"),
+        /** Render thread time spent getting a free slot and handing the frame to the sender thread. */
+        ENQUEUE("enqueue"),
+        /** Time the frame waited in the queue before the sender thread picked it up. */
+        QUEUE("queue"),
+        /** Encoding the pixels and building the header, on the sender thread. */
+        HEADER("header"),
+        /** Writing the frame to the socket or shared memory ring. */
+        WRITE("write");
+
+        private final String label;
+
+        Stage(String label) {
+            this.label = label;
+        }
+
+        public String getLabel() {
+            return this.label;
+        }
+    }
+
+    private static final double[] QUANTILES = {0.5, 0.95, 0.99};
+
+    private final Map<Stage, LatencyHistogram> histograms = new EnumMap<>(Stage.class);
+
+    public VideoPipelineStats() {
+        for (Stage stage : Stage.values())
+            this.histograms.put(stage, new LatencyHistogram());
+    }
+
+    public void record(Stage stage, long nanos) {
+        this.histograms.get(stage).recordNanos(nanos);
+    }
+
+    /** {"render": {"count": n, "p50": ms, "p95": ms, "p99": ms, "max": ms}, ...} */
+    public JSONObject toJson() {
+        JSONObject stages = new JSONObject();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = this.histograms.get(stage);
+            JSONObject jo = new JSONObject();
+            jo.put("count", histogram.getCount());
+            jo.put("p50", histogram.getPercentileMs(QUANTILES[0]));
+            jo.put("p95", histogram.getPercentileMs(QUANTILES[1]));
+            jo.put("p99", histogram.getPercentileMs(QUANTILES[2]));
+            jo.put("max", histogram.getMaxMs());
+            stages.put(stage.getLabel(), jo);
+        }
+        return stages;
+    }
+
+    /** Add a Latency element per stage to the mission's diagnostics. */
+    public void addTo(List<MissionDiagnostics.VideoData.Latency> latencies) {
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = this.histograms.get(stage);
+            MissionDiagnostics.VideoData.Latency latency = new MissionDiagnostics.VideoData.Latency();
+            latency.setStage(stage.getLabel());
+            latency.setCount((int) histogram.getCount());
+            latency.setP50Ms(toDecimal(histogram.getPercentileMs(QUANTILES[0])));
+            latency.setP95Ms(toDecimal(histogram.getPercentileMs(QUANTILES[1])));
+            latency.setP99Ms(toDecimal(histogram.getPercentileMs(QUANTILES[2])));
+            latency.setMaxMs(toDecimal(histogram.getMaxMs()));
+            latencies.add(latency);
+        }
+    }
+
+    private static BigDecimal toDecimal(double ms) {
+        return BigDecimal.valueOf(ms).setScale(3, RoundingMode.HALF_UP);
+    }
+}
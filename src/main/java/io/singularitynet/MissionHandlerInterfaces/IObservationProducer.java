@@ -2,10 +2,20 @@ package io.singularitynet.MissionHandlerInterfaces;
 
 import com.google.gson.JsonObject;
 import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.utils.ObservationWriter;
 
 public interface IObservationProducer {
     public void cleanup();
     public void prepare(MissionInit missionInit);
 
     void writeObservationsToJSON(JsonObject json, MissionInit currentMissionInit);
+
+    /**
+     * Write observations for an agent that asked for them in binary form. Producers that have a compact typed
+     * form write it to out; the rest go into json as usual, which is then appended to out as a whole, so a
+     * key must not be written to both.
+     */
+    default void writeObservations(ObservationWriter out, JsonObject json, MissionInit currentMissionInit) {
+        writeObservationsToJSON(json, currentMissionInit);
+    }
 }
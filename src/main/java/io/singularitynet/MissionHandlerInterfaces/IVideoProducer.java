@@ -19,7 +19,9 @@
 
 package io.singularitynet.MissionHandlerInterfaces;
 
+import io.singularitynet.projectmalmo.FrameEncoding;
 import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.utils.InstanceTable;
 
 import java.nio.ByteBuffer;
 
@@ -32,7 +34,8 @@ public interface IVideoProducer
         VIDEO,
         DEPTH_MAP,
         LUMINANCE,
-        COLOUR_MAP
+        COLOUR_MAP,
+        MULTIMODAL
     };
 
     /** Get the type of video frames returned.*/
@@ -54,6 +57,45 @@ public interface IVideoProducer
     /** Get the requested height of the video frames returned.*/
     int getHeight();
 
+    /** Width given in the mission XML, whatever size the framebuffer currently is.*/
+    default int getRequestedWidth() { return getWidth(); }
+
+    /** Height given in the mission XML, whatever size the framebuffer currently is.*/
+    default int getRequestedHeight() { return getHeight(); }
+
+    /** Number of bytes per pixel in the frames returned.*/
+    int getChannels();
+
+    /** Encoding the agent asked for; the sender thread encodes each frame before writing it.*/
+    default FrameEncoding getEncoding() { return FrameEncoding.RAW; }
+
+    /** With FrameEncoding.DELTA, the most frames that may pass between keyframes.*/
+    default int getKeyframeInterval() { return 0; }
+
+    /** True if frames are scaled to getWidth() x getHeight() on the GPU, so the window need not be resized to match.*/
+    default boolean isScaledOnGpu() { return false; }
+
+    /** True if frames are read from the segmentation render pass, which then has to be requested for each captured frame.*/
+    default boolean needsSegmentationPass() { return false; }
+
+    /**
+     * Number of writeFrame calls between a frame being captured and its pixels being returned.<br>
+     * Zero for synchronous readback. A producer with non-zero latency may return a width of zero from
+     * writeFrame until its pipeline has filled, meaning no frame is available yet. If the buffer given
+     * to writeFrame is too small, the size needed is returned with nothing written; the next call,
+     * which should come straight away with a bigger buffer, delivers that frame without reading another.
+     */
+    default int getFrameLatency() { return 0; }
+
+    /** Send one frame out of every this many rendered frames; used when getTargetFps() is zero.*/
+    int getFrameInterval();
+
+    /** Maximum frames per second the agent wants from this producer, or zero to use getFrameInterval().*/
+    double getTargetFps();
+
+    /** Entities in the frame just written, to send in its header; null if the producer has none.*/
+    default InstanceTable getInstanceTable() { return null; }
+
     /** Called once before the mission starts - use for any necessary initialisation.*/
     void prepare(MissionInit missionInit);
 
@@ -2,16 +2,20 @@ package io.singularitynet.MissionHandlers;
 
 import com.mojang.blaze3d.platform.GlStateManager;
 import io.singularitynet.MissionHandlerInterfaces.IVideoProducer;
+import io.singularitynet.projectmalmo.ColourMapPixelFormat;
 import io.singularitynet.projectmalmo.ColourMapProducer;
 import io.singularitynet.projectmalmo.EntityTypes;
+import io.singularitynet.projectmalmo.FrameEncoding;
 import io.singularitynet.projectmalmo.MissionInit;
 import io.singularitynet.projectmalmo.MobWithColour;
+import io.singularitynet.projectmalmo.SegmentationMode;
+import io.singularitynet.utils.GlStateTracker;
+import io.singularitynet.utils.InstanceTable;
 import io.singularitynet.utils.TextureHelper;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gl.Framebuffer;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
 import org.lwjgl.opengl.GL30;
 
@@ -19,17 +23,16 @@ import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
+import static org.lwjgl.opengl.GL12.GL_BGR;
 import static org.lwjgl.opengl.GL12.GL_BGRA;
 
 public class ColourMapProducerImplementation extends HandlerBase implements IVideoProducer {
     private static final Logger LOGGER = LogManager.getLogger(ColourMapProducerImplementation.class);
-    private static final int CHANNEL_COUNT = 3;
 
     private ColourMapProducer cmParams;
     private final Map<String, Integer> mobColours = new HashMap<>();
     private final Map<String, Integer> miscColours = new HashMap<>();
     // Segmentation FBO is owned by TextureHelper; do not store/delete locally.
-    private ByteBuffer readbackBuffer;
     private final int[] frameSize = new int[2];
 
     @Override
@@ -65,6 +68,8 @@ public class ColourMapProducerImplementation extends HandlerBase implements IVid
         return VideoType.COLOUR_MAP;
     }
 
+    // The size the world is rendered at, which the window is resized to. renderScale applies
+    // only to the segmentation framebuffer, whose size writeFrame reports with each frame.
     @Override
     public int getWidth() {
         int framebufferWidth = getFramebufferWidth();
@@ -83,52 +88,49 @@ public class ColourMapProducerImplementation extends HandlerBase implements IVid
         return this.cmParams != null ? this.cmParams.getHeight() : 0;
     }
 
+    @Override
+    public int getRequestedWidth() {
+        return this.cmParams != null ? this.cmParams.getWidth() : 0;
+    }
+
+    @Override
+    public int getRequestedHeight() {
+        return this.cmParams != null ? this.cmParams.getHeight() : 0;
+    }
+
     @Override
     public int[] writeFrame(MissionInit missionInit, ByteBuffer buffer) {
-        Framebuffer fbo = ensureFramebuffer();
+        // Sized by the segmentation pass itself (WorldRendererColourmapMixin).
+        Framebuffer fbo = TextureHelper.getSegmentationFramebuffer();
         int width = fbo != null ? fbo.textureWidth : Math.max(1, getWidth());
         int height = fbo != null ? fbo.textureHeight : Math.max(1, getHeight());
-        int requiredBytes = width * height * CHANNEL_COUNT;
+        int channels = getChannels();
+        int requiredBytes = width * height * channels;
 
         if (buffer != null && buffer.capacity() < requiredBytes) {
             LOGGER.warn("Provided buffer capacity {} is smaller than required {} for {}x{} colour map", buffer.capacity(), requiredBytes, width, height);
             buffer = null;
         }
 
-        boolean readSuccess = false;
-        if (fbo != null) {
-            ByteBuffer bgra = ensureReadbackBuffer(width * height * 4);
-            bgra.clear();
-
-            int previousFbo = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
-            int previousReadBuffer = GL11.glGetInteger(GL11.GL_READ_BUFFER);
-            int previousAlignment = GL11.glGetInteger(GL11.GL_PACK_ALIGNMENT);
+        if (fbo != null && buffer != null) {
+            // Read buffer selection belongs to the framebuffer object, so setting it on ours
+            // needs no restoring; only the binding and pack alignment are shared state.
+            int previousFbo = GlStateTracker.getReadFramebuffer();
             try {
                 GlStateManager._glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, fbo.fbo);
                 GL30.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0);
-                GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, 1);
-                GlStateManager._readPixels(0, 0, width, height, GL_BGRA, GL11.GL_UNSIGNED_BYTE, bgra);
-                readSuccess = true;
+                // Rows of 3-byte pixels aren't 4-byte aligned, so pack tightly; the driver
+                // then writes exactly the layout we send and no repacking is needed.
+                GlStateManager._pixelStore(GL11.GL_PACK_ALIGNMENT, 1);
+                buffer.clear();
+                GlStateManager._readPixels(0, 0, width, height, channels == 4 ? GL_BGRA : GL_BGR, GL11.GL_UNSIGNED_BYTE, buffer);
+                buffer.limit(requiredBytes);
             } catch (Throwable t) {
                 LOGGER.warn("Failed to read segmentation framebuffer", t);
             } finally {
-                GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, previousAlignment);
+                // Vanilla sets the alignment before each of its own reads; leave the GL default.
+                GlStateManager._pixelStore(GL11.GL_PACK_ALIGNMENT, 4);
                 GlStateManager._glBindFramebuffer(GL30.GL_READ_FRAMEBUFFER, previousFbo);
-                GL11.glReadBuffer(previousReadBuffer);
-            }
-
-            if (readSuccess && buffer != null) {
-                buffer.clear();
-                for (int i = 0; i < width * height; i++) {
-                    int src = i * 4;
-                    byte b = bgra.get(src);
-                    byte g = bgra.get(src + 1);
-                    byte r = bgra.get(src + 2);
-                    buffer.put(b);
-                    buffer.put(g);
-                    buffer.put(r);
-                }
-                buffer.flip();
             }
         } else if (buffer != null) {
             buffer.clear();
@@ -140,6 +142,41 @@ public class ColourMapProducerImplementation extends HandlerBase implements IVid
         return frameSize;
     }
 
+    @Override
+    public int getChannels() {
+        return this.cmParams != null && this.cmParams.getPixelFormat() == ColourMapPixelFormat.BGRA ? 4 : 3;
+    }
+
+    @Override
+    public FrameEncoding getEncoding() {
+        return this.cmParams != null ? this.cmParams.getEncoding() : FrameEncoding.RAW;
+    }
+
+    @Override
+    public int getKeyframeInterval() {
+        return this.cmParams != null ? this.cmParams.getKeyframeInterval() : 60;
+    }
+
+    @Override
+    public boolean needsSegmentationPass() {
+        return true;
+    }
+
+    @Override
+    public int getFrameInterval() {
+        return this.cmParams != null ? this.cmParams.getFrameInterval() : 2;
+    }
+
+    @Override
+    public double getTargetFps() {
+        return this.cmParams != null ? this.cmParams.getTargetFps().doubleValue() : 0;
+    }
+
+    @Override
+    public InstanceTable getInstanceTable() {
+        return TextureHelper.getInstanceTable();
+    }
+
     @Override
     public void prepare(MissionInit missionInit) {
         TextureHelper.setMobColours(mobColours);
@@ -160,6 +197,8 @@ public class ColourMapProducerImplementation extends HandlerBase implements IVid
             }
         } catch (Throwable ignored) {}
         TextureHelper.setRespectOpacity(respectOpacity);
+        TextureHelper.setInstanceSegmentation(this.cmParams != null && this.cmParams.getSegmentation() == SegmentationMode.INSTANCE);
+        TextureHelper.setSegmentationRenderScale(this.cmParams != null ? this.cmParams.getRenderScale().doubleValue() : 1.0);
         TextureHelper.setIsProducingColourMap(true);
     }
 
@@ -177,13 +216,6 @@ public class ColourMapProducerImplementation extends HandlerBase implements IVid
         miscColours.clear();
     }
 
-    private Framebuffer ensureFramebuffer() {
-        int width = Math.max(1, getWidth());
-        int height = Math.max(1, getHeight());
-        TextureHelper.ensureSegmentationFramebuffer(width, height);
-        return TextureHelper.getSegmentationFramebuffer();
-    }
-
     private int getFramebufferWidth() {
         Framebuffer framebuffer = MinecraftClient.getInstance().getFramebuffer();
         return framebuffer != null ? framebuffer.textureWidth : 0;
@@ -193,11 +225,4 @@ public class ColourMapProducerImplementation extends HandlerBase implements IVid
         Framebuffer framebuffer = MinecraftClient.getInstance().getFramebuffer();
         return framebuffer != null ? framebuffer.textureHeight : 0;
     }
-
-    private ByteBuffer ensureReadbackBuffer(int byteCount) {
-        if (this.readbackBuffer == null || this.readbackBuffer.capacity() < byteCount) {
-            this.readbackBuffer = BufferUtils.createByteBuffer(byteCount);
-        }
-        return this.readbackBuffer;
-    }
 }
@@ -4,7 +4,10 @@ import com.mojang.blaze3d.platform.GlConst;
 import com.mojang.blaze3d.platform.GlStateManager;
 import io.singularitynet.MissionHandlerInterfaces.IVideoProducer;
 import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.projectmalmo.DepthPacking;
 import io.singularitynet.projectmalmo.DepthProducer;
+import io.singularitynet.utils.FullscreenPass;
+import io.singularitynet.utils.GlStateTracker;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gl.Framebuffer;
 import net.minecraft.client.gl.SimpleFramebuffer;
@@ -14,6 +17,8 @@ import org.lwjgl.opengl.GL30;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Dedicated depth-map producer.
@@ -24,13 +29,18 @@ import java.nio.FloatBuffer;
  * - The client can reinterpret these two bytes as a float16 or other format.
  *
  * Depth is read once per frame from the normal world render's depth buffer;
- * no additional geometry render pass is performed.
+ * no additional geometry render pass is performed. With packing="gpu" the
+ * linearisation and packing run in shaders and only the packed bytes are read back.
  */
 public class DepthProducerImplementation extends HandlerBase implements IVideoProducer {
+    private static final float Z_NEAR = 0.05f;
 
     private DepthProducer params;
     private SimpleFramebuffer fbo;
     private FloatBuffer depthBuffer;
+    // GPU packing: passes reducing the depth buffer to its (min, max), 4x4 blocks at a time, then the pack pass.
+    private final List<FullscreenPass> rangePasses = new ArrayList<>();
+    private FullscreenPass packPass;
 
     @Override
     public boolean parseParameters(Object xmlParams) {
@@ -57,6 +67,16 @@ public class DepthProducerImplementation extends HandlerBase implements IVideoPr
             return new int[]{width, height};
         }
 
+        if (this.params.getPacking() == DepthPacking.GPU) {
+            Framebuffer main = MinecraftClient.getInstance().getFramebuffer();
+            if (main != null) {
+                // A pass whose shader failed would leave a zero or garbage frame; send nothing instead.
+                if (!writeFrameOnGpu(main, width, height, buffer))
+                    return new int[]{0, 0};
+                return new int[]{width, height};
+            }
+        }
+
         ensureFramebuffer(width, height);
 
         // Ensure we have enough space for depth floats.
@@ -77,10 +97,8 @@ public class DepthProducerImplementation extends HandlerBase implements IVideoPr
         int readWidth = Math.min(width, fbWidth);
         int readHeight = Math.min(height, fbHeight);
 
-        int prevDrawFb = GL11.glGetInteger(GL30.GL_DRAW_FRAMEBUFFER_BINDING);
-        int prevReadFb = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
-        int prevDrawBuf = GL11.glGetInteger(GL11.GL_DRAW_BUFFER);
-        int prevReadBuf = GL11.glGetInteger(GL11.GL_READ_BUFFER);
+        int prevDrawFb = GlStateTracker.getDrawFramebuffer();
+        int prevReadFb = GlStateTracker.getReadFramebuffer();
         try {
             // Blit depth (and colour, though we only use depth) into our FBO.
             GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, main.fbo);
@@ -99,12 +117,10 @@ public class DepthProducerImplementation extends HandlerBase implements IVideoPr
         } finally {
             GlStateManager._glBindFramebuffer(GlConst.GL_DRAW_FRAMEBUFFER, prevDrawFb);
             GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, prevReadFb);
-            GL11.glDrawBuffer(prevDrawBuf);
-            GL11.glReadBuffer(prevReadBuf);
         }
 
         // Linearize depth and pack into uint16.
-        float zNear = 0.05f;
+        float zNear = Z_NEAR;
         // Use the current far-plane distance from the game renderer.
         float viewDistance = MinecraftClient.getInstance().gameRenderer.getViewDistance();
         float zFar = viewDistance * 4.0f;
@@ -162,6 +178,55 @@ public class DepthProducerImplementation extends HandlerBase implements IVideoPr
         return new int[]{width, height};
     }
 
+    /**
+     * Same output as the CPU path: reduce the raw depth buffer to its (min, max) - linearisation
+     * is monotonic, so that gives the linear range too - then linearise, scale and pack every
+     * pixel in one pass into an RG8 target, which reads back as little-endian uint16.
+     *
+     * @return false, having drawn nothing, if any of the passes' shaders could not be built.
+     */
+    private boolean writeFrameOnGpu(Framebuffer main, int width, int height, ByteBuffer buffer) {
+        // One reduction pass per factor of four, down to a single texel.
+        int levels = 0;
+        for (int w = main.textureWidth, h = main.textureHeight; levels == 0 || w > 1 || h > 1; levels++) {
+            w = (w + 3) / 4;
+            h = (h + 3) / 4;
+        }
+        while (this.rangePasses.size() < levels) {
+            this.rangePasses.add(new FullscreenPass(this.rangePasses.isEmpty() ? "depth_minmax_first" : "depth_minmax",
+                    GL30.GL_RG32F, GL30.GL_RG, GL11.GL_FLOAT));
+        }
+        if (this.packPass == null) {
+            this.packPass = new FullscreenPass("depth_pack", GL30.GL_RG8, GL30.GL_RG, GL11.GL_UNSIGNED_BYTE);
+        }
+        for (int level = 0; level < levels; level++) {
+            if (!this.rangePasses.get(level).ensureProgram())
+                return false;
+        }
+        if (!this.packPass.ensureProgram())
+            return false;
+
+        int depthTexture = main.getDepthAttachment();
+        int source = depthTexture;
+        int w = main.textureWidth;
+        int h = main.textureHeight;
+        for (int level = 0; level < levels; level++) {
+            w = (w + 3) / 4;
+            h = (h + 3) / 4;
+            FullscreenPass pass = this.rangePasses.get(level);
+            if (!pass.draw(source, w, h))
+                return false;
+            source = pass.getTexture();
+        }
+
+        this.packPass.setUniform("ZNear", Z_NEAR);
+        this.packPass.setUniform("ZFar", MinecraftClient.getInstance().gameRenderer.getViewDistance() * 4.0f);
+        if (!this.packPass.draw(depthTexture, source, width, height) || !this.packPass.read(buffer))
+            return false;
+        buffer.limit(width * height * 2);
+        return true;
+    }
+
     @Override
     public int getWidth() {
         int framebufferWidth = getFramebufferWidth();
@@ -180,6 +245,31 @@ public class DepthProducerImplementation extends HandlerBase implements IVideoPr
         return this.params != null ? this.params.getHeight() : 0;
     }
 
+    @Override
+    public int getRequestedWidth() {
+        return this.params != null ? this.params.getWidth() : 0;
+    }
+
+    @Override
+    public int getRequestedHeight() {
+        return this.params != null ? this.params.getHeight() : 0;
+    }
+
+    @Override
+    public int getChannels() {
+        return 2;
+    }
+
+    @Override
+    public int getFrameInterval() {
+        return this.params.getFrameInterval();
+    }
+
+    @Override
+    public double getTargetFps() {
+        return this.params.getTargetFps().doubleValue();
+    }
+
     @Override
     public void prepare(MissionInit missionInit) {
         int w = Math.max(1, getWidth());
@@ -200,6 +290,14 @@ public class DepthProducerImplementation extends HandlerBase implements IVideoPr
             this.fbo.delete();
             this.fbo = null;
         }
+        for (FullscreenPass pass : this.rangePasses) {
+            pass.delete();
+        }
+        this.rangePasses.clear();
+        if (this.packPass != null) {
+            this.packPass.delete();
+            this.packPass = null;
+        }
         this.depthBuffer = null;
     }
 
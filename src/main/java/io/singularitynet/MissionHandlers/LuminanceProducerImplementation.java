@@ -0,0 +1,108 @@
+package io.singularitynet.MissionHandlers;
+
+import io.singularitynet.MissionHandlerInterfaces.IVideoProducer;
+import io.singularitynet.projectmalmo.LuminanceProducer;
+import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.utils.FullscreenPass;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gl.Framebuffer;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Grayscale video producer.
+ *
+ * - VideoType: LUMINANCE
+ * - Output: 1 byte per pixel, BT.601 luma of the rendered frame.
+ *
+ * The conversion runs in a shader pass from the main framebuffer's colour texture
+ * into a single-channel R8 target of the requested Width x Height, so only a quarter
+ * of the bytes of an RGBA frame (fewer still if the target is smaller than the window)
+ * are read back.
+ */
+public class LuminanceProducerImplementation extends HandlerBase implements IVideoProducer {
+
+    private LuminanceProducer params;
+    private FullscreenPass pass;
+    private final int[] frameSize = new int[2];
+
+    @Override
+    public boolean parseParameters(Object xmlParams) {
+        if (xmlParams == null || !(xmlParams instanceof LuminanceProducer)) {
+            return false;
+        }
+        this.params = (LuminanceProducer) xmlParams;
+        return true;
+    }
+
+    @Override
+    public VideoType getVideoType() {
+        return VideoType.LUMINANCE;
+    }
+
+    @Override
+    public int[] writeFrame(MissionInit missionInit, ByteBuffer buffer) {
+        int width = Math.max(1, getWidth());
+        int height = Math.max(1, getHeight());
+        frameSize[0] = width;
+        frameSize[1] = height;
+        Framebuffer main = MinecraftClient.getInstance().getFramebuffer();
+        // Without the shader nothing would be drawn, and the read would send garbage as a frame.
+        if (main == null || !this.pass.ensureProgram()) {
+            return new int[]{0, 0};
+        }
+        if (buffer == null || buffer.capacity() < width * height) {
+            return frameSize;
+        }
+        if (!this.pass.draw(main.getColorAttachment(), width, height) || !this.pass.read(buffer)) {
+            return new int[]{0, 0};
+        }
+        buffer.limit(width * height);
+        return frameSize;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.params != null ? this.params.getWidth() : 0;
+    }
+
+    @Override
+    public int getHeight() {
+        return this.params != null ? this.params.getHeight() : 0;
+    }
+
+    @Override
+    public int getChannels() {
+        return 1;
+    }
+
+    @Override
+    public boolean isScaledOnGpu() {
+        return true;
+    }
+
+    @Override
+    public int getFrameInterval() {
+        return this.params.getFrameInterval();
+    }
+
+    @Override
+    public double getTargetFps() {
+        return this.params.getTargetFps().doubleValue();
+    }
+
+    @Override
+    public void prepare(MissionInit missionInit) {
+        this.pass = new FullscreenPass("luminance", GL30.GL_R8, GL11.GL_RED, GL11.GL_UNSIGNED_BYTE);
+    }
+
+    @Override
+    public void cleanup() {
+        if (this.pass != null) {
+            this.pass.delete();
+            this.pass = null;
+        }
+    }
+}
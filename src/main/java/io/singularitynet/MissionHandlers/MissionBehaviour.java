@@ -176,10 +176,19 @@ public class MissionBehaviour implements IMissionBehaviour {
 
     private void addVideoProducer(IVideoProducer handler)
     {
-        if (this.videoProducers.size() > 0 && (this.videoProducers.get(0).getHeight() != handler.getHeight() || this.videoProducers.get(0).getWidth() != handler.getWidth()))
-            this.failedHandlers += "If multiple video producers are specified, they must all share the same dimensions.\n";
-        else
-            this.videoProducers.add(handler);
+        // Producers that scale on the GPU can have any size; the rest all read the window and must agree.
+        if (!handler.isScaledOnGpu())
+        {
+            for (IVideoProducer other : this.videoProducers)
+            {
+                if (!other.isScaledOnGpu() && (other.getHeight() != handler.getHeight() || other.getWidth() != handler.getWidth()))
+                {
+                    this.failedHandlers += "If multiple video producers are specified, they must all share the same dimensions.\n";
+                    return;
+                }
+            }
+        }
+        this.videoProducers.add(handler);
     }
 
     private void addAudioProducer(IAudioProducer handler)
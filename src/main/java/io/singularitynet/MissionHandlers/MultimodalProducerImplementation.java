@@ -0,0 +1,175 @@
+package io.singularitynet.MissionHandlers;
+
+import io.singularitynet.MissionHandlerInterfaces.IVideoProducer;
+import io.singularitynet.projectmalmo.ColourMapPixelFormat;
+import io.singularitynet.projectmalmo.ColourMapProducer;
+import io.singularitynet.projectmalmo.DepthPacking;
+import io.singularitynet.projectmalmo.DepthProducer;
+import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.projectmalmo.MultimodalProducer;
+import io.singularitynet.projectmalmo.VideoProducer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends RGB, depth and colour map planes captured in the same frame as one packet.
+ *
+ * - VideoType: MULTIMODAL
+ * - Output: the enabled planes back to back, in the order BGRA video, uint16 depth,
+ *   BGR colour map; getChannels() is the total bytes per pixel.
+ *
+ * The planes come from the ordinary producers, configured for their cheapest paths
+ * (depth packed on the GPU, colour map read as BGR) and each reading straight into its
+ * slice of the one frame buffer. The colour map still needs the second, segmentation
+ * world render that ColourMapProducer uses: segmentation works by swapping the shader of
+ * every draw call, and the vanilla core shaders it replaces only have one colour output,
+ * so a single multiple-render-target pass isn't possible without rewriting all of them.
+ */
+public class MultimodalProducerImplementation extends HandlerBase implements IVideoProducer {
+
+    private MultimodalProducer params;
+    private final List<IVideoProducer> planes = new ArrayList<>();
+    private final int[] frameSize = new int[2];
+
+    @Override
+    public boolean parseParameters(Object xmlParams) {
+        if (xmlParams == null || !(xmlParams instanceof MultimodalProducer)) {
+            return false;
+        }
+        this.params = (MultimodalProducer) xmlParams;
+        this.planes.clear();
+
+        VideoProducer video = new VideoProducer();
+        video.setWidth(this.params.getWidth());
+        video.setHeight(this.params.getHeight());
+        VideoProducerImplementation videoPlane = new VideoProducerImplementation();
+        if (!videoPlane.parseParameters(video))
+            return false;
+        this.planes.add(videoPlane);
+
+        if (this.params.isDepth()) {
+            DepthProducer depth = new DepthProducer();
+            depth.setWidth(this.params.getWidth());
+            depth.setHeight(this.params.getHeight());
+            depth.setPacking(DepthPacking.GPU);
+            DepthProducerImplementation depthPlane = new DepthProducerImplementation();
+            if (!depthPlane.parseParameters(depth))
+                return false;
+            this.planes.add(depthPlane);
+        }
+
+        if (this.params.isColourMap()) {
+            ColourMapProducer colourMap = new ColourMapProducer();
+            colourMap.setWidth(this.params.getWidth());
+            colourMap.setHeight(this.params.getHeight());
+            colourMap.getColourSpec().addAll(this.params.getColourSpec());
+            colourMap.setSkyColour(this.params.getSkyColour());
+            colourMap.setRespectOpacity(this.params.isRespectOpacity());
+            colourMap.setPixelFormat(ColourMapPixelFormat.BGR);
+            ColourMapProducerImplementation colourMapPlane = new ColourMapProducerImplementation();
+            if (!colourMapPlane.parseParameters(colourMap))
+                return false;
+            this.planes.add(colourMapPlane);
+        }
+        return true;
+    }
+
+    @Override
+    public VideoType getVideoType() {
+        return VideoType.MULTIMODAL;
+    }
+
+    @Override
+    public int[] writeFrame(MissionInit missionInit, ByteBuffer buffer) {
+        int width = Math.max(1, getWidth());
+        int height = Math.max(1, getHeight());
+        frameSize[0] = width;
+        frameSize[1] = height;
+        if (buffer == null || buffer.capacity() < width * height * getChannels()) {
+            return frameSize;
+        }
+        int offset = 0;
+        for (IVideoProducer plane : this.planes) {
+            int planeBytes = width * height * plane.getChannels();
+            ByteBuffer slice = buffer.duplicate();
+            slice.clear();
+            slice.position(offset);
+            slice.limit(offset + planeBytes);
+            int[] planeSize = plane.writeFrame(missionInit, slice.slice());
+            if (planeSize[0] != width || planeSize[1] != height) {
+                // The window changed size between planes; drop this frame rather than send misaligned planes.
+                frameSize[0] = 0;
+                frameSize[1] = 0;
+                return frameSize;
+            }
+            offset += planeBytes;
+        }
+        buffer.clear();
+        buffer.limit(offset);
+        return frameSize;
+    }
+
+    @Override
+    public int getWidth() {
+        return this.planes.isEmpty() ? 0 : this.planes.get(0).getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return this.planes.isEmpty() ? 0 : this.planes.get(0).getHeight();
+    }
+
+    @Override
+    public int getRequestedWidth() {
+        return this.params.getWidth();
+    }
+
+    @Override
+    public int getRequestedHeight() {
+        return this.params.getHeight();
+    }
+
+    @Override
+    public int getChannels() {
+        int channels = 0;
+        for (IVideoProducer plane : this.planes) {
+            channels += plane.getChannels();
+        }
+        return channels;
+    }
+
+    @Override
+    public boolean needsSegmentationPass() {
+        for (IVideoProducer plane : this.planes) {
+            if (plane.needsSegmentationPass())
+                return true;
+        }
+        return false;
+    }
+
+    @Override
+    public int getFrameInterval() {
+        return this.params.getFrameInterval();
+    }
+
+    @Override
+    public double getTargetFps() {
+        return this.params.getTargetFps().doubleValue();
+    }
+
+    @Override
+    public void prepare(MissionInit missionInit) {
+        for (IVideoProducer plane : this.planes) {
+            plane.prepare(missionInit);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        for (IVideoProducer plane : this.planes) {
+            plane.cleanup();
+        }
+    }
+}
@@ -26,6 +26,7 @@ import java.util.HashMap;
 import com.google.gson.JsonObject;
 import io.singularitynet.MissionHandlerInterfaces.IObservationProducer;
 import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.utils.ObservationWriter;
 
 /**
  * Composite class that concatenates the results from multiple ObservationProducer objects.<br>
@@ -60,6 +61,18 @@ public class ObservationFromComposite extends HandlerBase implements IObservatio
         }
     }
 
+    @Override
+    public void writeObservations(ObservationWriter out, JsonObject json, MissionInit missionInit)
+    {
+        if (this.producers == null)
+            return;
+
+        for (IObservationProducer producer : this.producers)
+        {
+            producer.writeObservations(out, json, missionInit);
+        }
+    }
+
     @Override
     public void prepare(MissionInit missionInit)
     {
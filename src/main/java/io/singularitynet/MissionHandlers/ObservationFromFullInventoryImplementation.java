@@ -23,6 +23,7 @@ import io.singularitynet.MissionHandlerInterfaces.IObservationProducer;
 import io.singularitynet.projectmalmo.MissionInit;
 import io.singularitynet.projectmalmo.ObservationFromFullInventory;
 import io.singularitynet.utils.JSONWorldDataHelper;
+import io.singularitynet.utils.ObservationWriter;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.entity.player.PlayerEntity;
 import net.minecraft.entity.player.PlayerInventory;
@@ -59,6 +60,21 @@ public class ObservationFromFullInventoryImplementation extends HandlerBase impl
         json.add("currentItemIndex", new JsonPrimitive(inv.selectedSlot));
     }
 
+    void writeTyped(ObservationWriter out, PlayerEntity player)
+    {
+        PlayerInventory inv = player.getInventory();
+        out.key("inventory").beginArray();
+        JSONWorldDataHelper.writeInventory(out, inv);
+        out.end();
+
+        out.key("inventoriesAvailable").beginArray().beginMap();
+        out.key("name").symbol(JSONWorldDataHelper.getInventoryName(inv));
+        out.key("size").value(inv.size());
+        out.end().end();
+
+        out.key("currentItemIndex").value(inv.selectedSlot);
+    }
+
     private boolean flat;
 
     @Override
@@ -100,6 +116,12 @@ public class ObservationFromFullInventoryImplementation extends HandlerBase impl
         buildJson(json, MinecraftClient.getInstance().player);
     }
 
+    @Override
+    public void writeObservations(ObservationWriter out, JsonObject json, MissionInit missionInit)
+    {
+        writeTyped(out, MinecraftClient.getInstance().player);
+    }
+
     @Override
     public void cleanup()
     {
@@ -27,7 +27,9 @@ import io.singularitynet.projectmalmo.MissionInit;
 import io.singularitynet.projectmalmo.ObservationFromGrid;
 import io.singularitynet.utils.JSONWorldDataHelper;
 import io.singularitynet.utils.JSONWorldDataHelper.GridDimensions;
+import io.singularitynet.utils.ObservationWriter;
 import net.minecraft.client.MinecraftClient;
+import net.minecraft.entity.LivingEntity;
 import net.minecraft.entity.mob.MobEntity;
 
 import java.util.ArrayList;
@@ -39,6 +41,7 @@ import java.util.List;
  */
 public class ObservationFromGridImplementation extends HandlerBase implements IObservationProducer {
     private List<SimpleGridDef> environs = null;
+    private String[] names = null;
 
     @Override
     public void cleanup() {
@@ -58,18 +61,40 @@ public class ObservationFromGridImplementation extends HandlerBase implements IO
             for (SimpleGridDef sgd : environs)
             {
                 JSONWorldDataHelper.buildGridData(json, sgd.getEnvirons(), MinecraftClient.getInstance().player, sgd.name);
-                JsonObject controllableEnities = json.getAsJsonObject(VereyaModClient.CONTROLLABLE);
-                if (controllableEnities != null) {
-                    for(MobEntity entity: VereyaModClient.getControllableEntities().values()){
-                        String uuid = entity.getUuidAsString();
-                        JsonObject entityJson = controllableEnities.getAsJsonObject(uuid);
-                        if (entityJson == null){
-                            entityJson = new JsonObject();
-                            controllableEnities.add(uuid, entityJson);
-                        }
-                        JSONWorldDataHelper.buildGridData(entityJson, sgd.getEnvirons(), entity, sgd.name);
-                    }
+                addControllableGrids(json, sgd);
+            }
+        }
+    }
+
+    @Override
+    public void writeObservations(ObservationWriter out, JsonObject json, MissionInit currentMissionInit) {
+        List<SimpleGridDef> environs = this.environs;
+        LivingEntity player = MinecraftClient.getInstance().player;
+        if (environs != null)
+        {
+            for (SimpleGridDef sgd : environs)
+            {
+                if (player != null) {
+                    // Block names repeat a lot, so the grid goes out as two bytes per cell.
+                    this.names = JSONWorldDataHelper.getGridBlockNames(sgd.getEnvirons(), player, this.names);
+                    out.key(sgd.name).symbols(this.names, this.names.length);
+                }
+                addControllableGrids(json, sgd);
+            }
+        }
+    }
+
+    private void addControllableGrids(JsonObject json, SimpleGridDef sgd) {
+        JsonObject controllableEnities = json.getAsJsonObject(VereyaModClient.CONTROLLABLE);
+        if (controllableEnities != null) {
+            for(MobEntity entity: VereyaModClient.getControllableEntities().values()){
+                String uuid = entity.getUuidAsString();
+                JsonObject entityJson = controllableEnities.getAsJsonObject(uuid);
+                if (entityJson == null){
+                    entityJson = new JsonObject();
+                    controllableEnities.add(uuid, entityJson);
                 }
+                JSONWorldDataHelper.buildGridData(entityJson, sgd.getEnvirons(), entity, sgd.name);
             }
         }
     }
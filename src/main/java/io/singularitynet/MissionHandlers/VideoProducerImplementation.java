@@ -1,13 +1,21 @@
 package io.singularitynet.MissionHandlers;
 
+import com.mojang.blaze3d.platform.GlConst;
 import com.mojang.blaze3d.platform.GlStateManager;
 import io.singularitynet.MissionHandlerInterfaces.IVideoProducer;
+import io.singularitynet.projectmalmo.FrameEncoding;
 import io.singularitynet.projectmalmo.MissionInit;
+import io.singularitynet.projectmalmo.ReadbackMode;
+import io.singularitynet.projectmalmo.ScaleFilter;
 import io.singularitynet.projectmalmo.VideoProducer;
+import io.singularitynet.utils.GlStateTracker;
+import io.singularitynet.utils.PixelPackRing;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gl.Framebuffer;
+import net.minecraft.client.gl.SimpleFramebuffer;
 import org.lwjgl.BufferUtils;
 import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL30;
 
 import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
@@ -18,6 +26,10 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
 {
     private VideoProducer videoParams;
     private FloatBuffer depthBuffer;
+    // Non-null when frames are read back asynchronously through pixel-pack buffers.
+    private PixelPackRing pboRing;
+    // Non-null when frames are scaled to the requested size on the GPU before readback.
+    private SimpleFramebuffer scaledFbo;
 
     @Override
     public boolean parseParameters(Object params)
@@ -49,6 +61,8 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
     @Override
     public int getWidth()
     {
+        if (isScaledOnGpu())
+            return this.videoParams.getWidth();
         int framebufferWidth = getFramebufferWidth();
         if (framebufferWidth > 0) {
             return framebufferWidth;
@@ -58,6 +72,8 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
 
     @Override
     public int getHeight() {
+        if (isScaledOnGpu())
+            return this.videoParams.getHeight();
         int framebufferHeight = getFramebufferHeight();
         if (framebufferHeight > 0) {
             return framebufferHeight;
@@ -65,11 +81,112 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
         return this.videoParams.getHeight();
     }
 
+    @Override
+    public int getRequestedWidth()
+    {
+        return this.videoParams.getWidth();
+    }
+
+    @Override
+    public int getRequestedHeight()
+    {
+        return this.videoParams.getHeight();
+    }
+
+    @Override
+    public int getChannels()
+    {
+        return 4;
+    }
+
+    @Override
+    public FrameEncoding getEncoding()
+    {
+        return this.videoParams.getEncoding();
+    }
+
+    @Override
+    public int getKeyframeInterval()
+    {
+        return this.videoParams.getKeyframeInterval();
+    }
+
+    @Override
+    public boolean isScaledOnGpu()
+    {
+        return this.videoParams.getScaleFilter() != ScaleFilter.NONE;
+    }
+
+    @Override
+    public int getFrameLatency()
+    {
+        return this.pboRing != null ? this.pboRing.getLatency() : 0;
+    }
+
+    @Override
+    public int getFrameInterval()
+    {
+        return this.videoParams.getFrameInterval();
+    }
+
+    @Override
+    public double getTargetFps()
+    {
+        return this.videoParams.getTargetFps().doubleValue();
+    }
+
     private int[] writeRGBFrame(ByteBuffer buffer)
     {
         Framebuffer framebuffer = MinecraftClient.getInstance().getFramebuffer();
+        if (framebuffer != null && isScaledOnGpu())
+            return writeScaledFrame(framebuffer, buffer);
         int i = framebuffer != null ? framebuffer.textureWidth : Math.max(1, getWidth());
         int j = framebuffer != null ? framebuffer.textureHeight : Math.max(1, getHeight());
+        return readPixels(i, j, buffer);
+    }
+
+    /**
+     * Blit the main framebuffer down to the requested size and read that back instead,
+     * so only Width x Height pixels ever cross the bus.
+     */
+    private int[] writeScaledFrame(Framebuffer main, ByteBuffer buffer)
+    {
+        int width = Math.max(1, this.videoParams.getWidth());
+        int height = Math.max(1, this.videoParams.getHeight());
+        if (this.scaledFbo == null || this.scaledFbo.textureWidth != width || this.scaledFbo.textureHeight != height) {
+            if (this.scaledFbo != null)
+                this.scaledFbo.delete();
+            this.scaledFbo = new SimpleFramebuffer(width, height, false, MinecraftClient.IS_SYSTEM_MAC);
+        }
+        int filter = this.videoParams.getScaleFilter() == ScaleFilter.LINEAR ? GL11.GL_LINEAR : GL11.GL_NEAREST;
+
+        int prevDrawFb = GlStateTracker.getDrawFramebuffer();
+        int prevReadFb = GlStateTracker.getReadFramebuffer();
+        try {
+            GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, main.fbo);
+            GlStateManager._glBindFramebuffer(GlConst.GL_DRAW_FRAMEBUFFER, this.scaledFbo.fbo);
+            GlStateManager._glBlitFrameBuffer(
+                    0, 0, main.textureWidth, main.textureHeight,
+                    0, 0, width, height,
+                    GL11.GL_COLOR_BUFFER_BIT,
+                    filter
+            );
+            GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, this.scaledFbo.fbo);
+            GL11.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0);
+            return readPixels(width, height, buffer);
+        } finally {
+            GlStateManager._glBindFramebuffer(GlConst.GL_DRAW_FRAMEBUFFER, prevDrawFb);
+            GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, prevReadFb);
+        }
+    }
+
+    /** Read BGRA pixels from the bound read framebuffer, synchronously or through the PBO ring. */
+    private int[] readPixels(int i, int j, ByteBuffer buffer)
+    {
+        if (this.pboRing != null) {
+            // Returns the frame issued getFrameLatency() calls ago, or {0, 0} while the ring fills.
+            return this.pboRing.readAndCollect(i, j, GL_BGRA, GL11.GL_UNSIGNED_BYTE, 4, buffer);
+        }
         int requiredBytes = i * j * 4;
         if (buffer != null && buffer.capacity() >= requiredBytes) {
             buffer.clear();
@@ -88,12 +205,24 @@ public class VideoProducerImplementation extends HandlerBase implements IVideoPr
         // Create a buffer for retrieving the depth map, if requested:
         if (useDepth)
             this.depthBuffer = BufferUtils.createFloatBuffer(this.videoParams.getWidth() * this.videoParams.getHeight());
+        if (this.videoParams.getReadback() == ReadbackMode.PBO)
+            this.pboRing = new PixelPackRing(this.videoParams.getReadbackBuffers());
         // Set the requested camera position
         // Minecraft.getMinecraft().gameSettings.thirdPersonView = this.videoParams.getViewpoint();
     }
 
     @Override
-    public void cleanup() {}
+    public void cleanup()
+    {
+        if (this.pboRing != null) {
+            this.pboRing.delete();
+            this.pboRing = null;
+        }
+        if (this.scaledFbo != null) {
+            this.scaledFbo.delete();
+            this.scaledFbo = null;
+        }
+    }
 
     private int getFramebufferWidth() {
         Framebuffer framebuffer = MinecraftClient.getInstance().getFramebuffer();
@@ -8,15 +8,13 @@ import net.minecraft.client.render.VertexConsumer;
 import net.minecraft.util.math.BlockPos;
 import net.minecraft.util.math.random.Random;
 import net.minecraft.world.BlockRenderView;
-import net.minecraft.registry.Registries;
-import net.minecraft.util.Identifier;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 /**
- * Captures the current block type string when rendering blocks so the
+ * Captures the current block type when rendering blocks so the
  * segmentation path can assign a stable per-type colour rather than a
  * UV-derived colour that varies across sprites.
  */
@@ -32,15 +30,12 @@ public abstract class BlockRenderManagerMixin {
                                          boolean cull,
                                          Random random,
                                          CallbackInfo ci) {
-        Identifier id = Registries.BLOCK.getId(state.getBlock());
-        if (id != null) {
-            TextureHelper.setCurrentBlockType(id.toString());
-            if (TextureHelper.isProducingColourMap() && TextureHelper.colourmapFrame) {
-                TextureHelper.setDrawingBlock(true);
-                TextureHelper.setStrictBlockDraw(true);
-                // Set a stable per-type colour for the block being drawn
-                TextureHelper.setPendingColourForCurrentBlock();
-            }
+        TextureHelper.setCurrentBlock(state.getBlock());
+        if (TextureHelper.isProducingColourMap() && TextureHelper.colourmapFrame) {
+            TextureHelper.setDrawingBlock(true);
+            TextureHelper.setStrictBlockDraw(true);
+            // Set a stable per-type colour for the block being drawn
+            TextureHelper.setPendingColourForCurrentBlock();
         }
     }
 
@@ -12,7 +12,8 @@ import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 /**
  * Ensures we always mark the current entity during rendering so the
- * segmentation pipeline can assign a single, stable colour per entity type.
+ * segmentation pipeline can assign a single, stable colour per entity type
+ * (or, in instance mode, per entity; see TextureHelper#getColourForEntity).
  * This complements the dispatcher hook and covers render paths where the
  * dispatcher injection might not fire for every draw call.
  */
@@ -0,0 +1,50 @@
+package io.singularitynet.mixin;
+
+import io.singularitynet.utils.OffscreenRenderTarget;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gl.Framebuffer;
+import net.minecraft.client.render.GameRenderer;
+import net.minecraft.client.render.RenderTickCounter;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.ModifyArg;
+import org.spongepowered.asm.mixin.injection.Redirect;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Points the world render at the offscreen framebuffer when rendering offscreen:
+ * binds it, with its own viewport, as the world render starts, and uses its
+ * aspect ratio for the world projection; vanilla takes that from the window,
+ * whose size no longer has anything to do with the frames being rendered. Once
+ * the world and its post effects are done, the HUD and screens go back to the
+ * window's framebuffer.
+ */
+@Mixin(GameRenderer.class)
+public abstract class GameRendererOffscreenMixin {
+
+    @Inject(method = "renderWorld", at = @At("HEAD"))
+    private void vereya$bindOffscreen(RenderTickCounter tickCounter, CallbackInfo ci) {
+        OffscreenRenderTarget.beginWorldRender();
+    }
+
+    // GameRenderer.render rebinds "the" framebuffer after the world render, before drawing the HUD.
+    @Redirect(method = "render",
+            at = @At(value = "INVOKE", target = "Lnet/minecraft/client/MinecraftClient;getFramebuffer()Lnet/minecraft/client/gl/Framebuffer;"))
+    private Framebuffer vereya$windowFramebufferForHud(MinecraftClient client) {
+        if (!OffscreenRenderTarget.isActive())
+            return client.getFramebuffer();
+        return OffscreenRenderTarget.getWindowFramebuffer();
+    }
+
+    @ModifyArg(method = "getBasicProjectionMatrix",
+            at = @At(value = "INVOKE", target = "Lorg/joml/Matrix4f;perspective(FFFF)Lorg/joml/Matrix4f;"),
+            index = 1)
+    private float vereya$offscreenAspect(float aspect) {
+        Framebuffer offscreen = OffscreenRenderTarget.getFramebuffer();
+        if (offscreen == null) {
+            return aspect;
+        }
+        return (float) offscreen.textureWidth / (float) offscreen.textureHeight;
+    }
+}
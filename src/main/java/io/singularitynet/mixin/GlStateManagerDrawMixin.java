@@ -2,7 +2,6 @@ package io.singularitynet.mixin;
 
 import com.mojang.blaze3d.platform.GlStateManager;
 import io.singularitynet.utils.TextureHelper;
-import net.minecraft.client.gl.GlUniform;
 import net.minecraft.client.gl.ShaderProgram;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -21,6 +20,7 @@ public abstract class GlStateManagerDrawMixin {
         if (!TextureHelper.isProducingColourMap() || !TextureHelper.colourmapFrame) {
             return;
         }
+        long start = TextureHelper.segDrawHookStart();
         TextureHelper.recordSegDraw(false);
         ShaderProgram program = com.mojang.blaze3d.systems.RenderSystem.getShader();
         if (program == null) {
@@ -31,42 +31,13 @@ public abstract class GlStateManagerDrawMixin {
         } else if (!TextureHelper.hasCurrentEntity()
                 && !TextureHelper.isDrawingBlock()
                 && !TextureHelper.isStrictBlockDraw()) {
-            TextureHelper.setPendingColourForMiscTexture(TextureHelper.getLastBoundTexture());
+            TextureHelper.setPendingColourForLastBoundTexture();
         }
-        int[] pending = TextureHelper.getPendingColourRGB();
-        GlUniform r = program.getUniform("entityColourR");
-        GlUniform g = program.getUniform("entityColourG");
-        GlUniform b = program.getUniform("entityColourB");
-        if (r != null && g != null && b != null) {
-            if (TextureHelper.getSegmentationDebugLevel() > 0) {
-                LOGGER.trace("GlStateManagerDrawMixin: applying colour R:{} G:{} B:{}", pending[0], pending[1], pending[2]);
-            }
-            r.set(pending[0]);
-            g.set(pending[1]);
-            b.set(pending[2]);
-            r.upload();
-            g.upload();
-            b.upload();
-        }
-        GlUniform debug = program.getUniform("debugMode");
-        if (debug != null) {
-            debug.set(TextureHelper.getSegmentationDebugLevel());
-            debug.upload();
-        }
-        GlUniform alpha = program.getUniform("respectAlpha");
-        if (alpha != null) {
-            alpha.set(TextureHelper.isRespectOpacity() ? 1 : 0);
-            alpha.upload();
-        }
-        GlUniform grid = program.getUniform("atlasGrid");
-        if (grid != null) {
-            grid.set(32);
-            grid.upload();
-        }
-        GlUniform lod = program.getUniform("atlasLod");
-        if (lod != null) {
-            lod.set(8);
-            lod.upload();
+        if (TextureHelper.isSegmentationDebugMode()) {
+            int[] pending = TextureHelper.getPendingColourRGB();
+            LOGGER.trace("GlStateManagerDrawMixin: applying colour R:{} G:{} B:{}", pending[0], pending[1], pending[2]);
         }
+        TextureHelper.uploadPendingUniforms(program);
+        TextureHelper.recordSegDrawHookTime(start);
     }
 }
@@ -0,0 +1,98 @@
+package io.singularitynet.mixin;
+
+import com.mojang.blaze3d.platform.GlStateManager;
+import io.singularitynet.utils.GlStateTracker;
+import org.lwjgl.opengl.GL11;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+/**
+ * Records framebuffer, program, texture and vertex array bindings, the viewport and the
+ * capabilities our passes touch in GlStateTracker as they are set, so that the video producers
+ * and the segmentation pass can save and restore them without glGet*.
+ */
+@Mixin(GlStateManager.class)
+public abstract class GlStateManagerTrackingMixin {
+
+    @Inject(method = "_glBindFramebuffer(II)V", at = @At("TAIL"))
+    private static void vereya$onBindFramebuffer(int target, int framebuffer, CallbackInfo ci) {
+        GlStateTracker.onBindFramebuffer(target, framebuffer);
+    }
+
+    @Inject(method = "_glDeleteFramebuffers(I)V", at = @At("TAIL"))
+    private static void vereya$onDeleteFramebuffer(int framebuffer, CallbackInfo ci) {
+        GlStateTracker.onDeleteFramebuffer(framebuffer);
+    }
+
+    @Inject(method = "_glUseProgram(I)V", at = @At("TAIL"))
+    private static void vereya$onUseProgram(int program, CallbackInfo ci) {
+        GlStateTracker.onUseProgram(program);
+    }
+
+    @Inject(method = "_glBindVertexArray(I)V", at = @At("TAIL"))
+    private static void vereya$onBindVertexArray(int array, CallbackInfo ci) {
+        GlStateTracker.onBindVertexArray(array);
+    }
+
+    @Inject(method = "_activeTexture(I)V", at = @At("TAIL"))
+    private static void vereya$onActiveTexture(int texture, CallbackInfo ci) {
+        GlStateTracker.onActiveTexture(texture);
+    }
+
+    @Inject(method = "_bindTexture(I)V", at = @At("TAIL"))
+    private static void vereya$onBindTexture(int texture, CallbackInfo ci) {
+        GlStateTracker.onBindTexture(texture);
+    }
+
+    @Inject(method = "_deleteTexture(I)V", at = @At("TAIL"))
+    private static void vereya$onDeleteTexture(int texture, CallbackInfo ci) {
+        GlStateTracker.onDeleteTexture(texture);
+    }
+
+    @Inject(method = "_viewport(IIII)V", at = @At("TAIL"))
+    private static void vereya$onViewport(int x, int y, int width, int height, CallbackInfo ci) {
+        GlStateTracker.onViewport(x, y, width, height);
+    }
+
+    @Inject(method = "_enableBlend()V", at = @At("TAIL"))
+    private static void vereya$onEnableBlend(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_BLEND, true);
+    }
+
+    @Inject(method = "_disableBlend()V", at = @At("TAIL"))
+    private static void vereya$onDisableBlend(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_BLEND, false);
+    }
+
+    @Inject(method = "_enableDepthTest()V", at = @At("TAIL"))
+    private static void vereya$onEnableDepthTest(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_DEPTH_TEST, true);
+    }
+
+    @Inject(method = "_disableDepthTest()V", at = @At("TAIL"))
+    private static void vereya$onDisableDepthTest(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_DEPTH_TEST, false);
+    }
+
+    @Inject(method = "_enableCull()V", at = @At("TAIL"))
+    private static void vereya$onEnableCull(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_CULL_FACE, true);
+    }
+
+    @Inject(method = "_disableCull()V", at = @At("TAIL"))
+    private static void vereya$onDisableCull(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_CULL_FACE, false);
+    }
+
+    @Inject(method = "_enableScissorTest()V", at = @At("TAIL"))
+    private static void vereya$onEnableScissorTest(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_SCISSOR_TEST, true);
+    }
+
+    @Inject(method = "_disableScissorTest()V", at = @At("TAIL"))
+    private static void vereya$onDisableScissorTest(CallbackInfo ci) {
+        GlStateTracker.onSetCapability(GL11.GL_SCISSOR_TEST, false);
+    }
+}
@@ -1,11 +1,13 @@
 package io.singularitynet.mixin;
 
+import io.singularitynet.utils.OffscreenRenderTarget;
 import io.singularitynet.utils.TextureHelper;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gl.Framebuffer;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
 import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfoReturnable;
 
 /**
@@ -24,8 +26,18 @@ public abstract class MinecraftClientFramebufferMixin {
             Framebuffer seg = TextureHelper.getSegmentationFramebuffer();
             if (seg != null) {
                 cir.setReturnValue(seg);
+                return;
             }
         }
+        Framebuffer offscreen = OffscreenRenderTarget.getFramebuffer();
+        if (offscreen != null) {
+            cir.setReturnValue(offscreen);
+        }
+    }
+
+    @Inject(method = "onResolutionChanged", at = @At("TAIL"))
+    private void vereya$keepOffscreenSize(CallbackInfo ci) {
+        OffscreenRenderTarget.resizeRenderers();
     }
 }
 
@@ -3,6 +3,7 @@ package io.singularitynet.mixin;
 import net.minecraft.client.Keyboard;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.Mouse;
+import net.minecraft.client.gl.Framebuffer;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.Mutable;
 import org.spongepowered.asm.mixin.gen.Accessor;
@@ -16,6 +17,9 @@ public interface MinecraftClientMixin {
     @Accessor("mouse") @Mutable
     public void setMouse(Mouse keyboard);
 
+    @Accessor("framebuffer")
+    public Framebuffer getWindowFramebuffer();
+
 }
 
 
@@ -4,7 +4,6 @@ import com.mojang.blaze3d.systems.RenderSystem;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import io.singularitynet.utils.TextureHelper;
-import net.minecraft.client.gl.GlUniform;
 import net.minecraft.client.gl.ShaderProgram;
 import org.spongepowered.asm.mixin.Mixin;
 import org.spongepowered.asm.mixin.injection.At;
@@ -21,6 +20,7 @@ public abstract class RenderSystemDrawMixin {
         if (!TextureHelper.isProducingColourMap() || !TextureHelper.colourmapFrame) {
             return;
         }
+        long start = TextureHelper.segDrawHookStart();
         TextureHelper.recordSegDraw(true);
         // If drawing blocks and we know the current block type, force a stable
         // per-type colour regardless of the last bound texture.
@@ -31,9 +31,9 @@ public abstract class RenderSystemDrawMixin {
             TextureHelper.setPendingColourForCurrentEntity();
         } else {
             // No current entity: try misc textures (eg clouds), then entity fallback, else atlas
-            net.minecraft.util.Identifier last = TextureHelper.getLastBoundTexture();
-            boolean miscApplied = TextureHelper.setPendingColourForMiscTexture(last);
+            boolean miscApplied = TextureHelper.setPendingColourForLastBoundTexture();
             if (!miscApplied) {
+                net.minecraft.util.Identifier last = TextureHelper.getLastBoundTexture();
                 boolean fallbackApplied = false;
                 if (last != null) {
                     String p = last.getPath();
@@ -52,37 +52,11 @@ public abstract class RenderSystemDrawMixin {
             return;
         }
         TextureHelper.applyPendingColourToProgram(program);
-        int[] pending = TextureHelper.getPendingColourRGB();
-        GlUniform r = program.getUniform("entityColourR");
-        GlUniform g = program.getUniform("entityColourG");
-        GlUniform b = program.getUniform("entityColourB");
-        if (r != null && g != null && b != null) {
-            if (TextureHelper.getSegmentationDebugLevel() > 0) {
-                LOGGER.trace("RenderSystemDrawMixin: applying colour R:{} G:{} B:{}", pending[0], pending[1], pending[2]);
-            }
-            r.set(pending[0]);
-            g.set(pending[1]);
-            b.set(pending[2]);
-            r.upload();
-            g.upload();
-            b.upload();
-        }
-        GlUniform debug = program.getUniform("debugMode");
-        if (debug != null) {
-            debug.set(TextureHelper.getSegmentationDebugLevel());
-            debug.upload();
-        }
-        GlUniform alpha = program.getUniform("respectAlpha");
-        if (alpha != null) {
-            alpha.set(TextureHelper.isRespectOpacity() ? 1 : 0);
-            alpha.upload();
-        }
-        GlUniform grid = program.getUniform("atlasGrid");
-        if (grid != null) { grid.set(128); grid.upload(); }
-        GlUniform lod = program.getUniform("atlasLod");
-        if (lod != null) {
-            lod.set(8);
-            lod.upload();
+        if (TextureHelper.isSegmentationDebugMode()) {
+            int[] pending = TextureHelper.getPendingColourRGB();
+            LOGGER.trace("RenderSystemDrawMixin: applying colour R:{} G:{} B:{}", pending[0], pending[1], pending[2]);
         }
+        TextureHelper.uploadPendingUniforms(program);
+        TextureHelper.recordSegDrawHookTime(start);
     }
 }
@@ -1,6 +1,8 @@
 package io.singularitynet.mixin;
 
 import io.singularitynet.utils.TextureHelper;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gl.Framebuffer;
 import net.minecraft.client.render.Camera;
 import net.minecraft.client.render.GameRenderer;
 import net.minecraft.client.render.LightmapTextureManager;
@@ -13,10 +15,14 @@ import org.spongepowered.asm.mixin.injection.Inject;
 import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
 
 /**
- * Runs a dedicated segmentation render pass immediately before the default
- * world render when colour-map production is active. The second invocation of
- * {@link WorldRenderer#render} executes the normal pipeline so the on-screen
- * view remains unchanged.
+ * Runs a dedicated segmentation render pass immediately after the default
+ * world render when colour-map production is active, as a nested invocation of
+ * {@link WorldRenderer#render} from its tail. The normal render has already
+ * finished by then, so the on-screen view remains unchanged.
+ * <p>
+ * The pass only runs for frames the colour map producer is going to capture
+ * (see {@link TextureHelper#requestSegmentationPass()}), and renders into a
+ * segmentation framebuffer scaled down by the producer's renderScale.
  */
 @Mixin(WorldRenderer.class)
 public abstract class WorldRendererColourmapMixin {
@@ -38,6 +44,16 @@ public abstract class WorldRendererColourmapMixin {
         if (VEREYA$SEGMENTATION_RENDERING.get()) {
             return;
         }
+        if (!TextureHelper.takeSegmentationPassRequest()) {
+            return;
+        }
+        // Size the pass from the framebuffer the world was just rendered into; this has to
+        // happen before colourmapFrame is set, as getFramebuffer() returns ours after that.
+        Framebuffer main = MinecraftClient.getInstance().getFramebuffer();
+        if (main != null) {
+            TextureHelper.ensureSegmentationFramebuffer(TextureHelper.scaleSegmentationSize(main.textureWidth),
+                    TextureHelper.scaleSegmentationSize(main.textureHeight));
+        }
 
         VEREYA$SEGMENTATION_RENDERING.set(true);
         try {
@@ -0,0 +1,33 @@
+package io.singularitynet.mixin;
+
+import io.singularitynet.utils.OffscreenRenderTarget;
+import net.minecraft.client.gl.Framebuffer;
+import net.minecraft.client.render.WorldRenderer;
+import net.minecraft.client.util.Window;
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Redirect;
+
+/**
+ * Composites the entity outlines over the offscreen framebuffer at its size when rendering
+ * offscreen. The outline framebuffer is already sized to match (OffscreenRenderTarget
+ * resizes the world renderer's buffers), but vanilla draws it with a viewport of the
+ * window's size, which misplaces the outlines whenever the two differ.
+ */
+@Mixin(WorldRenderer.class)
+public abstract class WorldRendererOffscreenMixin {
+
+    @Redirect(method = "drawEntityOutlinesFramebuffer",
+            at = @At(value = "INVOKE", target = "Lnet/minecraft/client/util/Window;getFramebufferWidth()I"))
+    private int vereya$outlineWidth(Window window) {
+        Framebuffer offscreen = OffscreenRenderTarget.getFramebuffer();
+        return offscreen != null ? offscreen.textureWidth : window.getFramebufferWidth();
+    }
+
+    @Redirect(method = "drawEntityOutlinesFramebuffer",
+            at = @At(value = "INVOKE", target = "Lnet/minecraft/client/util/Window;getFramebufferHeight()I"))
+    private int vereya$outlineHeight(Window window) {
+        Framebuffer offscreen = OffscreenRenderTarget.getFramebuffer();
+        return offscreen != null ? offscreen.textureHeight : window.getFramebufferHeight();
+    }
+}
@@ -0,0 +1,76 @@
+package io.singularitynet.utils;
+
+import net.minecraft.client.gl.GlUniform;
+import net.minecraft.client.gl.ShaderProgram;
+
+/**
+ * The segmentation uniforms of one annotate ShaderProgram, looked up once, together with the
+ * values last uploaded through them so that a draw only uploads the ones that changed.
+ * <p>
+ * GL keeps uniform values per program, so a skipped upload leaves the right value in place as
+ * long as nothing else writes these uniforms; TextureHelper routes every write through here and
+ * drops the cache at the start of each segmentation pass. Render thread only.
+ */
+class AnnotateUniforms {
+    private static final int UNSET = Integer.MIN_VALUE;
+
+    private final GlUniform r;
+    private final GlUniform g;
+    private final GlUniform b;
+    private final GlUniform debug;
+    private final GlUniform alpha;
+    private final GlUniform grid;
+    private final GlUniform lod;
+    // False reproduces the uncached behaviour (upload everything on every draw), for benchmarking.
+    private final boolean skipUnchanged;
+    private final int[] last = {UNSET, UNSET, UNSET, UNSET, UNSET, UNSET, UNSET};
+
+    AnnotateUniforms(ShaderProgram program, boolean skipUnchanged) {
+        this.r = program.getUniform("entityColourR");
+        this.g = program.getUniform("entityColourG");
+        this.b = program.getUniform("entityColourB");
+        this.debug = program.getUniform("debugMode");
+        this.alpha = program.getUniform("respectAlpha");
+        this.grid = program.getUniform("atlasGrid");
+        this.lod = program.getUniform("atlasLod");
+        this.skipUnchanged = skipUnchanged;
+    }
+
+    /** True if the program has the colour uniforms at all. */
+    boolean hasColour() {
+        return this.r != null && this.g != null && this.b != null;
+    }
+
+    /**
+     * Upload the colour; does nothing unless the program has all three colour uniforms.
+     *
+     * @return the number of uniforms actually uploaded.
+     */
+    int setColour(int red, int green, int blue) {
+        if (!hasColour())
+            return 0;
+        return upload(this.r, 0, red) + upload(this.g, 1, green) + upload(this.b, 2, blue);
+    }
+
+    /**
+     * Upload the colour and the other segmentation uniforms the program has.
+     *
+     * @return the number of uniforms actually uploaded.
+     */
+    int apply(int red, int green, int blue, int debugMode, int respectAlpha, int atlasGrid, int atlasLod) {
+        return setColour(red, green, blue)
+                + upload(this.debug, 3, debugMode)
+                + upload(this.alpha, 4, respectAlpha)
+                + upload(this.grid, 5, atlasGrid)
+                + upload(this.lod, 6, atlasLod);
+    }
+
+    private int upload(GlUniform uniform, int slot, int value) {
+        if (uniform == null || (this.skipUnchanged && this.last[slot] == value))
+            return 0;
+        uniform.set(value);
+        uniform.upload();
+        this.last[slot] = value;
+        return 1;
+    }
+}
@@ -0,0 +1,308 @@
+package io.singularitynet.utils;
+
+import com.mojang.blaze3d.platform.GlConst;
+import com.mojang.blaze3d.platform.GlStateManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+import org.lwjgl.opengl.GL20;
+import org.lwjgl.opengl.GL30;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A fragment shader run once over every pixel of an offscreen render target, for
+ * converting a rendered frame into the format we want to send before it is read back.
+ * <p>
+ * The shader reads its input from the {@code Source} sampler on texture unit 0 (and
+ * optionally a second texture from {@code Aux} on unit 1) and writes to a single colour attachment of the given internal format (eg GL_R8), at
+ * whatever size the caller asks for, so scaling comes for free. Shaders live under
+ * {@code assets/vereya/shaders/post/}; the vertex stage is always {@code fullscreen.vsh}.
+ * <p>
+ * GL state that GlStateManager caches is changed through GlStateManager and put back
+ * afterwards, so vanilla rendering is unaffected. All methods must be called on the
+ * render thread.
+ */
+public class FullscreenPass {
+    private static final Logger LOGGER = LogManager.getLogger(FullscreenPass.class);
+    private static final String SHADER_PATH = "assets/vereya/shaders/post/";
+
+    private final String fragmentName;
+    private final int internalFormat;
+    private final int format;
+    private final int type;
+    private int program = -1;
+    private int vao = 0;
+    private int fbo = 0;
+    private int texture = 0;
+    private int width = 0;
+    private int height = 0;
+    private final int[] viewport = new int[4];
+    // Float uniforms applied on every draw, and their locations once the program is linked.
+    private final Map<String, Float> uniforms = new LinkedHashMap<>();
+    private final Map<String, Integer> uniformLocations = new LinkedHashMap<>();
+
+    /**
+     * @param fragmentName fragment shader, without the .fsh extension.
+     * @param internalFormat internal format of the target texture, eg GL_R8.
+     * @param format pixel format of the target, eg GL_RED.
+     * @param type pixel type of the target, eg GL_UNSIGNED_BYTE.
+     */
+    public FullscreenPass(String fragmentName, int internalFormat, int format, int type) {
+        this.fragmentName = fragmentName;
+        this.internalFormat = internalFormat;
+        this.format = format;
+        this.type = type;
+    }
+
+    /** Compile and link the program if not done yet. Returns false if it cannot be built. */
+    public boolean ensureProgram() {
+        if (this.program > 0)
+            return true;
+        if (this.program == 0)
+            return false; // Failed before; don't spam the log every frame.
+        this.program = 0;
+        int v = loadShader("fullscreen.vsh", GL20.GL_VERTEX_SHADER);
+        int f = loadShader(this.fragmentName + ".fsh", GL20.GL_FRAGMENT_SHADER);
+        if (v <= 0 || f <= 0) {
+            if (v > 0) GL20.glDeleteShader(v);
+            if (f > 0) GL20.glDeleteShader(f);
+            return false;
+        }
+        int prog = GL20.glCreateProgram();
+        GL20.glAttachShader(prog, v);
+        GL20.glAttachShader(prog, f);
+        GL20.glLinkProgram(prog);
+        GL20.glDetachShader(prog, v);
+        GL20.glDetachShader(prog, f);
+        GL20.glDeleteShader(v);
+        GL20.glDeleteShader(f);
+        if (GL20.glGetProgrami(prog, GL20.GL_LINK_STATUS) == GL11.GL_FALSE) {
+            LOGGER.error("Shader link error ({}): {}", this.fragmentName, GL20.glGetProgramInfoLog(prog));
+            GL20.glDeleteProgram(prog);
+            return false;
+        }
+        int previous = GlStateTracker.getProgram();
+        GlStateManager._glUseProgram(prog);
+        GL20.glUniform1i(GL20.glGetUniformLocation(prog, "Source"), 0);
+        GL20.glUniform1i(GL20.glGetUniformLocation(prog, "Aux"), 1);
+        GlStateManager._glUseProgram(previous);
+        this.program = prog;
+        this.vao = GL30.glGenVertexArrays();
+        return true;
+    }
+
+    /** The linked program, for looking up and setting extra uniforms; -1 or 0 if not built. */
+    public int getProgram() {
+        return this.program;
+    }
+
+    /** Texture holding the result of the last draw, for use as the input to another pass. */
+    public int getTexture() {
+        return this.texture;
+    }
+
+    /** Set a float uniform; it is applied on every subsequent draw. */
+    public void setUniform(String name, float value) {
+        this.uniforms.put(name, value);
+    }
+
+    public int getWidth() { return this.width; }
+
+    public int getHeight() { return this.height; }
+
+    private void ensureTarget(int width, int height) {
+        if (this.fbo != 0 && this.width == width && this.height == height)
+            return;
+        deleteTarget();
+        this.texture = GlStateManager._genTexture();
+        GlStateManager._bindTexture(this.texture);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MIN_FILTER, GL11.GL_NEAREST);
+        GlStateManager._texParameter(GL11.GL_TEXTURE_2D, GL11.GL_TEXTURE_MAG_FILTER, GL11.GL_NEAREST);
+        GlStateManager._texImage2D(GL11.GL_TEXTURE_2D, 0, this.internalFormat, width, height, 0, this.format, this.type, null);
+        GlStateManager._bindTexture(0);
+        this.fbo = GlStateManager.glGenFramebuffers();
+        GlStateManager._glBindFramebuffer(GlConst.GL_FRAMEBUFFER, this.fbo);
+        GlStateManager._glFramebufferTexture2D(GlConst.GL_FRAMEBUFFER, GL30.GL_COLOR_ATTACHMENT0, GL11.GL_TEXTURE_2D, this.texture, 0);
+        int status = GL30.glCheckFramebufferStatus(GL30.GL_FRAMEBUFFER);
+        if (status != GL30.GL_FRAMEBUFFER_COMPLETE)
+            LOGGER.error("{} target {}x{} incomplete: 0x{}", this.fragmentName, width, height, Integer.toHexString(status));
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Run the shader over a width x height target, sampling {@code sourceTexture}.
+     * Leaves the framebuffer bindings as they were.
+     *
+     * @return false, having drawn nothing, if the program could not be built.
+     */
+    public boolean draw(int sourceTexture, int width, int height) {
+        return draw(sourceTexture, 0, width, height);
+    }
+
+    /**
+     * Run the shader over a width x height target, sampling {@code sourceTexture} as
+     * Source and, if non-zero, {@code auxTexture} as Aux.
+     *
+     * @return false, having drawn nothing, if the program could not be built.
+     */
+    public boolean draw(int sourceTexture, int auxTexture, int width, int height) {
+        if (!ensureProgram())
+            return false;
+        int prevDrawFb = GlStateTracker.getDrawFramebuffer();
+        int prevReadFb = GlStateTracker.getReadFramebuffer();
+        int prevProgram = GlStateTracker.getProgram();
+        // Everything saved here comes from GlStateTracker rather than glGet*, which would stall.
+        int prevVao = GlStateTracker.getVertexArray();
+        int prevActiveTexture = GlStateManager._getActiveTexture();
+        int prevTexture = GlStateTracker.getBoundTexture(0);
+        int prevAuxTexture = auxTexture != 0 ? GlStateTracker.getBoundTexture(1) : 0;
+        boolean blend = GlStateTracker.isCapabilityEnabled(GL11.GL_BLEND);
+        boolean depthTest = GlStateTracker.isCapabilityEnabled(GL11.GL_DEPTH_TEST);
+        boolean cull = GlStateTracker.isCapabilityEnabled(GL11.GL_CULL_FACE);
+        boolean scissor = GlStateTracker.isCapabilityEnabled(GL11.GL_SCISSOR_TEST);
+        GlStateTracker.getViewport(this.viewport);
+        GlStateManager._activeTexture(GL13.GL_TEXTURE0);
+        try {
+            ensureTarget(width, height);
+            GlStateManager._glBindFramebuffer(GlConst.GL_FRAMEBUFFER, this.fbo);
+            GlStateManager._viewport(0, 0, width, height);
+            if (blend) GlStateManager._disableBlend();
+            if (depthTest) GlStateManager._disableDepthTest();
+            if (cull) GlStateManager._disableCull();
+            if (scissor) GlStateManager._disableScissorTest();
+            GlStateManager._glUseProgram(this.program);
+            for (Map.Entry<String, Float> uniform : this.uniforms.entrySet()) {
+                Integer location = this.uniformLocations.get(uniform.getKey());
+                if (location == null) {
+                    location = GL20.glGetUniformLocation(this.program, uniform.getKey());
+                    this.uniformLocations.put(uniform.getKey(), location);
+                }
+                if (location >= 0)
+                    GL20.glUniform1f(location, uniform.getValue());
+            }
+            if (auxTexture != 0) {
+                GlStateManager._activeTexture(GL13.GL_TEXTURE1);
+                GlStateManager._bindTexture(auxTexture);
+                GlStateManager._activeTexture(GL13.GL_TEXTURE0);
+            }
+            GlStateManager._bindTexture(sourceTexture);
+            GlStateManager._glBindVertexArray(this.vao);
+            GL11.glDrawArrays(GL11.GL_TRIANGLES, 0, 3);
+        } finally {
+            GlStateManager._glBindVertexArray(prevVao);
+            if (auxTexture != 0) {
+                GlStateManager._activeTexture(GL13.GL_TEXTURE1);
+                GlStateManager._bindTexture(prevAuxTexture);
+                GlStateManager._activeTexture(GL13.GL_TEXTURE0);
+            }
+            GlStateManager._bindTexture(prevTexture);
+            GlStateManager._activeTexture(prevActiveTexture);
+            GlStateManager._glUseProgram(prevProgram);
+            if (blend) GlStateManager._enableBlend();
+            if (depthTest) GlStateManager._enableDepthTest();
+            if (cull) GlStateManager._enableCull();
+            if (scissor) GlStateManager._enableScissorTest();
+            GlStateManager._viewport(this.viewport[0], this.viewport[1], this.viewport[2], this.viewport[3]);
+            GlStateManager._glBindFramebuffer(GlConst.GL_DRAW_FRAMEBUFFER, prevDrawFb);
+            GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, prevReadFb);
+        }
+        return true;
+    }
+
+    /**
+     * Bind the target for reading, so the caller can glReadPixels (directly or through a
+     * PixelPackRing) with PACK_ALIGNMENT 1. Call {@link #endRead} with the returned state.
+     *
+     * @return {previous read framebuffer}
+     */
+    public int[] beginRead() {
+        // The read buffer belongs to our framebuffer object, so only the binding needs restoring.
+        int[] previous = {GlStateTracker.getReadFramebuffer()};
+        GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, this.fbo);
+        GL11.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0);
+        GlStateManager._pixelStore(GL11.GL_PACK_ALIGNMENT, 1);
+        return previous;
+    }
+
+    public void endRead(int[] previous) {
+        // Vanilla sets the alignment before each of its own reads; leave the GL default.
+        GlStateManager._pixelStore(GL11.GL_PACK_ALIGNMENT, 4);
+        GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, previous[0]);
+    }
+
+    /**
+     * Synchronously read the whole target into dst, which is flipped ready to send.
+     *
+     * @return false, leaving dst empty, if the program could not be built or nothing has been
+     * drawn, so that there is no frame to read.
+     */
+    public boolean read(ByteBuffer dst) {
+        if (!ensureProgram() || this.fbo == 0) {
+            dst.clear();
+            dst.limit(0);
+            return false;
+        }
+        int[] previous = beginRead();
+        try {
+            dst.clear();
+            GL11.glReadPixels(0, 0, this.width, this.height, this.format, this.type, dst);
+        } finally {
+            endRead(previous);
+        }
+        return true;
+    }
+
+    private void deleteTarget() {
+        if (this.fbo != 0) {
+            GlStateManager._glDeleteFramebuffers(this.fbo);
+            this.fbo = 0;
+        }
+        if (this.texture != 0) {
+            GlStateManager._deleteTexture(this.texture);
+            this.texture = 0;
+        }
+        this.width = 0;
+        this.height = 0;
+    }
+
+    /** Release all GL objects. The pass can be used again afterwards. */
+    public void delete() {
+        deleteTarget();
+        if (this.program > 0)
+            GL20.glDeleteProgram(this.program);
+        if (this.vao != 0)
+            GL30.glDeleteVertexArrays(this.vao);
+        this.program = -1;
+        this.vao = 0;
+        this.uniformLocations.clear();
+    }
+
+    private static int loadShader(String filename, int shaderType) {
+        try (InputStream stream = FullscreenPass.class.getClassLoader().getResourceAsStream(SHADER_PATH + filename)) {
+            if (stream == null) {
+                LOGGER.error("Shader {} not found", filename);
+                return -1;
+            }
+            String src = new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+            int shader = GL20.glCreateShader(shaderType);
+            GL20.glShaderSource(shader, src);
+            GL20.glCompileShader(shader);
+            if (GL20.glGetShaderi(shader, GL20.GL_COMPILE_STATUS) == GL11.GL_FALSE) {
+                LOGGER.error("Shader compile error ({}): {}", filename, GL20.glGetShaderInfoLog(shader));
+                GL20.glDeleteShader(shader);
+                return -1;
+            }
+            return shader;
+        } catch (Exception e) {
+            LOGGER.error("Failed to load shader {}: {}", filename, e.getMessage());
+            return -1;
+        }
+    }
+}
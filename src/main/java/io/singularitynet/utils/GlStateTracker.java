@@ -0,0 +1,198 @@
+package io.singularitynet.utils;
+
+import com.mojang.blaze3d.platform.GlConst;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL13;
+
+import java.nio.IntBuffer;
+
+/**
+ * CPU-side copy of the GL state our render hooks need to save and restore, so that they
+ * don't have to ask the driver for it: a glGet* makes the CPU wait for the GL thread to
+ * catch up, which on a threaded driver costs far more than the call looks like.
+ * <p>
+ * Framebuffer, program, texture and vertex array bindings, the viewport, and the blend, depth
+ * test, cull and scissor capabilities are recorded as they go through GlStateManager (see
+ * GlStateManagerTrackingMixin); vanilla, and our own code, always set them through it, so these
+ * are the values the next vanilla draw assumes - the ones to put back after changing them. Where a
+ * query is still needed, go through {@link #getInteger} and friends so that it is counted;
+ * with -Dvereya.gl.countQueries=true the number per frame is logged every few seconds.
+ * Render thread only.
+ */
+public class GlStateTracker {
+    private static final Logger LOGGER = LogManager.getLogger(GlStateTracker.class);
+    private static final boolean COUNT_QUERIES = Boolean.getBoolean("vereya.gl.countQueries");
+    private static final long REPORT_INTERVAL_NS = 5_000_000_000L;
+
+    private static int drawFramebuffer = 0;
+    private static int readFramebuffer = 0;
+    private static int program = 0;
+    private static int vertexArray = 0;
+    private static int activeTexture = 0;
+    private static final int[] boundTextures = new int[32];
+    private static final int[] viewport = new int[4];
+    private static boolean blend = false;
+    private static boolean depthTest = false;
+    private static boolean cull = false;
+    private static boolean scissorTest = false;
+
+    private static int queriesThisFrame = 0;
+    private static long queries = 0;
+    private static int maxQueriesPerFrame = 0;
+    private static long frames = 0;
+    private static long lastReportNs = 0;
+
+    private GlStateTracker() {}
+
+    public static void onBindFramebuffer(int target, int framebuffer) {
+        if (target == GlConst.GL_FRAMEBUFFER) {
+            drawFramebuffer = framebuffer;
+            readFramebuffer = framebuffer;
+        } else if (target == GlConst.GL_DRAW_FRAMEBUFFER) {
+            drawFramebuffer = framebuffer;
+        } else if (target == GlConst.GL_READ_FRAMEBUFFER) {
+            readFramebuffer = framebuffer;
+        }
+    }
+
+    public static void onDeleteFramebuffer(int framebuffer) {
+        // Deleting a bound framebuffer reverts that binding to the default one.
+        if (drawFramebuffer == framebuffer)
+            drawFramebuffer = 0;
+        if (readFramebuffer == framebuffer)
+            readFramebuffer = 0;
+    }
+
+    public static void onUseProgram(int id) {
+        program = id;
+    }
+
+    public static void onBindVertexArray(int array) {
+        vertexArray = array;
+    }
+
+    /** @param texture GL_TEXTURE0 + unit, as GlStateManager._activeTexture takes it. */
+    public static void onActiveTexture(int texture) {
+        activeTexture = texture - GL13.GL_TEXTURE0;
+    }
+
+    public static void onBindTexture(int texture) {
+        if (activeTexture >= 0 && activeTexture < boundTextures.length)
+            boundTextures[activeTexture] = texture;
+    }
+
+    public static void onDeleteTexture(int texture) {
+        // Deleting a bound texture reverts the units it was bound to to texture zero.
+        for (int unit = 0; unit < boundTextures.length; unit++) {
+            if (boundTextures[unit] == texture)
+                boundTextures[unit] = 0;
+        }
+    }
+
+    public static void onViewport(int x, int y, int width, int height) {
+        viewport[0] = x;
+        viewport[1] = y;
+        viewport[2] = width;
+        viewport[3] = height;
+    }
+
+    /** @param cap one of GL_BLEND, GL_DEPTH_TEST, GL_CULL_FACE or GL_SCISSOR_TEST; others are ignored. */
+    public static void onSetCapability(int cap, boolean enabled) {
+        switch (cap) {
+            case GL11.GL_BLEND -> blend = enabled;
+            case GL11.GL_DEPTH_TEST -> depthTest = enabled;
+            case GL11.GL_CULL_FACE -> cull = enabled;
+            case GL11.GL_SCISSOR_TEST -> scissorTest = enabled;
+            default -> {}
+        }
+    }
+
+    public static int getDrawFramebuffer() {
+        return drawFramebuffer;
+    }
+
+    public static int getReadFramebuffer() {
+        return readFramebuffer;
+    }
+
+    public static int getProgram() {
+        return program;
+    }
+
+    public static int getVertexArray() {
+        return vertexArray;
+    }
+
+    /** The texture bound to GL_TEXTURE_2D on the given unit, counting from zero. */
+    public static int getBoundTexture(int unit) {
+        return unit >= 0 && unit < boundTextures.length ? boundTextures[unit] : 0;
+    }
+
+    /** Copy the viewport, as x, y, width, height, into dst. */
+    public static void getViewport(int[] dst) {
+        System.arraycopy(viewport, 0, dst, 0, 4);
+    }
+
+    /** Whether GL_BLEND, GL_DEPTH_TEST, GL_CULL_FACE or GL_SCISSOR_TEST is enabled; false for anything else. */
+    public static boolean isCapabilityEnabled(int cap) {
+        return switch (cap) {
+            case GL11.GL_BLEND -> blend;
+            case GL11.GL_DEPTH_TEST -> depthTest;
+            case GL11.GL_CULL_FACE -> cull;
+            case GL11.GL_SCISSOR_TEST -> scissorTest;
+            default -> false;
+        };
+    }
+
+    /** GL11.glGetInteger, counted. */
+    public static int getInteger(int pname) {
+        queriesThisFrame++;
+        return GL11.glGetInteger(pname);
+    }
+
+    /** GL11.glGetIntegerv, counted. */
+    public static void getIntegerv(int pname, IntBuffer params) {
+        queriesThisFrame++;
+        GL11.glGetIntegerv(pname, params);
+    }
+
+    /** GL11.glGetIntegerv, counted. */
+    public static void getIntegerv(int pname, int[] params) {
+        queriesThisFrame++;
+        GL11.glGetIntegerv(pname, params);
+    }
+
+    /** GL11.glIsEnabled, counted. */
+    public static boolean isEnabled(int cap) {
+        queriesThisFrame++;
+        return GL11.glIsEnabled(cap);
+    }
+
+    /** Number of counted queries made so far in the current frame. */
+    public static int getQueriesThisFrame() {
+        return queriesThisFrame;
+    }
+
+    /** Call once at the end of every rendered frame. */
+    public static void endFrame() {
+        if (COUNT_QUERIES) {
+            queries += queriesThisFrame;
+            maxQueriesPerFrame = Math.max(maxQueriesPerFrame, queriesThisFrame);
+            frames++;
+            long now = System.nanoTime();
+            if (lastReportNs == 0) {
+                lastReportNs = now;
+            } else if (now - lastReportNs >= REPORT_INTERVAL_NS) {
+                LOGGER.info("GlStateTracker: {} glGet calls over {} frames ({} per frame on average, at most {})",
+                        queries, frames, String.format("%.1f", (double) queries / frames), maxQueriesPerFrame);
+                queries = 0;
+                frames = 0;
+                maxQueriesPerFrame = 0;
+                lastReportNs = now;
+            }
+        }
+        queriesThisFrame = 0;
+    }
+}
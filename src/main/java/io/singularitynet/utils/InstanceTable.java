@@ -0,0 +1,163 @@
+package io.singularitynet.utils;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityType;
+import net.minecraft.registry.Registries;
+import net.minecraft.util.math.Box;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The entities drawn into one instance segmentation frame: for each, the instance id its
+ * pixels carry, its UUID, type and world-space bounding box.
+ * <p>
+ * Filled on the render thread during the segmentation pass, then copied into the frame that
+ * is sent, so that the sender thread never sees it change. Storage is reused between frames,
+ * and types are kept UTF-8 encoded, each entity type encoded only the first time it is seen.
+ * <p>
+ * Binary form, little-endian as the rest of the frame header, repeated per entry:
+ * <pre>
+ *  u32  instance id
+ *  i64  UUID most significant bits
+ *  i64  UUID least significant bits
+ *  f32  minX, minY, minZ, maxX, maxY, maxZ
+ *  u16  length of the type
+ *  ...  entity type id, eg "minecraft:chicken", UTF-8
+ * </pre>
+ */
+public class InstanceTable {
+    private static final int FIXED_ENTRY_SIZE = 4 + 16 + 24 + 2;
+    // Render thread only, as add(int, Entity) is.
+    private static final Map<EntityType<?>, byte[]> TYPE_BYTES = new IdentityHashMap<>();
+
+    private int size = 0;
+    private int[] ids = new int[16];
+    private long[] uuids = new long[32];
+    private float[] boxes = new float[96];
+    private byte[][] types = new byte[16][];
+    private int binarySize = 0;
+
+    public int size() {
+        return this.size;
+    }
+
+    public void clear() {
+        Arrays.fill(this.types, 0, this.size, null);
+        this.size = 0;
+        this.binarySize = 0;
+    }
+
+    public void add(int id, Entity entity) {
+        UUID uuid = entity.getUuid();
+        Box box = entity.getBoundingBox();
+        add(id, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                TYPE_BYTES.computeIfAbsent(entity.getType(),
+                        type -> Registries.ENTITY_TYPE.getId(type).toString().getBytes(StandardCharsets.UTF_8)),
+                (float) box.minX, (float) box.minY, (float) box.minZ,
+                (float) box.maxX, (float) box.maxY, (float) box.maxZ);
+    }
+
+    /** Add an entry from its fields, as {@link #add(int, Entity)} does for a live entity. */
+    public void add(int id, long uuidMost, long uuidLeast, String type,
+                     float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        add(id, uuidMost, uuidLeast, type.getBytes(StandardCharsets.UTF_8), minX, minY, minZ, maxX, maxY, maxZ);
+    }
+
+    /** type is kept, not copied: entries and copies of the table share it, and nothing writes to it. */
+    private void add(int id, long uuidMost, long uuidLeast, byte[] type,
+                     float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        if (this.size == this.ids.length) {
+            int capacity = this.size * 2;
+            this.ids = Arrays.copyOf(this.ids, capacity);
+            this.uuids = Arrays.copyOf(this.uuids, capacity * 2);
+            this.boxes = Arrays.copyOf(this.boxes, capacity * 6);
+            this.types = Arrays.copyOf(this.types, capacity);
+        }
+        int i = this.size++;
+        this.ids[i] = id;
+        this.uuids[i * 2] = uuidMost;
+        this.uuids[i * 2 + 1] = uuidLeast;
+        float[] b = this.boxes;
+        b[i * 6] = minX;
+        b[i * 6 + 1] = minY;
+        b[i * 6 + 2] = minZ;
+        b[i * 6 + 3] = maxX;
+        b[i * 6 + 4] = maxY;
+        b[i * 6 + 5] = maxZ;
+        this.types[i] = type;
+        this.binarySize += FIXED_ENTRY_SIZE + type.length;
+    }
+
+    /** Make this table a copy of other, or empty it if other is null. */
+    public void copyFrom(InstanceTable other) {
+        clear();
+        if (other == null)
+            return;
+        for (int i = 0; i < other.size; i++) {
+            float[] b = other.boxes;
+            add(other.ids[i], other.uuids[i * 2], other.uuids[i * 2 + 1], other.types[i],
+                    b[i * 6], b[i * 6 + 1], b[i * 6 + 2], b[i * 6 + 3], b[i * 6 + 4], b[i * 6 + 5]);
+        }
+    }
+
+    /** Bytes that {@link #write} puts, for the first count entries. */
+    public int getBinarySize(int count) {
+        if (count >= this.size)
+            return this.binarySize;
+        int bytes = 0;
+        for (int i = 0; i < count; i++)
+            bytes += FIXED_ENTRY_SIZE + this.types[i].length;
+        return bytes;
+    }
+
+    /** Number of leading entries whose binary form fits in maxBytes. */
+    public int countFitting(int maxBytes) {
+        if (this.binarySize <= maxBytes)
+            return this.size;
+        int bytes = 0;
+        for (int i = 0; i < this.size; i++) {
+            bytes += FIXED_ENTRY_SIZE + this.types[i].length;
+            if (bytes > maxBytes)
+                return i;
+        }
+        return this.size;
+    }
+
+    /** Put the first count entries into dst, in the binary form described above. */
+    public void write(ByteBuffer dst, int count) {
+        for (int i = 0; i < count && i < this.size; i++) {
+            dst.putInt(this.ids[i]);
+            dst.putLong(this.uuids[i * 2]);
+            dst.putLong(this.uuids[i * 2 + 1]);
+            for (int k = 0; k < 6; k++)
+                dst.putFloat(this.boxes[i * 6 + k]);
+            byte[] type = this.types[i];
+            dst.putShort((short) type.length);
+            dst.put(type);
+        }
+    }
+
+    /** [{"id": n, "uuid": "...", "type": "minecraft:chicken", "box": [minX, minY, minZ, maxX, maxY, maxZ]}, ...] */
+    public JSONArray toJson() {
+        JSONArray entries = new JSONArray();
+        for (int i = 0; i < this.size; i++) {
+            JSONObject jo = new JSONObject();
+            jo.put("id", this.ids[i]);
+            jo.put("uuid", new UUID(this.uuids[i * 2], this.uuids[i * 2 + 1]).toString());
+            jo.put("type", new String(this.types[i], StandardCharsets.UTF_8));
+            JSONArray box = new JSONArray();
+            for (int k = 0; k < 6; k++)
+                box.put(this.boxes[i * 6 + k]);
+            jo.put("box", box);
+            entries.put(jo);
+        }
+        return entries;
+    }
+}
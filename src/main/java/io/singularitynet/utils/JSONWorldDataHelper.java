@@ -22,7 +22,6 @@ package io.singularitynet.utils;
 
 
 import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 import io.singularitynet.Client.VereyaModClient;
@@ -152,8 +151,27 @@ public class JSONWorldDataHelper {
         if (player == null || json == null)
             return;
 
-        JsonArray arr = new JsonArray();
+        String[] names = getGridBlockNames(environmentDimensions, player, null);
+        JsonArray arr = new JsonArray(names.length);
+        for (String name : names)
+            arr.add(new JsonPrimitive(name));
+        json.add(jsonName, arr);
+    }
+
+    /**
+     * Block names for the grid centred on the player, in the same order as {@link #buildGridData}.
+     * @param names array to fill if it is the right size, so that it can be reused from one observation to the next; may be null.
+     * @return the filled array.
+     */
+    public static String[] getGridBlockNames(GridDimensions environmentDimensions, LivingEntity player, String[] names)
+    {
+        int count = (environmentDimensions.xMax - environmentDimensions.xMin + 1)
+                * (environmentDimensions.yMax - environmentDimensions.yMin + 1)
+                * (environmentDimensions.zMax - environmentDimensions.zMin + 1);
+        if (names == null || names.length != count)
+            names = new String[count];
 
+        int i = 0;
         BlockPos pos = new BlockPos(player.getBlockX(), player.getBlockY(), player.getBlockZ());
         for (int y = environmentDimensions.yMin; y <= environmentDimensions.yMax; y++)
         {
@@ -166,16 +184,13 @@ public class JSONWorldDataHelper {
                         p = new BlockPos(x, y, z);
                     else
                         p = pos.add(x, y, z);
-                    String name = "";
                     BlockState state = player.getWorld().getBlockState(p);
                     Identifier blockName = Registries.BLOCK.getId(state.getBlock());
-                    name = blockName.getPath();
-                    JsonElement element = new JsonPrimitive(name);
-                    arr.add(element);
+                    names[i++] = blockName.getPath();
                 }
             }
         }
-        json.add(jsonName, arr);
+        return names;
     }
 
     public static void buildControllableMobsData(JsonObject json, Map<String, MobEntity> entities){
@@ -217,6 +232,29 @@ public class JSONWorldDataHelper {
         return invName;
     }
 
+    /**
+     * The same entries as {@link #getInventoryJSON}, written into the array that is open in out,
+     * with the item and inventory names as symbols.
+     */
+    public static void writeInventory(ObservationWriter out, Inventory inventory)
+    {
+        String invName = getInventoryName(inventory);
+        for (int i = 0; i < inventory.size(); i++)
+        {
+            ItemStack is = inventory.getStack(i);
+            if (is != null && !is.isEmpty())
+            {
+                String name = is.getItem().toString().replaceAll("minecraft:|\"", "");
+                out.beginMap();
+                out.key("type").symbol(name);
+                out.key("index").value(i);
+                out.key("quantity").value(is.getCount());
+                out.key("inventory").symbol(invName);
+                out.end();
+            }
+        }
+    }
+
     public static void getInventoryJSON(JsonArray arr, Inventory inventory)
     {
         String invName = getInventoryName(inventory);
@@ -0,0 +1,100 @@
+package io.singularitynet.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size, lock-free histogram of durations, for recording latencies on hot paths.
+ * <p>
+ * Durations are kept in microseconds in log-linear buckets: exact below 16us, and above that
+ * 16 buckets per power of two, so any percentile read back is within about 6% of the true
+ * value. Recording is a couple of atomic increments and never allocates; it is safe from any
+ * number of threads. Percentiles are computed from a snapshot that is not atomic across
+ * buckets, which is fine for monitoring.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Up to 2^40us, about 12 days; anything longer lands in the last bucket.
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BUCKET_BITS + 2);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong maxUs = new AtomicLong();
+
+    /** Record a duration given in nanoseconds; negative durations are ignored. */
+    public void recordNanos(long nanos) {
+        if (nanos < 0)
+            return;
+        long us = nanos / 1000L;
+        this.counts.incrementAndGet(bucketOf(us));
+        this.total.incrementAndGet();
+        long max = this.maxUs.get();
+        while (us > max && !this.maxUs.compareAndSet(max, us))
+            max = this.maxUs.get();
+    }
+
+    public long getCount() {
+        return this.total.get();
+    }
+
+    public double getMaxMs() {
+        return this.maxUs.get() / 1000.0;
+    }
+
+    /**
+     * The duration, in milliseconds, below which the given fraction of recorded values fall.
+     *
+     * @param quantile between 0 and 1, e.g. 0.99 for p99.
+     * @return the upper bound of the bucket holding that value, or 0 if nothing has been recorded.
+     */
+    public double getPercentileMs(double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            count += snapshot[i];
+        }
+        if (count == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank)
+                return Math.min(upperBoundOf(i), this.maxUs.get()) / 1000.0;
+        }
+        return getMaxMs();
+    }
+
+    /** Forget everything recorded so far. */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            this.counts.set(i, 0);
+        this.total.set(0);
+        this.maxUs.set(0);
+    }
+
+    private static int bucketOf(long us) {
+        if (us < SUB_BUCKETS)
+            return (int) us;
+        int exponent = 63 - Long.numberOfLeadingZeros(us);
+        if (exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (us >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - SUB_BUCKET_BITS + 1) + sub;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        // Open-ended: the maximum recorded bounds it instead.
+        if (bucket == BUCKETS - 1)
+            return Long.MAX_VALUE;
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,806 @@
+package io.singularitynet.utils;
+
+import org.json.JSONObject;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+
+/**
+ * A single TCP connection to the agent that carries every stream of a mission - observations,
+ * rewards, each video stream, and commands coming back - for agents whose ClientAgentConnection
+ * asks for agentTransport="multiplexed".
+ * <p>
+ * Each stream is a {@link Channel}, which can be used wherever a {@link TCPSocketChannel} is.
+ * Messages are cut into fragments of at most {@link #FRAGMENT_SIZE} bytes, and one writer thread
+ * always sends the next fragment of the most urgent channel that has one, so a reward or an
+ * observation waits for at most one fragment of a video frame; channels of equal priority take
+ * turns, a fragment each. Every fragment has an 8-byte big-endian header:
+ * <pre>
+ * offset size
+ *   0     1   channel id
+ *   1     1   flags: {@link #FLAG_END} on the last fragment of a message, with {@link #FLAG_ABORT}
+ *             as well if the rest of the message was abandoned - the fragment is then empty, and
+ *             the agent should discard what it has of the message
+ *   2     2   zero
+ *   4     4   fragment length in bytes
+ *   8     -   fragment
+ * </pre>
+ * Channel {@link #CHANNEL_CONTROL} carries JSON messages from the client: first
+ * {"hello": version, "experimentId": ..., "role": ...}, so that an agent taking connections from
+ * many clients on one port can tell them apart, then {"open": id, "name": ...} as each channel is
+ * opened; channels last as long as the connection. The agent sends commands on
+ * {@link #CHANNEL_COMMANDS}, one per line, in UTF-8; they are queued on the command poller as if
+ * they had come in on the commands port.
+ * <p>
+ * If the connection fails, whatever was queued is dropped, and the writer tries to connect again
+ * every {@link #RECONNECT_INTERVAL_MS}; once it has, it sends the hello and an open message for
+ * each channel again, with the same ids, so an agent sees the client arrive afresh. Until then,
+ * sends on every channel fail at once, as dropped. A Channel never sets
+ * {@link TCPSocketChannel#exception}: that would have VideoFrameSender replace it with a
+ * connection of its own, to a port the agent isn't listening on.
+ * <p>
+ * The socket's send buffer is kept to a few fragments ({@link #SEND_BUFFER_SIZE}): what is in the
+ * kernel's buffer can no longer be overtaken, so with the usual megabytes there a reward could sit
+ * behind most of a video frame however urgent its channel. The price is throughput on a link whose
+ * bandwidth-delay product is larger than the buffer, which a local agent never sees; for a remote
+ * one, raise it with -Dvereya.mux.sendBuffer, or set 0 to leave the system's default.
+ */
+public class MultiplexedConnection
+{
+    public static final int VERSION = 1;
+    public static final int CHANNEL_CONTROL = 0;
+    public static final int CHANNEL_COMMANDS = 1;
+    public static final int FLAG_END = 1;
+    public static final int FLAG_ABORT = 2;
+    public static final int HEADER_SIZE = 8;
+    public static final int FRAGMENT_SIZE = 64 * 1024;
+    /** SO_SNDBUF for the socket, in bytes; 0 leaves the system's default. */
+    public static final int SEND_BUFFER_SIZE = Integer.getInteger("vereya.mux.sendBuffer", 4 * (HEADER_SIZE + FRAGMENT_SIZE));
+
+    /** Channel priorities; lower goes first. */
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_REWARDS = 1;
+    public static final int PRIORITY_OBSERVATIONS = 2;
+    public static final int PRIORITY_VIDEO = 3;
+
+    private static final int MAX_CHANNELS = 256;
+    private static final int MAX_COMMAND_MESSAGE = 10000000;
+    private static final long CLOSE_DRAIN_TIMEOUT_MS = 1000;
+    private static final long STOP_TIMEOUT_MS = 2000;
+    public static final long RECONNECT_INTERVAL_MS = 1000;
+
+    /** One message waiting to go; blocking senders wait for done. */
+    private static final class Message
+    {
+        ByteBuffer[] parts;
+        int part = 0;
+        int remaining;
+        boolean started = false;
+        boolean aborted = false;
+        boolean done = false;
+        // Done because the connection failed, rather than written.
+        boolean failed = false;
+
+        Message(ByteBuffer[] parts, int length)
+        {
+            this.parts = parts;
+            this.remaining = length;
+        }
+    }
+
+    /**
+     * One typed stream over the connection. Its sends behave as those of a TCPSocketChannel
+     * with the same high watermark: queued, or dropped past the watermark, if it has one, and
+     * otherwise blocking until the message has been written. The messages need no length
+     * prefix, since the fragments delimit them.
+     */
+    public class Channel extends TCPSocketChannel
+    {
+        private final int id;
+        private final String name;
+        private final int priority;
+        private final long highWatermark;
+        // Guarded by the connection's lock.
+        private final ArrayDeque<Message> queue = new ArrayDeque<>();
+        private volatile boolean closed = false;
+        private volatile long bytesPending = 0;
+        private volatile long bytesSent = 0;
+        private final AtomicLong messagesDropped = new AtomicLong();
+
+        private Channel(int id, String name, int priority, long highWatermark)
+        {
+            // Port 0: the base class doesn't open a connection of its own.
+            super(MultiplexedConnection.this.address, 0, name, highWatermark);
+            this.id = id;
+            this.name = name;
+            this.priority = priority;
+            this.highWatermark = highWatermark;
+        }
+
+        public int getId() { return this.id; }
+
+        @Override
+        public int getPort() { return MultiplexedConnection.this.port; }
+
+        @Override
+        public boolean isValid() { return MultiplexedConnection.this.isConnected(); }
+
+        @Override
+        public boolean isOpen() { return !this.closed && MultiplexedConnection.this.isConnected(); }
+
+        @Override
+        public long getBytesPending() { return this.bytesPending; }
+
+        @Override
+        public long getBytesSent() { return this.bytesSent; }
+
+        @Override
+        public long getMessagesDropped() { return this.messagesDropped.get(); }
+
+        @Override
+        public JSONObject getStats()
+        {
+            JSONObject jo = new JSONObject();
+            jo.put("name", this.name);
+            jo.put("channel", this.id);
+            jo.put("bytesPending", this.bytesPending);
+            jo.put("bytesSent", this.bytesSent);
+            jo.put("messagesDropped", this.messagesDropped.get());
+            jo.put("highWatermark", this.highWatermark);
+            return jo;
+        }
+
+        /**
+         * Stop sending on this channel, and give up waiting on a send in progress; the
+         * connection itself stays up for the others.
+         */
+        @Override
+        public void close()
+        {
+            MultiplexedConnection.this.closeChannel(this);
+        }
+
+        @Override
+        public SendResult offerTCPBytes(byte[] bytes, int offset, int length)
+        {
+            if (!isNonBlocking())
+                return sendTCPBytes(Arrays.copyOfRange(bytes, offset, offset + length), 0) ? SendResult.QUEUED : SendResult.DROPPED;
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(bytes, offset, length);
+            copy.flip();
+            return MultiplexedConnection.this.enqueue(this, new Message(new ByteBuffer[]{copy}, length), false);
+        }
+
+        @Override
+        public boolean sendTCPBytes(byte[] bytes, int retries)
+        {
+            if (isNonBlocking())
+                return offerTCPBytes(bytes) == SendResult.QUEUED;
+            return MultiplexedConnection.this.enqueue(this, new Message(new ByteBuffer[]{ByteBuffer.wrap(bytes)}, bytes.length), true) == SendResult.QUEUED;
+        }
+
+        @Override
+        public boolean sendTCPBytes(ByteBuffer[] srcbuffers, int length)
+        {
+            if (isNonBlocking())
+            {
+                byte[] bytes = new byte[length];
+                ByteBuffer dst = ByteBuffer.wrap(bytes);
+                for (ByteBuffer srcbuffer : srcbuffers) dst.put(srcbuffer);
+                return offerTCPBytes(bytes) == SendResult.QUEUED;
+            }
+            // The writer copies fragments straight out of the caller's buffers, which is why this waits.
+            ByteBuffer[] parts = new ByteBuffer[srcbuffers.length];
+            for (int i = 0; i < parts.length; i++)
+                parts[i] = srcbuffers[i].duplicate();
+            return MultiplexedConnection.this.enqueue(this, new Message(parts, length), true) == SendResult.QUEUED;
+        }
+    }
+
+    private final String address;
+    private final int port;
+    private final String logname;
+    private final String experimentId;
+    private final int role;
+    private volatile SocketChannel socket;
+    private volatile boolean connected = false;
+    private volatile boolean running = false;
+    private volatile int connectionCount = 0;
+    private Thread writer;
+    private volatile Thread reader;
+    private volatile TCPInputPoller commandPoller;
+
+    // Guarded by the lock: open channels in priority order, and everything they have queued.
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition queued = this.lock.newCondition();
+    private final Condition written = this.lock.newCondition();
+    private final ArrayList<Channel> channels = new ArrayList<>();
+    private final Channel control;
+    private int nextId = CHANNEL_COMMANDS + 1;
+    private long bytesPending = 0;
+    // The message whose last fragment the writer is writing.
+    private Message writing = null;
+
+    // Writer thread only.
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+    private final ByteBuffer fragment = ByteBuffer.allocateDirect(FRAGMENT_SIZE);
+    private final ByteBuffer[] buffers = {this.header, this.fragment};
+    private boolean connectFailureLogged = false;
+
+    /**
+     * Connect to the agent and introduce this client.
+     * @param address The address to connect to.
+     * @param port The port to connect to.
+     * @param logname A name to use for logging.
+     * @param experimentId the mission's experiment id, for the hello message.
+     * @param role the client's role in the mission, for the hello message.
+     */
+    public MultiplexedConnection(String address, int port, String logname, String experimentId, int role)
+    {
+        this.address = address;
+        this.port = port;
+        this.logname = logname;
+        this.experimentId = experimentId;
+        this.role = role;
+        this.control = new Channel(CHANNEL_CONTROL, "control", PRIORITY_CONTROL, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+        this.channels.add(this.control);
+        this.running = true;
+        connect();
+        this.writer = new Thread(this::writeLoop, "AgentMux-" + logname + "-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Open the socket and, if that works, queue the hello and an open message for each channel.
+     * Called from the constructor, then only from the writer thread.
+     */
+    private void connect()
+    {
+        InetSocketAddress inetSocketAddress = new InetSocketAddress(this.address, this.port);
+        Log(Level.INFO, "Attempting to open multiplexed connection to " + inetSocketAddress);
+        SocketChannel socket = null;
+        try
+        {
+            socket = SocketChannel.open();
+            socket.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            if (SEND_BUFFER_SIZE > 0)
+                socket.setOption(StandardSocketOptions.SO_SNDBUF, SEND_BUFFER_SIZE);
+            socket.socket().connect(inetSocketAddress, TCPUtils.DEFAULT_SOCKET_TIMEOUT_MS);
+        }
+        catch (IOException e)
+        {
+            // Once per outage, rather than once a second.
+            if (!this.connectFailureLogged)
+                SysLog(Level.SEVERE, "Failed to open multiplexed connection, will keep trying: " + e);
+            this.connectFailureLogged = true;
+            closeQuietly(socket);
+            return;
+        }
+        this.lock.lock();
+        try
+        {
+            if (!this.running)
+            {
+                closeQuietly(socket);
+                return;
+            }
+            this.socket = socket;
+            this.connected = true;
+            this.connectionCount++;
+            this.connectFailureLogged = false;
+            JSONObject hello = new JSONObject();
+            hello.put("hello", VERSION);
+            hello.put("experimentId", this.experimentId);
+            hello.put("role", this.role);
+            queueControl(hello.toString());
+            for (Channel channel : this.channels)
+            {
+                if (channel != this.control && !channel.closed)
+                    queueControl(openMessage(channel));
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        SocketChannel opened = socket;
+        Thread reader = new Thread(() -> readLoop(opened), "AgentMux-" + this.logname + "-reader");
+        reader.setDaemon(true);
+        this.reader = reader;
+        reader.start();
+    }
+
+    public boolean isConnected() { return this.connected; }
+
+    /**
+     * How many times the connection has been made; it goes up when the connection is made again
+     * after failing, and the agent then knows nothing of what was sent before.
+     */
+    public int getConnectionCount() { return this.connectionCount; }
+
+    /** Commands from the agent are queued on this poller; null to ignore them. */
+    public void setCommandPoller(TCPInputPoller poller)
+    {
+        this.commandPoller = poller;
+    }
+
+    /**
+     * Open a channel for one stream.
+     * @param name name sent to the agent with the channel's id, and used in log messages.
+     * @param priority one of the PRIORITY_ values; lower goes first.
+     * @param highWatermark bytes the channel may have waiting before it drops messages; 0 to make sends wait instead.
+     */
+    public Channel openChannel(String name, int priority, long highWatermark)
+    {
+        Channel channel;
+        this.lock.lock();
+        try
+        {
+            if (this.nextId >= MAX_CHANNELS)
+                throw new IllegalStateException("No channel ids left on " + this.logname);
+            channel = new Channel(this.nextId++, name, priority, highWatermark);
+            // Last of its priority; channels of equal priority then take turns (see rotate).
+            int i = this.channels.size();
+            while (i > 0 && this.channels.get(i - 1).priority > priority)
+                i--;
+            this.channels.add(i, channel);
+            // Under the lock, so that a reconnection announces it either here or there, not both.
+            if (this.connected)
+                queueControl(openMessage(channel));
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        return channel;
+    }
+
+    private static String openMessage(Channel channel)
+    {
+        JSONObject open = new JSONObject();
+        open.put("open", channel.id);
+        open.put("name", channel.name);
+        return open.toString();
+    }
+
+    /** Queue a message on the control channel. Call with the lock held. */
+    private void queueControl(String text)
+    {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        enqueue(this.control, new Message(new ByteBuffer[]{ByteBuffer.wrap(bytes)}, bytes.length), false);
+    }
+
+    private void closeChannel(Channel channel)
+    {
+        if (channel == this.control)
+            return;
+        this.lock.lock();
+        try
+        {
+            channel.closed = true;
+            this.written.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /**
+     * Queue a message on a channel, and if wait is set, wait until it has been written.
+     * @return QUEUED, or DROPPED if it won't be sent (or, when waiting, if it couldn't be).
+     */
+    private TCPSocketChannel.SendResult enqueue(Channel channel, Message message, boolean wait)
+    {
+        this.lock.lock();
+        try
+        {
+            // A message bigger than the watermark still goes if nothing else is waiting.
+            if (!this.connected || channel.closed
+                    || (channel.highWatermark > 0 && channel.bytesPending > 0 && channel.bytesPending + message.remaining > channel.highWatermark))
+            {
+                channel.messagesDropped.incrementAndGet();
+                return TCPSocketChannel.SendResult.DROPPED;
+            }
+            channel.queue.addLast(message);
+            channel.bytesPending += message.remaining;
+            this.bytesPending += message.remaining;
+            this.queued.signal();
+            if (!wait)
+                return TCPSocketChannel.SendResult.QUEUED;
+            long remainingNs = TimeUnit.MILLISECONDS.toNanos(TCPUtils.DEFAULT_SOCKET_TIMEOUT_MS);
+            while (!message.done && !channel.closed && remainingNs > 0)
+                remainingNs = this.written.awaitNanos(remainingNs);
+            if (message.done)
+                return message.failed ? TCPSocketChannel.SendResult.DROPPED : TCPSocketChannel.SendResult.QUEUED;
+            if (!message.started)
+            {
+                // Nothing of it has gone, so it can simply be taken back.
+                take(channel, message);
+                channel.messagesDropped.incrementAndGet();
+                return TCPSocketChannel.SendResult.DROPPED;
+            }
+            if (message.remaining <= 0)
+            {
+                // Copied out in full; only the write of its last fragment is still to finish.
+                return TCPSocketChannel.SendResult.QUEUED;
+            }
+            // Partly sent, and the caller is about to reuse its buffers: give up on the rest, and
+            // let the agent know with an empty aborting fragment. The other channels carry on.
+            abort(channel, message);
+            channel.messagesDropped.incrementAndGet();
+            return TCPSocketChannel.SendResult.DROPPED;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            if (!message.done && message.remaining > 0)
+            {
+                if (message.started)
+                    abort(channel, message);
+                else
+                    take(channel, message);
+            }
+            return TCPSocketChannel.SendResult.DROPPED;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
+    /** Take back a message none of which has been sent. Call with the lock held. */
+    private void take(Channel channel, Message message)
+    {
+        channel.queue.remove(message);
+        channel.bytesPending -= message.remaining;
+        this.bytesPending -= message.remaining;
+    }
+
+    /** Drop the unsent rest of a message, ending it with an aborting fragment. Call with the lock held. */
+    private void abort(Channel channel, Message message)
+    {
+        channel.bytesPending -= message.remaining;
+        this.bytesPending -= message.remaining;
+        message.parts = new ByteBuffer[0];
+        message.part = 0;
+        message.remaining = 0;
+        message.aborted = true;
+        this.queued.signal();
+    }
+
+    private void writeLoop()
+    {
+        while (this.running)
+        {
+            if (!this.connected)
+            {
+                // Wait a while before trying again; close() cuts it short.
+                this.lock.lock();
+                try
+                {
+                    long remainingNs = TimeUnit.MILLISECONDS.toNanos(RECONNECT_INTERVAL_MS);
+                    while (this.running && remainingNs > 0)
+                        remainingNs = this.queued.awaitNanos(remainingNs);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                finally
+                {
+                    this.lock.unlock();
+                }
+                if (this.running)
+                    connect();
+                continue;
+            }
+            SocketChannel socket = this.socket;
+            try
+            {
+                writeFragments(socket);
+            }
+            catch (IOException e)
+            {
+                fail(socket, e);
+            }
+        }
+    }
+
+    /** Send fragments on socket until the connection fails or is closed. */
+    private void writeFragments(SocketChannel socket) throws IOException
+    {
+        while (true)
+        {
+            Channel channel = null;
+            int flags;
+            Message message;
+            this.lock.lock();
+            try
+            {
+                while (this.running && this.connected && (channel = nextChannel()) == null)
+                    this.queued.awaitUninterruptibly();
+                if (channel == null)
+                    return;
+                // Copy up to a fragment's worth of the channel's current message, so that
+                // the sender's buffers are only ever read under the lock.
+                message = channel.queue.peekFirst();
+                message.started = true;
+                this.fragment.clear();
+                while (this.fragment.hasRemaining() && message.part < message.parts.length)
+                {
+                    ByteBuffer part = message.parts[message.part];
+                    int take = Math.min(part.remaining(), this.fragment.remaining());
+                    ByteBuffer slice = part.duplicate();
+                    slice.limit(slice.position() + take);
+                    this.fragment.put(slice);
+                    part.position(part.position() + take);
+                    if (!part.hasRemaining())
+                        message.part++;
+                }
+                this.fragment.flip();
+                message.remaining -= this.fragment.remaining();
+                flags = 0;
+                if (message.remaining <= 0)
+                {
+                    flags = message.aborted ? FLAG_END | FLAG_ABORT : FLAG_END;
+                    channel.queue.pollFirst();
+                    this.writing = message;
+                }
+                rotate(channel);
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+
+            int length = this.fragment.remaining();
+            this.header.clear();
+            this.header.put((byte) channel.id);
+            this.header.put((byte) flags);
+            this.header.putShort((short) 0);
+            this.header.putInt(length);
+            this.header.flip();
+            long toWrite = HEADER_SIZE + length;
+            while (toWrite > 0)
+                toWrite -= socket.write(this.buffers);
+
+            this.lock.lock();
+            try
+            {
+                // Failed meanwhile: the accounts have been cleared already.
+                if (!this.connected)
+                    return;
+                channel.bytesPending -= length;
+                channel.bytesSent += length;
+                this.bytesPending -= length;
+                if ((flags & FLAG_END) != 0)
+                {
+                    message.done = true;
+                    this.writing = null;
+                    this.written.signalAll();
+                }
+                else if (this.bytesPending == 0)
+                {
+                    this.written.signalAll();
+                }
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+        }
+    }
+
+    /** The most urgent channel with something to send, or null. Call with the lock held. */
+    private Channel nextChannel()
+    {
+        for (Channel channel : this.channels)
+        {
+            if (!channel.queue.isEmpty())
+                return channel;
+        }
+        return null;
+    }
+
+    /**
+     * Move a channel that has just had its turn behind the others of the same priority, so that
+     * they take turns. Call with the lock held.
+     */
+    private void rotate(Channel channel)
+    {
+        int i = this.channels.indexOf(channel);
+        int last = i;
+        while (last + 1 < this.channels.size() && this.channels.get(last + 1).priority == channel.priority)
+            last++;
+        if (last > i)
+        {
+            this.channels.remove(i);
+            this.channels.add(last, channel);
+        }
+    }
+
+    private void readLoop(SocketChannel socket)
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.BIG_ENDIAN);
+        byte[] command = new byte[1024];
+        int commandLength = 0;
+        try
+        {
+            while (this.running)
+            {
+                header.clear();
+                readFully(socket, header);
+                header.flip();
+                int channel = header.get() & 0xFF;
+                int flags = header.get() & 0xFF;
+                header.getShort();
+                int length = header.getInt();
+                if (length < 0)
+                    throw new IOException("bad fragment length " + length);
+                if (channel != CHANNEL_COMMANDS)
+                {
+                    // Nothing else is expected from the agent; skip it.
+                    skip(socket, length);
+                    continue;
+                }
+                if (commandLength + length > MAX_COMMAND_MESSAGE)
+                    throw new IOException("command message longer than " + MAX_COMMAND_MESSAGE + " bytes");
+                if (commandLength + length > command.length)
+                    command = Arrays.copyOf(command, Math.max(command.length * 2, commandLength + length));
+                readFully(socket, ByteBuffer.wrap(command, commandLength, length));
+                commandLength += length;
+                if ((flags & FLAG_END) != 0)
+                {
+                    onCommands(new String(command, 0, commandLength, StandardCharsets.UTF_8));
+                    commandLength = 0;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            fail(socket, e);
+        }
+    }
+
+    private void onCommands(String message)
+    {
+        TCPInputPoller poller = this.commandPoller;
+        if (poller == null)
+            return;
+        for (String command : message.split("\n"))
+        {
+            if (!command.isEmpty())
+                poller.commandReceived(command, this.address, null);
+        }
+    }
+
+    private static void readFully(SocketChannel socket, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (socket.read(buffer) < 0)
+                throw new EOFException("agent closed the multiplexed connection");
+        }
+    }
+
+    private static void skip(SocketChannel socket, int length) throws IOException
+    {
+        ByteBuffer scratch = ByteBuffer.allocate(Math.min(length, FRAGMENT_SIZE));
+        while (length > 0)
+        {
+            scratch.clear();
+            scratch.limit(Math.min(length, scratch.capacity()));
+            readFully(socket, scratch);
+            length -= scratch.limit();
+        }
+    }
+
+    /**
+     * The connection on socket is unusable: drop everything queued and wake anyone waiting on it,
+     * leaving the writer to connect again. Does nothing if socket has already been given up on.
+     */
+    private void fail(SocketChannel socket, Exception e)
+    {
+        this.lock.lock();
+        try
+        {
+            if (socket == null || socket != this.socket || !this.connected)
+                return;
+            this.connected = false;
+            for (Channel channel : this.channels)
+            {
+                channel.messagesDropped.addAndGet(channel.queue.size());
+                for (Message message : channel.queue)
+                    message.done = message.failed = true;
+                channel.queue.clear();
+                channel.bytesPending = 0;
+            }
+            if (this.writing != null)
+                this.writing.done = this.writing.failed = true;
+            this.writing = null;
+            this.bytesPending = 0;
+            this.queued.signalAll();
+            this.written.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+            closeQuietly(socket);
+        }
+        if (this.running)
+            SysLog(Level.SEVERE, "Multiplexed connection failed, will reconnect: " + e);
+    }
+
+    private static void closeQuietly(SocketChannel socket)
+    {
+        if (socket == null)
+            return;
+        try { socket.close(); } catch (IOException ioe) {}
+    }
+
+    /** Give whatever is queued a moment to go out, then close the connection and stop its threads. */
+    public void close()
+    {
+        Log(Level.INFO, "Attempting to close multiplexed connection.");
+        this.lock.lock();
+        try
+        {
+            long remainingNs = TimeUnit.MILLISECONDS.toNanos(CLOSE_DRAIN_TIMEOUT_MS);
+            while (this.connected && this.bytesPending > 0 && remainingNs > 0)
+                remainingNs = this.written.awaitNanos(remainingNs);
+            if (this.bytesPending > 0)
+                Log(Level.WARNING, "Closing with " + this.bytesPending + " bytes still unsent.");
+            this.running = false;
+            this.queued.signalAll();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            this.running = false;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        fail(this.socket, new IOException("closed"));
+        for (Thread thread : new Thread[]{this.writer, this.reader})
+        {
+            if (thread == null)
+                continue;
+            try
+            {
+                thread.join(STOP_TIMEOUT_MS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void Log(Level level, String message)
+    {
+        TCPUtils.Log(level, "<-" + this.logname + "(" + this.address + ":" + this.port + ") " + message);
+    }
+
+    private void SysLog(Level level, String message)
+    {
+        TCPUtils.SysLog(level, "<-" + this.logname + "(" + this.address + ":" + this.port + ") " + message);
+    }
+}
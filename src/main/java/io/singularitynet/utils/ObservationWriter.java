@@ -0,0 +1,369 @@
+package io.singularitynet.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.internal.LazilyParsedNumber;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Builds observation messages in CBOR (RFC 8949), for missions whose ClientAgentConnection
+ * asks for observationFormat="cbor". Observation producers write typed values straight into it,
+ * with no boxing and no intermediate JSON text; anything they still put into a JsonObject is
+ * transcoded with {@link #writeJson}.
+ * <p>
+ * Map keys written with {@link #key}, and values written with {@link #symbol} or {@link #symbols},
+ * are replaced by small integer ids from a dictionary that lives as long as the writer - one
+ * mission's connection - and so never shrinks; they are for strings from a small, fixed set.
+ * Keys that may not recur, such as entity UUIDs, go in with {@link #textKey}, as do all the keys
+ * transcoded by {@link #writeJson}, since nothing says those are stable. An id is defined in the
+ * first message that uses it, and again in later ones until a message carrying its definition
+ * has been {@link #commit}ted as sent. Each message is one CBOR map:
+ * <pre>
+ *  1: the observation, a map keyed by dictionary id or text
+ *  0: {id: "name", ...} - definitions of the ids new in this message; absent if there are none
+ * </pre>
+ * Symbols are tagged {@link #SYMBOL_TAG} around the id; an array of symbols is tagged
+ * {@link #SYMBOLS_TAG} around a byte string of little-endian uint16 ids. Packed numeric arrays
+ * use the RFC 8746 typed array tags. Once the dictionary is full, keys and symbols are written as
+ * plain text strings. Client thread only.
+ */
+public class ObservationWriter {
+    public static final int KEY_DEFINITIONS = 0;
+    public static final int KEY_OBSERVATION = 1;
+    /** Tag on a dictionary id that stands for a string value. */
+    public static final int SYMBOL_TAG = 40000;
+    /** Tag on a byte string of little-endian uint16 dictionary ids that stand for an array of string values. */
+    public static final int SYMBOLS_TAG = 40001;
+    // RFC 8746 typed arrays.
+    private static final int TAG_SINT32_LE = 78;
+    private static final int TAG_FLOAT32_LE = 85;
+    private static final int MAX_IDS = 0xFFFF;
+
+    private static final int MAJOR_UINT = 0;
+    private static final int MAJOR_NEGINT = 1;
+    private static final int MAJOR_BYTES = 2;
+    private static final int MAJOR_TEXT = 3;
+    private static final int MAJOR_ARRAY = 4;
+    private static final int MAJOR_MAP = 5;
+    private static final int MAJOR_TAG = 6;
+    private static final int INDEFINITE = 31;
+    private static final int BREAK = 0xFF;
+
+    private final Object2IntOpenHashMap<String> ids = new Object2IntOpenHashMap<>();
+    private final ArrayList<String> names = new ArrayList<>();
+    // Ids below this have been defined in a message that was sent.
+    private int committed = 0;
+    private byte[] buf = new byte[4096];
+    private int length = 0;
+
+    public ObservationWriter() {
+        this.ids.defaultReturnValue(-1);
+    }
+
+    /** Start a new message; the observation map is then open for keys and values. */
+    public ObservationWriter begin() {
+        this.length = 0;
+        put(MAJOR_MAP << 5 | INDEFINITE);
+        uint(KEY_OBSERVATION);
+        put(MAJOR_MAP << 5 | INDEFINITE);
+        return this;
+    }
+
+    /**
+     * Close the observation map and add the definitions it needs. The message is then
+     * {@link #getBuffer}[0, {@link #getLength}).
+     */
+    public ObservationWriter finish() {
+        put(BREAK);
+        int size = this.names.size();
+        if (this.committed < size) {
+            uint(KEY_DEFINITIONS);
+            head(MAJOR_MAP, size - this.committed);
+            for (int id = this.committed; id < size; id++) {
+                uint(id);
+                text(this.names.get(id));
+            }
+        }
+        put(BREAK);
+        return this;
+    }
+
+    /** The last finished message has been sent, so the ids it defined needn't be defined again. */
+    public void commit() {
+        this.committed = this.names.size();
+    }
+
+    /**
+     * The agent has lost the definitions - the connection was made again - so define every id
+     * again, from the next message until one is committed. The ids themselves stay the same.
+     */
+    public void redefine() {
+        this.committed = 0;
+    }
+
+    public byte[] getBuffer() {
+        return this.buf;
+    }
+
+    public int getLength() {
+        return this.length;
+    }
+
+    /**
+     * Write a map key from a fixed set - a field name, or a name given in the mission - as a
+     * dictionary id; follow it with exactly one value.
+     */
+    public ObservationWriter key(String key) {
+        int id = idFor(key);
+        if (id < 0)
+            text(key);
+        else
+            uint(id);
+        return this;
+    }
+
+    /** Write a map key as text, keeping it out of the dictionary; follow it with exactly one value. */
+    public ObservationWriter textKey(String key) {
+        text(key);
+        return this;
+    }
+
+    public ObservationWriter value(int v) {
+        return value((long) v);
+    }
+
+    public ObservationWriter value(long v) {
+        if (v >= 0)
+            head(MAJOR_UINT, v);
+        else
+            head(MAJOR_NEGINT, -1 - v);
+        return this;
+    }
+
+    public ObservationWriter value(float v) {
+        put(0xFA);
+        putIntBE(Float.floatToRawIntBits(v));
+        return this;
+    }
+
+    public ObservationWriter value(double v) {
+        put(0xFB);
+        long bits = Double.doubleToRawLongBits(v);
+        putIntBE((int) (bits >>> 32));
+        putIntBE((int) bits);
+        return this;
+    }
+
+    public ObservationWriter value(boolean v) {
+        put(v ? 0xF5 : 0xF4);
+        return this;
+    }
+
+    /** A string value, written out in full; null is written as CBOR null. */
+    public ObservationWriter value(String v) {
+        if (v == null)
+            put(0xF6);
+        else
+            text(v);
+        return this;
+    }
+
+    /** A string value from a small set that recurs - block or item types, say - written as a dictionary id. */
+    public ObservationWriter symbol(String v) {
+        int id = v != null ? idFor(v) : -1;
+        if (id < 0)
+            return value(v);
+        head(MAJOR_TAG, SYMBOL_TAG);
+        uint(id);
+        return this;
+    }
+
+    /** The first count values of an array of recurring strings, packed as two bytes each. */
+    public ObservationWriter symbols(String[] values, int count) {
+        int start = this.length;
+        int committedIds = this.names.size();
+        head(MAJOR_TAG, SYMBOLS_TAG);
+        head(MAJOR_BYTES, count * 2L);
+        ensure(count * 2);
+        for (int i = 0; i < count; i++) {
+            int id = values[i] != null ? idFor(values[i]) : -1;
+            if (id < 0) {
+                // Dictionary full: fall back to an array of strings, forgetting ids taken on the way.
+                this.length = start;
+                for (int k = this.names.size() - 1; k >= committedIds; k--)
+                    this.ids.removeInt(this.names.remove(k));
+                head(MAJOR_ARRAY, count);
+                for (int k = 0; k < count; k++)
+                    value(values[k]);
+                return this;
+            }
+            this.buf[this.length++] = (byte) id;
+            this.buf[this.length++] = (byte) (id >>> 8);
+        }
+        return this;
+    }
+
+    /** The first count values, as an RFC 8746 little-endian float32 array. */
+    public ObservationWriter floats(float[] values, int count) {
+        head(MAJOR_TAG, TAG_FLOAT32_LE);
+        head(MAJOR_BYTES, count * 4L);
+        ensure(count * 4);
+        for (int i = 0; i < count; i++)
+            putIntLE(Float.floatToRawIntBits(values[i]));
+        return this;
+    }
+
+    /** The first count values, as an RFC 8746 little-endian sint32 array. */
+    public ObservationWriter ints(int[] values, int count) {
+        head(MAJOR_TAG, TAG_SINT32_LE);
+        head(MAJOR_BYTES, count * 4L);
+        ensure(count * 4);
+        for (int i = 0; i < count; i++)
+            putIntLE(values[i]);
+        return this;
+    }
+
+    /** Open a map, as a value; close it with {@link #end}. */
+    public ObservationWriter beginMap() {
+        put(MAJOR_MAP << 5 | INDEFINITE);
+        return this;
+    }
+
+    /** Open an array, as a value; close it with {@link #end}. */
+    public ObservationWriter beginArray() {
+        put(MAJOR_ARRAY << 5 | INDEFINITE);
+        return this;
+    }
+
+    public ObservationWriter end() {
+        put(BREAK);
+        return this;
+    }
+
+    /** Write each member of json as a text key and value in the map that is open. */
+    public ObservationWriter writeJson(JsonObject json) {
+        for (Map.Entry<String, JsonElement> member : json.entrySet()) {
+            textKey(member.getKey());
+            element(member.getValue());
+        }
+        return this;
+    }
+
+    private void element(JsonElement e) {
+        if (e == null || e.isJsonNull()) {
+            put(0xF6);
+        } else if (e.isJsonObject()) {
+            beginMap();
+            writeJson(e.getAsJsonObject());
+            end();
+        } else if (e.isJsonArray()) {
+            JsonArray arr = e.getAsJsonArray();
+            head(MAJOR_ARRAY, arr.size());
+            for (JsonElement item : arr)
+                element(item);
+        } else {
+            JsonPrimitive p = e.getAsJsonPrimitive();
+            if (p.isBoolean()) {
+                value(p.getAsBoolean());
+            } else if (p.isString()) {
+                text(p.getAsString());
+            } else {
+                number(p.getAsNumber());
+            }
+        }
+    }
+
+    private void number(Number n) {
+        if (n instanceof Float) {
+            value(n.floatValue());
+        } else if (n instanceof Double) {
+            value(n.doubleValue());
+        } else if (n instanceof LazilyParsedNumber) {
+            String s = n.toString();
+            if (s.indexOf('.') >= 0 || s.indexOf('e') >= 0 || s.indexOf('E') >= 0)
+                value(n.doubleValue());
+            else
+                value(n.longValue());
+        } else {
+            value(n.longValue());
+        }
+    }
+
+    /** The dictionary id for s, assigning one if need be; -1 if the dictionary is full. */
+    private int idFor(String s) {
+        int id = this.ids.getInt(s);
+        if (id < 0 && this.names.size() < MAX_IDS) {
+            id = this.names.size();
+            this.names.add(s);
+            this.ids.put(s, id);
+        }
+        return id;
+    }
+
+    private void text(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        head(MAJOR_TEXT, bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, this.buf, this.length, bytes.length);
+        this.length += bytes.length;
+    }
+
+    private void uint(long v) {
+        head(MAJOR_UINT, v);
+    }
+
+    /** A CBOR initial byte plus argument, in the shortest form. */
+    private void head(int major, long arg) {
+        int m = major << 5;
+        if (arg < 24) {
+            put(m | (int) arg);
+        } else if (arg < 0x100) {
+            put(m | 24);
+            put((int) arg);
+        } else if (arg < 0x10000) {
+            put(m | 25);
+            put((int) (arg >>> 8));
+            put((int) arg);
+        } else if (arg < 0x100000000L) {
+            put(m | 26);
+            putIntBE((int) arg);
+        } else {
+            put(m | 27);
+            putIntBE((int) (arg >>> 32));
+            putIntBE((int) arg);
+        }
+    }
+
+    private void put(int b) {
+        ensure(1);
+        this.buf[this.length++] = (byte) b;
+    }
+
+    private void putIntBE(int v) {
+        ensure(4);
+        this.buf[this.length++] = (byte) (v >>> 24);
+        this.buf[this.length++] = (byte) (v >>> 16);
+        this.buf[this.length++] = (byte) (v >>> 8);
+        this.buf[this.length++] = (byte) v;
+    }
+
+    private void putIntLE(int v) {
+        ensure(4);
+        this.buf[this.length++] = (byte) v;
+        this.buf[this.length++] = (byte) (v >>> 8);
+        this.buf[this.length++] = (byte) (v >>> 16);
+        this.buf[this.length++] = (byte) (v >>> 24);
+    }
+
+    private void ensure(int extra) {
+        if (this.length + extra > this.buf.length)
+            this.buf = Arrays.copyOf(this.buf, Math.max(this.buf.length * 2, this.length + extra));
+    }
+}
@@ -0,0 +1,104 @@
+package io.singularitynet.utils;
+
+import io.singularitynet.mixin.MinecraftClientMixin;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gl.Framebuffer;
+import net.minecraft.client.gl.SimpleFramebuffer;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Fixed-size framebuffer the world is rendered into instead of the window's, for missions
+ * with renderTarget="offscreen".
+ * <p>
+ * While active, it is bound with its own viewport at the start of each world render, and
+ * MinecraftClient.getFramebuffer() returns it (see MinecraftClientFramebufferMixin), so the
+ * world render, its post effects and the video producers use it without knowing; the
+ * projection's aspect ratio follows its size rather than the window's. Once the world is done
+ * the window's framebuffer is bound again for the HUD and screens (GameRendererOffscreenMixin).
+ * The renderers' own size-dependent buffers are resized to match, and kept that way if the
+ * window changes size; the entity outlines are drawn over it at its size too
+ * (WorldRendererOffscreenMixin). Render thread only.
+ */
+public class OffscreenRenderTarget {
+    private static final Logger LOGGER = LogManager.getLogger(OffscreenRenderTarget.class);
+
+    private static SimpleFramebuffer framebuffer = null;
+
+    private OffscreenRenderTarget() {}
+
+    /**
+     * Start rendering the world offscreen at the given size. There is one offscreen framebuffer
+     * for all the video producers, so if it is already active at a different size the first
+     * size is kept, and false returned.
+     */
+    public static boolean enable(int width, int height) {
+        width = Math.max(1, width);
+        height = Math.max(1, height);
+        if (framebuffer != null) {
+            if (framebuffer.textureWidth == width && framebuffer.textureHeight == height)
+                return true;
+            LOGGER.warn("OffscreenRenderTarget: {}x{} requested, but already rendering offscreen at {}x{}; keeping that",
+                    width, height, framebuffer.textureWidth, framebuffer.textureHeight);
+            return false;
+        }
+        framebuffer = new SimpleFramebuffer(width, height, true, MinecraftClient.IS_SYSTEM_MAC);
+        framebuffer.setClearColor(0.0F, 0.0F, 0.0F, 0.0F);
+        LOGGER.info("OffscreenRenderTarget: rendering the world offscreen at {}x{}", width, height);
+        resizeRenderers();
+        return true;
+    }
+
+    /** Go back to rendering into the window. */
+    public static void disable() {
+        if (framebuffer == null)
+            return;
+        framebuffer.delete();
+        framebuffer = null;
+        // Put everything back to the window's size.
+        MinecraftClient.getInstance().onResolutionChanged();
+        LOGGER.info("OffscreenRenderTarget: rendering the world into the window");
+    }
+
+    public static boolean isActive() {
+        return framebuffer != null;
+    }
+
+    /** The offscreen framebuffer, or null if not active. */
+    public static Framebuffer getFramebuffer() {
+        return framebuffer;
+    }
+
+    /**
+     * Bind the offscreen framebuffer, with a viewport of its size, for the world render about
+     * to start. MinecraftClient.render has bound the window's, and the clear, sky and terrain
+     * draw into whatever is bound.
+     */
+    public static void beginWorldRender() {
+        if (framebuffer != null)
+            framebuffer.beginWrite(true);
+    }
+
+    /**
+     * The window's own framebuffer, which MinecraftClient.getFramebuffer() hides while
+     * rendering offscreen.
+     */
+    public static Framebuffer getWindowFramebuffer() {
+        return ((MinecraftClientMixin) MinecraftClient.getInstance()).getWindowFramebuffer();
+    }
+
+    /**
+     * Size the game and world renderers' internal buffers (post effects, entity outlines)
+     * to the offscreen framebuffer rather than the window. Called again after the window
+     * changes size, since that resizes them back.
+     */
+    public static void resizeRenderers() {
+        if (framebuffer == null)
+            return;
+        MinecraftClient client = MinecraftClient.getInstance();
+        if (client.gameRenderer != null)
+            client.gameRenderer.onResized(framebuffer.textureWidth, framebuffer.textureHeight);
+        if (client.worldRenderer != null)
+            client.worldRenderer.onResized(framebuffer.textureWidth, framebuffer.textureHeight);
+    }
+}
@@ -0,0 +1,158 @@
+package io.singularitynet.utils;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.lwjgl.opengl.GL11;
+import org.lwjgl.opengl.GL15;
+import org.lwjgl.opengl.GL21;
+import org.lwjgl.opengl.GL30;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of pixel-pack buffers (PBOs) used for asynchronous framebuffer readback.
+ * <p>
+ * Each call to {@link #readAndCollect} issues a glReadPixels into the next
+ * buffer of the ring (which returns immediately, the copy happens on the GPU)
+ * and then maps the oldest buffer, whose transfer has had {@code size - 1}
+ * frames to complete. The frame returned is therefore {@link #getLatency()}
+ * calls behind the frame being read; callers that ship metadata alongside the
+ * pixels must delay that metadata by the same amount.
+ * <p>
+ * A completed read that doesn't fit the caller's buffer isn't lost: its size is returned with
+ * nothing copied, and the next call collects it into a bigger buffer without issuing a read.
+ * <p>
+ * All methods must be called on the render thread.
+ */
+public class PixelPackRing {
+    private static final Logger LOGGER = LogManager.getLogger(PixelPackRing.class);
+
+    private final int[] buffers;
+    private final int[] capacities;
+    private final int[] widths;
+    private final int[] heights;
+    private int next = 0;
+    private int filled = 0;
+    // Slot holding a completed read that didn't fit the last caller's buffer, or -1.
+    private int uncollected = -1;
+    private final int[] lastSize = new int[2];
+
+    public PixelPackRing(int size) {
+        this.buffers = new int[Math.max(2, size)];
+        this.capacities = new int[this.buffers.length];
+        this.widths = new int[this.buffers.length];
+        this.heights = new int[this.buffers.length];
+    }
+
+    /** Number of calls between a read being issued and its pixels being returned. */
+    public int getLatency() {
+        return this.buffers.length - 1;
+    }
+
+    /**
+     * Make one slot big enough. Only that slot is reallocated, so that reads still in flight in
+     * the others survive a resize.
+     */
+    private void ensureCapacity(int slot, int bytes) {
+        if (this.buffers[slot] != 0 && this.capacities[slot] >= bytes) {
+            return;
+        }
+        if (this.buffers[slot] == 0)
+            this.buffers[slot] = GL15.glGenBuffers();
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, this.buffers[slot]);
+        GL15.glBufferData(GL21.GL_PIXEL_PACK_BUFFER, bytes, GL15.GL_STREAM_READ);
+        this.capacities[slot] = bytes;
+        LOGGER.debug("PixelPackRing: allocated buffer {} of {} bytes", slot, bytes);
+    }
+
+    /**
+     * Issue an asynchronous read of the currently bound read framebuffer and
+     * copy the oldest completed read into {@code dst}.
+     * <p>
+     * If the previous call's dst was too small, this issues no read and instead collects
+     * that call's frame into dst; call again straight away with a big enough buffer.
+     *
+     * @return the {width, height} of the completed frame, or {0, 0} while the ring is
+     * still filling up and no frame is available. If dst is smaller than
+     * width * height * bytesPerPixel, nothing was copied.
+     */
+    public int[] readAndCollect(int width, int height, int format, int type, int bytesPerPixel, ByteBuffer dst) {
+        if (this.uncollected >= 0) {
+            int slot = this.uncollected;
+            this.uncollected = -1;
+            collect(slot, bytesPerPixel, dst);
+            GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+            return this.lastSize;
+        }
+        int bytes = width * height * bytesPerPixel;
+        ensureCapacity(this.next, bytes);
+
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, this.buffers[this.next]);
+        GL11.glReadPixels(0, 0, width, height, format, type, 0L);
+        this.widths[this.next] = width;
+        this.heights[this.next] = height;
+        this.next = (this.next + 1) % this.buffers.length;
+        if (this.filled < this.buffers.length) {
+            this.filled++;
+        }
+
+        this.lastSize[0] = 0;
+        this.lastSize[1] = 0;
+        // The slot we are about to overwrite next time round is the oldest one.
+        if (this.filled == this.buffers.length) {
+            int oldest = this.next;
+            // Kept for the next call only if it didn't fit; a read that failed to map is gone.
+            if (!collect(oldest, bytesPerPixel, dst) && this.lastSize[0] > 0)
+                this.uncollected = oldest;
+        }
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, 0);
+        return this.lastSize;
+    }
+
+    /**
+     * Copy a completed read into dst, and set lastSize to its size.
+     * @return false if nothing was copied: dst was too small, or the buffer couldn't be mapped,
+     * in which case lastSize is {0, 0}.
+     */
+    private boolean collect(int slot, int bytesPerPixel, ByteBuffer dst) {
+        int bytes = this.widths[slot] * this.heights[slot] * bytesPerPixel;
+        this.lastSize[0] = this.widths[slot];
+        this.lastSize[1] = this.heights[slot];
+        if (dst == null || dst.capacity() < bytes)
+            return false;
+        GL15.glBindBuffer(GL21.GL_PIXEL_PACK_BUFFER, this.buffers[slot]);
+        ByteBuffer mapped = GL30.glMapBufferRange(GL21.GL_PIXEL_PACK_BUFFER, 0, bytes, GL30.GL_MAP_READ_BIT);
+        if (mapped == null) {
+            // Nothing is mapped, so there is nothing to unmap either.
+            LOGGER.warn("PixelPackRing: failed to map buffer {} of {} bytes", slot, bytes);
+            this.lastSize[0] = 0;
+            this.lastSize[1] = 0;
+            return false;
+        }
+        dst.clear();
+        mapped.limit(bytes);
+        dst.put(mapped);
+        dst.flip();
+        GL15.glUnmapBuffer(GL21.GL_PIXEL_PACK_BUFFER);
+        return true;
+    }
+
+    /** Forget any reads in flight; the ring refills over the next few calls. */
+    public void reset() {
+        this.filled = 0;
+        this.next = 0;
+        this.uncollected = -1;
+    }
+
+    /** Release the GL buffers. Safe to call repeatedly. */
+    public void delete() {
+        for (int i = 0; i < this.buffers.length; i++) {
+            if (this.buffers[i] != 0) {
+                GL15.glDeleteBuffers(this.buffers[i]);
+                this.buffers[i] = 0;
+            }
+            this.capacities[i] = 0;
+        }
+        reset();
+    }
+}
@@ -0,0 +1,140 @@
+package io.singularitynet.utils;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single-producer, single-consumer ring of frame slots in a memory-mapped file, for
+ * handing video frames to an agent on the same host without going through a socket.
+ * <p>
+ * File layout, all little-endian:
+ * <pre>
+ * offset size
+ *   0     4   magic, the bytes "VRYS"
+ *   4     4   version ({@link #VERSION})
+ *   8     4   slot count
+ *  12     4   slot size in bytes
+ *  16     8   write sequence - frames published so far, advanced by the client
+ *  24     8   read sequence - frames consumed so far, advanced by the agent
+ *  32     4   closed flag, set to 1 when the client stops writing
+ *  64     ... slots; slot n lives at 64 + n * slotSize
+ * </pre>
+ * Each slot starts with a 4-byte length followed by that many bytes of frame, exactly as
+ * they would follow the length prefix on the TCP transport. Frame number {@code s} goes
+ * in slot {@code s % slotCount}. The client only writes a slot once the read sequence
+ * shows the agent has finished with it, and publishes it by advancing the write
+ * sequence; the agent reads slots up to the write sequence and then advances the read
+ * sequence. Both sequence numbers are written with release and read with acquire
+ * semantics, so no other synchronisation is needed.
+ */
+public class SharedMemoryFrameRing
+{
+    public static final int MAGIC = 0x53595256; // "VRYS" when written little-endian
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    public static final int OFFSET_SLOT_COUNT = 8;
+    public static final int OFFSET_SLOT_SIZE = 12;
+    public static final int OFFSET_WRITE_SEQ = 16;
+    public static final int OFFSET_READ_SEQ = 24;
+    public static final int OFFSET_CLOSED = 32;
+
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer map;
+    private final int slotCount;
+    private final int slotSize;
+    private long writeSeq = 0;
+
+    /**
+     * Create (or truncate) the ring file and map it.
+     *
+     * @param path file to create.
+     * @param slotCount number of frames the agent may lag behind by.
+     * @param maxFrameBytes largest frame, excluding the slot's length field, that will fit.
+     */
+    public SharedMemoryFrameRing(Path path, int slotCount, int maxFrameBytes) throws IOException
+    {
+        this.path = path;
+        this.slotCount = Math.max(2, slotCount);
+        // Keep every slot cache-line aligned.
+        this.slotSize = (4 + maxFrameBytes + 63) & ~63;
+        long fileSize = HEADER_SIZE + (long) this.slotCount * this.slotSize;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.map = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+        this.map.order(ByteOrder.LITTLE_ENDIAN);
+        this.map.putInt(0, MAGIC);
+        this.map.putInt(4, VERSION);
+        this.map.putInt(OFFSET_SLOT_COUNT, this.slotCount);
+        this.map.putInt(OFFSET_SLOT_SIZE, this.slotSize);
+        LONG.setRelease(this.map, OFFSET_READ_SEQ, 0L);
+        INT.setRelease(this.map, OFFSET_CLOSED, 0);
+        LONG.setRelease(this.map, OFFSET_WRITE_SEQ, 0L);
+    }
+
+    public Path getPath() { return this.path; }
+
+    public int getSlotCount() { return this.slotCount; }
+
+    public int getSlotSize() { return this.slotSize; }
+
+    /** True if a frame of this many bytes fits in a slot. */
+    public boolean canHold(int length)
+    {
+        return 4 + length <= this.slotSize;
+    }
+
+    /** True if the agent has freed a slot for the next frame. */
+    public boolean hasRoom()
+    {
+        long readSeq = (long) LONG.getAcquire(this.map, OFFSET_READ_SEQ);
+        return this.writeSeq - readSeq < this.slotCount;
+    }
+
+    /**
+     * Copy a frame into the next slot and publish it.
+     *
+     * @return false if the frame is too big or the agent has not freed the slot yet.
+     */
+    public boolean write(ByteBuffer[] srcbuffers, int length)
+    {
+        if (!canHold(length) || !hasRoom())
+            return false;
+        int offset = HEADER_SIZE + (int) (this.writeSeq % this.slotCount) * this.slotSize;
+        ByteBuffer slot = this.map.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        slot.position(offset);
+        slot.putInt(length);
+        for (ByteBuffer src : srcbuffers)
+            slot.put(src.duplicate());
+        this.writeSeq++;
+        LONG.setRelease(this.map, OFFSET_WRITE_SEQ, this.writeSeq);
+        return true;
+    }
+
+    /** Mark the ring closed so the agent stops waiting on it, then remove the file. */
+    public void close()
+    {
+        INT.setRelease(this.map, OFFSET_CLOSED, 1);
+        try {
+            this.channel.close();
+        } catch (IOException e) {
+            // Nothing more we can do.
+        }
+        try {
+            Files.deleteIfExists(this.path);
+        } catch (IOException e) {
+            // The agent may still have it open on some platforms; it lives in a temp directory anyway.
+        }
+    }
+}
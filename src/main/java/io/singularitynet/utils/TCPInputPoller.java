@@ -19,21 +19,37 @@
 
 package io.singularitynet.utils;
 
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.util.ArrayList;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /** Class which polls for TCP commands in the background, and makes them available via a thread-safe queue.<br>
  * Used for receiving control commands from the Malmo code. By default a client connection is used to service
  * multiple request / reply interaction which can lead to connections remaining open. Use constructor with
- * singleRequestReply set to false if only one interaction is to be served.
+ * singleRequestReply set to false if only one interaction is to be served.<br>
+ * Every connection is served by this one thread, through a Selector: bytes are read into a direct buffer and
+ * split into newline-terminated commands, which are passed to {@link #commandReceived} on this thread. Replies
+ * written to the DataOutputStream handed to {@link #onCommand} or {@link #onError} are buffered and sent
+ * without blocking once the call returns, so they must be written before it does.<br>
+ * The command queue is lock-free: any thread may add to it, and one thread - the one that acts on the
+ * commands - takes them off with {@link #getCommand} or {@link #drainTo}. It is unbounded unless
+ * {@link #setCapacity} says otherwise.
  */
 public class TCPInputPoller extends Thread
 {
@@ -48,13 +64,35 @@ public class TCPInputPoller extends Thread
         }
     }
 
-    private boolean keepRunning = true;
-    private ArrayList<CommandAndIPAddress> commandQueue;
+    /** What to do with a command that arrives when a bounded queue is full. */
+    public enum OverflowPolicy
+    {
+        /** Discard the oldest queued command to make room. */
+        DROP_OLDEST,
+        /** Discard the command that has just arrived. */
+        DROP_NEWEST
+    }
+
+    // Longest command we accept; the connection is dropped after a longer one.
+    private static final int MAX_STR_LEN = 10000000;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private volatile boolean keepRunning = true;
+    private final ConcurrentLinkedQueue<CommandAndIPAddress> commandQueue = new ConcurrentLinkedQueue<CommandAndIPAddress>();
+    // ConcurrentLinkedQueue.size() walks the whole queue, so keep count ourselves.
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger highWaterMark = new AtomicInteger();
+    private final AtomicLong commandsDropped = new AtomicLong();
+    private volatile int capacity = 0;	// 0 means unbounded.
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
     private int requestedPortNumber;	// Can be 0, meaning allocate one dynamically.
     private int portRangeMin = -1;
     private int portRangeMax = -1;
     private boolean choosePortRandomly = false;
-    private ServerSocket serverSocket;
+    private volatile ServerSocketChannel serverChannel;
+    private volatile Selector selector;
+    // Shared by every connection, since they are all read on this thread.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
     private boolean failedToCreate = false;
     private String logname;
     private int connection_count = 0;
@@ -68,10 +106,74 @@ public class TCPInputPoller extends Thread
      */
     public void addCommand(String s)
     {
-        synchronized(this)
+        enqueue(new CommandAndIPAddress(s, ""));
+    }
+
+    /** Bound the command queue.
+     * @param capacity most commands that may wait to be acted on; 0 for no limit.
+     * @param policy which command to lose when one arrives and the queue is full.
+     */
+    public void setCapacity(int capacity, OverflowPolicy policy)
+    {
+        this.capacity = Math.max(0, capacity);
+        this.overflowPolicy = (policy != null) ? policy : OverflowPolicy.DROP_OLDEST;
+    }
+
+    private void enqueue(CommandAndIPAddress command)
+    {
+        int cap = this.capacity;
+        int depth;
+        if (cap > 0 && this.overflowPolicy == OverflowPolicy.DROP_NEWEST)
+        {
+            // Claim a place before adding, so that the bound holds however many threads are adding.
+            do
+            {
+                depth = this.queueDepth.get();
+                if (depth >= cap)
+                {
+                    this.commandsDropped.incrementAndGet();
+                    return;
+                }
+            } while (!this.queueDepth.compareAndSet(depth, depth + 1));
+            depth++;
+        }
+        else
         {
-            this.commandQueue.add(new CommandAndIPAddress(s, ""));
+            depth = this.queueDepth.incrementAndGet();
+            while (cap > 0 && depth > cap && this.commandQueue.poll() != null)
+            {
+                this.commandsDropped.incrementAndGet();
+                depth = this.queueDepth.decrementAndGet();
+            }
         }
+        this.commandQueue.offer(command);
+        this.highWaterMark.accumulateAndGet(depth, Math::max);
+    }
+
+    private CommandAndIPAddress dequeue()
+    {
+        CommandAndIPAddress command = this.commandQueue.poll();
+        if (command != null)
+            this.queueDepth.decrementAndGet();
+        return command;
+    }
+
+    /** Number of commands waiting to be taken. */
+    public int getQueueDepth()
+    {
+        return Math.max(0, this.queueDepth.get());
+    }
+
+    /** Most commands that have been waiting at once. */
+    public int getHighWaterMark()
+    {
+        return this.highWaterMark.get();
+    }
+
+    /** Commands lost because the queue was full. */
+    public long getCommandsDropped()
+    {
+        return this.commandsDropped.get();
     }
 
     private void Log(Level level, String message)
@@ -91,7 +193,6 @@ public class TCPInputPoller extends Thread
     public TCPInputPoller(int port, String logname)
     {
         this.requestedPortNumber = port;
-        this.commandQueue = new ArrayList<CommandAndIPAddress>();
         this.logname = logname;
     }
 
@@ -107,7 +208,6 @@ public class TCPInputPoller extends Thread
         this.portRangeMax = portmax;
         this.portRangeMin = portmin;
         this.choosePortRandomly = choosePortRandomly;
-        this.commandQueue = new ArrayList<CommandAndIPAddress>();
         this.logname = logname;
     }
 
@@ -122,7 +222,6 @@ public class TCPInputPoller extends Thread
         this.requestedPortNumber = requestedPort;
         this.portRangeMax = Math.max(portmin,  portmax);
         this.portRangeMin = Math.min(portmin,  portmax);
-        this.commandQueue = new ArrayList<CommandAndIPAddress>();
         this.logname = logname;
     }
 
@@ -139,30 +238,38 @@ public class TCPInputPoller extends Thread
     }
 
     /** Pop the oldest command from our list and return it.
-     * @return the oldest unhandled command in our list
+     * @return the oldest unhandled command in our list, or "" if there is none.
      */
     public String getCommand()
     {
-        String command = "";
-        synchronized(this)
+        CommandAndIPAddress command = dequeue();
+        return (command != null) ? command.command : "";
+    }
+
+    /** Move every waiting command, oldest first, onto the end of a list.
+     * @param commands list to add them to.
+     * @return the number of commands added.
+     */
+    public int drainTo(List<String> commands)
+    {
+        int count = 0;
+        CommandAndIPAddress command;
+        while ((command = dequeue()) != null)
         {
-            if (commandQueue.size() > 0)
-            {
-                command = commandQueue.remove(0).command;
-            }
+            commands.add(command.command);
+            count++;
         }
-        return command;
+        return count;
     }
 
     /** Remove all commands from the queue.
      */
     public void clearCommands()
     {
-        synchronized(this)
-        {
-            System.out.println("JETTISONING " + commandQueue.size() + " COMMANDS");
-            commandQueue.clear();
-        }
+        int count = 0;
+        while (dequeue() != null)
+            count++;
+        System.out.println("JETTISONING " + count + " COMMANDS");
     }
 
     /** Pop the oldest command from our list and return it.
@@ -170,15 +277,7 @@ public class TCPInputPoller extends Thread
      */
     public CommandAndIPAddress getCommandAndIPAddress()
     {
-        CommandAndIPAddress command = null;
-        synchronized(this)
-        {
-            if (commandQueue.size() > 0)
-            {
-                command = commandQueue.remove(0);
-            }
-        }
-        return command;
+        return dequeue();
     }
 
     /** Immediately stop waiting for messages, and close the SocketServer.
@@ -187,19 +286,22 @@ public class TCPInputPoller extends Thread
     {
         Log(Level.INFO, "Attempting to stop SocketServer");
         keepRunning = false;
-        // Thread will be blocked waiting for input - unblock it by closing the socket underneath it:
-        if (this.serverSocket != null)
+        // Close the listening socket straight away, so that the port is free; the selector thread closes the rest.
+        if (this.serverChannel != null)
         {
             try
             {
-                this.serverSocket.close();
+                this.serverChannel.close();
             }
             catch (IOException e)
             {
                 Log(Level.WARNING, "Something happened when closing SocketServer: " + e);
             }
-            this.serverSocket = null;
+            this.serverChannel = null;
         }
+        Selector sel = this.selector;
+        if (sel != null)
+            sel.wakeup();
     }
 
     /* (non-Javadoc)
@@ -208,81 +310,130 @@ public class TCPInputPoller extends Thread
      */
     public void run()
     {
-        this.serverSocket = null;
+        ServerSocketChannel server = null;
+        Selector sel = null;
         try
         {
             Log(Level.INFO, "Attempting to create SocketServer...");
             // If requrestedPortNumber is 0 and we have a range of ports specified, then attempt to allocate a port dynamically from that range.
             if (this.requestedPortNumber == 0 && this.portRangeMax != -1 && this.portRangeMin != -1) {
-                this.serverSocket = TCPUtils.getSocketInRange(this.portRangeMin, this.portRangeMax, this.choosePortRandomly);
-                if (this.serverSocket == null)
+                server = TCPUtils.getServerChannelInRange(this.portRangeMin, this.portRangeMax, this.choosePortRandomly);
+                if (server == null)
                     throw new Exception("Could not allocate port from range.");
-            } else	// Attempt to use the requested port - if it's 0, the system will allocate one dynamically.
-                this.serverSocket = new ServerSocket(this.requestedPortNumber);	// Use the specified port number
+            } else {	// Attempt to use the requested port - if it's 0, the system will allocate one dynamically.
+                server = ServerSocketChannel.open();
+                server.bind(new InetSocketAddress(this.requestedPortNumber));	// Use the specified port number
+            }
+            server.configureBlocking(false);
+            sel = Selector.open();
+            server.register(sel, SelectionKey.OP_ACCEPT);
         }
         catch (Exception e)
         {
             SysLog(Level.SEVERE, "Failed to create SocketServer: " + e);
+            closeQuietly(server);
+            closeQuietly(sel);
             this.failedToCreate = true;
             return;
         }
+        this.selector = sel;
+        this.serverChannel = server;
 
-        SysLog(Level.INFO, "Listening for messages on port " + this.serverSocket.getLocalPort());
+        SysLog(Level.INFO, "Listening for messages on port " + server.socket().getLocalPort());
 
-        while (keepRunning)
+        try
         {
-            Socket socket = null;
-            try
-            {
-                Log(Level.INFO, "Waiting for incoming message...");
-                socket = this.serverSocket.accept();
-                if (socket != null)
-                    Log(Level.INFO, "Connected to: " + socket.getLocalAddress() + "(local), " + socket.getRemoteSocketAddress() + "(remote)");
-                else
-                    Log(Level.WARNING, "Accept() returns a null socket!?");
-            }
-            catch (SocketException e)
+            while (keepRunning)
             {
-                SysLog(Level.INFO, "Socket exception - usually caused by ServerSocket being closed under our feet (normal for stopping polling): " + e);
-            }
-            catch (IOException e)
-            {
-                SysLog(Level.SEVERE, "Failed to accept socket request: " + e);
+                sel.select();
+                Iterator<SelectionKey> keys = sel.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid())
+                        continue;
+                    if (key.isAcceptable())
+                    {
+                        accept((ServerSocketChannel) key.channel(), sel);
+                        continue;
+                    }
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isReadable())
+                        connection.read();
+                    if (key.isValid() && key.isWritable())
+                        connection.writeReplies();
+                }
             }
+        }
+        catch (ClosedSelectorException e)
+        {
+            // Closed under our feet; nothing more to do.
+        }
+        catch (IOException e)
+        {
+            SysLog(Level.SEVERE, "Selector failed: " + e);
+        }
 
-            if (socket != null)
-            {
-                this.connection_count++;
-                Runnable connectionHandler = new TCPConnectionHandler(socket, this, this.logname + ":S#" + this.connection_count);
-                new Thread(connectionHandler).start();
-            }
+        Log(Level.INFO, "Closing server socket and connections...");
+        try
+        {
+            for (SelectionKey key : sel.keys())
+                closeQuietly(key.channel());
         }
+        catch (ClosedSelectorException e)
+        {
+            // Already closed.
+        }
+        closeQuietly(server);
+        closeQuietly(sel);
+        this.selector = null;
+        this.serverChannel = null;
+        Log(Level.INFO, "...closed okay.");
+    }
 
-        if (this.serverSocket != null)
+    private void accept(ServerSocketChannel server, Selector sel)
+    {
+        SocketChannel channel = null;
+        try
         {
-            try
-            {
-                Log(Level.INFO, "Closing server socket...");
-                this.serverSocket.close();
-                Log(Level.INFO, "...closed okay.");
-            }
-            catch (IOException e)
-            {
-                Log(Level.SEVERE, "Something went wrong closing server socket: " + e);
-            }
+            channel = server.accept();
+            if (channel == null)
+                return;	// Someone else got there first - nothing to do.
+            channel.configureBlocking(false);
+            this.connection_count++;
+            Connection connection = new Connection(channel, this.logname + ":S#" + this.connection_count);
+            connection.key = channel.register(sel, SelectionKey.OP_READ, connection);
+            Log(Level.INFO, "Connected to: " + channel.getLocalAddress() + "(local), " + connection.remote + "(remote)");
+        }
+        catch (IOException e)
+        {
+            SysLog(Level.SEVERE, "Failed to accept socket request: " + e);
+            closeQuietly(channel);
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable)
+    {
+        if (closeable == null)
+            return;
+        try
+        {
+            closeable.close();
+        }
+        catch (Exception e)
+        {
+            // Nothing useful to do.
         }
     }
 
     public void commandReceived(String command, String ipOriginator, DataOutputStream dos)
     {
-        synchronized(this)
+        if (onCommand(command, ipOriginator, dos))
         {
-            if (onCommand(command, ipOriginator, dos))
-            {
-                // Add this command to our list - the calling thread will
-                // retrieve it via getCommand().
-                commandQueue.add(new CommandAndIPAddress(command, ipOriginator));
-            }
+            // Add this command to our list - the calling thread will
+            // retrieve it via getCommand().
+            enqueue(new CommandAndIPAddress(command, ipOriginator));
         }
     }
 
@@ -311,9 +462,10 @@ public class TCPInputPoller extends Thread
      */
     public int getPort()
     {
-        if (this.serverSocket == null)
+        ServerSocketChannel server = this.serverChannel;
+        if (server == null)
             return -1;
-        return this.serverSocket.getLocalPort();	// Will return -1 if not bound.
+        return server.socket().getLocalPort();	// Will return -1 if not bound.
     }
 
     /** Get the port number which is actually being used by the SocketServer<br>
@@ -342,19 +494,35 @@ public class TCPInputPoller extends Thread
         return getPort();
     }
 
-    /** Class which handles the socket connection, getting messages from it and forwarding them on to the TCPInputPoller.
+    /** One accepted connection: splits what arrives into commands, and sends back whatever they reply.
+     * Only touched by the selector thread.
      */
-    public class TCPConnectionHandler extends Thread
+    private class Connection extends OutputStream
     {
-        private Socket socket;
-        private TCPInputPoller poller;
-        private String logname;
+        private final SocketChannel channel;
+        private final String logname;
+        private final SocketAddress remote;
+        // Looked up once; the literal address, so that nothing ever waits on a reverse DNS lookup.
+        private final String originator;
+        private final DataOutputStream dos;
+        private SelectionKey key;
+        // The command received so far, up to but not including its newline.
+        private byte[] line = new byte[256];
+        private int lineLength = 0;
+        // Replies not yet written to the socket.
+        private byte[] replies = new byte[256];
+        private int repliesLength = 0;
+        private int repliesSent = 0;
+        // No more commands are read; close once the replies have gone.
+        private boolean closing = false;
 
-        public TCPConnectionHandler(Socket socket, TCPInputPoller poller, String logname)
+        Connection(SocketChannel channel, String logname) throws IOException
         {
-            this.socket = socket;
-            this.poller = poller;
+            this.channel = channel;
             this.logname = logname;
+            this.remote = channel.getRemoteAddress();
+            this.originator = (this.remote instanceof InetSocketAddress) ? ((InetSocketAddress) this.remote).getAddress().getHostAddress() : "";
+            this.dos = new DataOutputStream(this);
         }
 
         private void Log(Level level, String message)
@@ -362,50 +530,144 @@ public class TCPInputPoller extends Thread
             TCPUtils.Log(level, "->" + this.logname + " " + message);
         }
 
-        public void run()
+        void read()
         {
-            final int MAX_STR_LEN = 10000000;
+            ByteBuffer buf = TCPInputPoller.this.readBuffer;
             try
             {
-                Log(Level.INFO, "About to try reading inputstream...");
-                BufferedReader br = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-                StringBuffer sb = new StringBuffer();
-                int intC;
-                while ((intC = br.read()) != -1)
+                while (!this.closing)
                 {
-                    char c = (char) intC;
-                    if (c == '\n')
-                    {
-                        String command = sb.toString();
-                        Log(Level.FINE, "Received this: " + command);
-                        InetAddress address = this.socket.getInetAddress();
-                        Log(Level.INFO, "Read line from " + this.socket.getRemoteSocketAddress() + "(remote), " + address.getHostName() + "(hostname) " + address.getHostAddress() + "(hostaddress)");
-                        String originator = address.getHostName();
-                        DataOutputStream dos = new DataOutputStream(this.socket.getOutputStream());
-                        poller.commandReceived(command, originator, dos);
-                        if (singleRequestReply) {
-                            // Stop handling the connection after one interaction.
-                            this.socket.close();
-                            return;
-                        }
-                        sb.setLength(0);
-                    }
-                    else
+                    buf.clear();
+                    int n = this.channel.read(buf);
+                    if (n < 0)
                     {
-                        sb.append(c);
-                    }
-                    if (sb.length() >= MAX_STR_LEN) {
-                        DataOutputStream dos = new DataOutputStream(this.socket.getOutputStream());
-                        poller.onError("MALMOERROR Input too long", dos);
-                        Log(Level.WARNING, "Input too long (greater than " + MAX_STR_LEN + ") - discarding.");
-                        break; // discard anything else we received
+                        Log(Level.INFO, "Connection closed by " + this.remote);
+                        close();
+                        return;
                     }
+                    if (n == 0)
+                        return;
+                    buf.flip();
+                    split(buf);
                 }
             }
             catch (IOException e)
             {
                 Log(Level.SEVERE, "Socket stream error: " + e);
+                abort();
             }
         }
+
+        /** Pass on each complete line in buf, and keep any incomplete one for next time. */
+        private void split(ByteBuffer buf)
+        {
+            while (buf.hasRemaining() && !this.closing)
+            {
+                int start = buf.position();
+                int end = start;
+                int limit = buf.limit();
+                while (end < limit && buf.get(end) != '\n')
+                    end++;
+                int count = end - start;
+                if (this.lineLength + count >= MAX_STR_LEN)
+                {
+                    TCPInputPoller.this.onError("MALMOERROR Input too long", this.dos);
+                    Log(Level.WARNING, "Input too long (greater than " + MAX_STR_LEN + ") - discarding.");
+                    close(); // discard anything else we received
+                    return;
+                }
+                if (this.lineLength + count > this.line.length)
+                    this.line = Arrays.copyOf(this.line, Math.max(this.line.length * 2, this.lineLength + count));
+                buf.get(this.line, this.lineLength, count);
+                this.lineLength += count;
+                if (end == limit)
+                    return;	// No newline yet.
+                buf.get();	// Skip the newline.
+                String command = new String(this.line, 0, this.lineLength, StandardCharsets.UTF_8);
+                this.lineLength = 0;
+                Log(Level.FINE, "Received this: " + command);
+                TCPInputPoller.this.commandReceived(command, this.originator, this.dos);
+                if (singleRequestReply)
+                {
+                    // Stop handling the connection after one interaction.
+                    close();
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void write(int b)
+        {
+            ensureRoom(1);
+            this.replies[this.repliesLength++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len)
+        {
+            ensureRoom(len);
+            System.arraycopy(b, off, this.replies, this.repliesLength, len);
+            this.repliesLength += len;
+        }
+
+        private void ensureRoom(int len)
+        {
+            if (this.repliesLength + len > this.replies.length)
+                this.replies = Arrays.copyOf(this.replies, Math.max(this.replies.length * 2, this.repliesLength + len));
+        }
+
+        @Override
+        public void flush()
+        {
+            writeReplies();
+        }
+
+        /** Write as much of the buffered replies as the socket will take without blocking. */
+        void writeReplies()
+        {
+            try
+            {
+                if (this.repliesSent < this.repliesLength)
+                    this.repliesSent += this.channel.write(ByteBuffer.wrap(this.replies, this.repliesSent, this.repliesLength - this.repliesSent));
+            }
+            catch (IOException e)
+            {
+                Log(Level.SEVERE, "Failed to write reply: " + e);
+                abort();
+                return;
+            }
+            boolean done = this.repliesSent == this.repliesLength;
+            if (done)
+            {
+                this.repliesSent = 0;
+                this.repliesLength = 0;
+            }
+            if (this.key != null && this.key.isValid())
+            {
+                int ops = done ? (this.closing ? 0 : SelectionKey.OP_READ) : SelectionKey.OP_WRITE;
+                if (this.key.interestOps() != ops)
+                    this.key.interestOps(ops);
+            }
+            if (done && this.closing)
+                abort();
+        }
+
+        /** Stop reading, and close once any buffered replies have been sent. */
+        @Override
+        public void close()
+        {
+            this.closing = true;
+            writeReplies();
+        }
+
+        /** Close now, whatever is still to be sent. */
+        private void abort()
+        {
+            this.closing = true;
+            if (this.key != null)
+                this.key.cancel();
+            closeQuietly(this.channel);
+        }
     }
 }
@@ -1,5 +1,6 @@
 package io.singularitynet.utils;
 
+import org.json.JSONObject;
 import org.lwjgl.BufferUtils;
 
 import java.io.IOException;
@@ -7,19 +8,72 @@ import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
+/**
+ * Length-prefixed messages to an agent over TCP.
+ * <p>
+ * By default every send blocks the caller until the bytes are written or the socket times out.
+ * A channel created with a high watermark is non-blocking instead: each message is queued and
+ * written out by completion handlers, and the caller gets {@link SendResult#QUEUED} straight
+ * away - or {@link SendResult#DROPPED} if more than the high watermark is still waiting to go,
+ * so that an agent which has stopped reading can't hold up the thread sending to it.
+ */
 public class TCPSocketChannel
 {
+    /** Bytes a non-blocking channel may have waiting before it drops messages; -Dvereya.tcp.highWatermark overrides. */
+    public static final long DEFAULT_HIGH_WATERMARK = Long.getLong("vereya.tcp.highWatermark", 4L * 1024 * 1024);
+    // How long close() waits for a non-blocking channel's queue to drain.
+    private static final long CLOSE_DRAIN_TIMEOUT_MS = 1000;
+
+    /** Outcome of a non-blocking send. */
+    public enum SendResult
+    {
+        /** The message will be written out behind any already waiting. */
+        QUEUED,
+        /** The message was discarded: too much is already waiting, or the connection is down. */
+        DROPPED
+    }
+
     private AsynchronousSocketChannel channel;
     private String address;
     private int port;
     private String logname;
-    public Exception exception;
+    public volatile Exception exception;
+
+    // Non-blocking mode, when highWatermark > 0. The queue and counts are guarded by the lock.
+    private final long highWatermark;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition drained = this.lock.newCondition();
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private boolean writing = false;
+    private boolean closing = false;
+    private volatile long bytesPending = 0;
+    private volatile long bytesSent = 0;
+    // Counted both under the lock and outside it, when the channel is already closed.
+    private final AtomicLong messagesDropped = new AtomicLong();
+    private final CompletionHandler<Integer, ByteBuffer> writeHandler = new CompletionHandler<Integer, ByteBuffer>() {
+        @Override
+        public void completed(Integer written, ByteBuffer buffer) {
+            onWritten(written, buffer);
+        }
+
+        @Override
+        public void failed(Throwable exc, ByteBuffer buffer) {
+            onWriteFailed(exc);
+        }
+    };
 
     /**
      * Create a TCPSocketChannel that is blocking but times out connects and writes.
@@ -28,9 +82,22 @@ public class TCPSocketChannel
      * @param logname A name to use for logging.
      */
     public TCPSocketChannel(String address, int port, String logname) {
+        this(address, port, logname, 0);
+    }
+
+    /**
+     * Create a TCPSocketChannel that times out connects; if highWatermark is positive, sends are
+     * queued rather than blocking.
+     * @param address The address to connect to.
+     * @param port The port to connect to. 0 value means don't open.
+     * @param logname A name to use for logging.
+     * @param highWatermark most bytes that may wait to be written before messages are dropped; 0 to block instead.
+     */
+    public TCPSocketChannel(String address, int port, String logname, long highWatermark) {
         this.address = address;
         this.port = port;
         this.logname = logname;
+        this.highWatermark = highWatermark;
 
         try {
             connectWithTimeout();
@@ -53,6 +120,29 @@ public class TCPSocketChannel
 
     public boolean isOpen() { return channel.isOpen(); }
 
+    public boolean isNonBlocking() { return this.highWatermark > 0; }
+
+    /** Bytes queued but not yet written, in non-blocking mode. */
+    public long getBytesPending() { return this.bytesPending; }
+
+    /** Bytes written by the non-blocking writer. */
+    public long getBytesSent() { return this.bytesSent; }
+
+    /** Messages dropped by non-blocking sends. */
+    public long getMessagesDropped() { return this.messagesDropped.get(); }
+
+    /** Non-blocking mode counters, for the agent's stats query. */
+    public JSONObject getStats()
+    {
+        JSONObject jo = new JSONObject();
+        jo.put("name", this.logname);
+        jo.put("bytesPending", this.bytesPending);
+        jo.put("bytesSent", this.bytesSent);
+        jo.put("messagesDropped", this.messagesDropped.get());
+        jo.put("highWatermark", this.highWatermark);
+        return jo;
+    }
+
     private void Log(Level level, String message)
     {
         TCPUtils.Log(level, "<-" + this.logname + "(" + this.address + ":" + this.port + ") " + message);
@@ -76,6 +166,8 @@ public class TCPSocketChannel
     public void close()
     {
         Log(Level.INFO, "Attempting to close channel.");
+        if (isNonBlocking())
+            drainForClose();
         if (this.channel != null)
         {
             try
@@ -114,6 +206,168 @@ public class TCPSocketChannel
         return sendTCPBytes(bytes, retries);
     }
 
+    /**
+     * Queue a string, with its length header, without waiting for it to be written. On a
+     * blocking channel this sends it as {@link #sendTCPString(String)} does.
+     *
+     * @param message string to be sent over TCP
+     * @return QUEUED, or DROPPED if it won't be sent.
+     */
+    public SendResult offerTCPString(String message)
+    {
+        Log(Level.FINE, "About to queue: " + message);
+        return offerTCPBytes(message.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Queue bytes, with a length header, without waiting for them to be written. On a blocking
+     * channel this sends them as {@link #sendTCPBytes(byte[])} does.
+     *
+     * @param bytes the bytes to send
+     * @return QUEUED, or DROPPED if they won't be sent.
+     */
+    public SendResult offerTCPBytes(byte[] bytes)
+    {
+        return offerTCPBytes(bytes, 0, bytes.length);
+    }
+
+    /**
+     * As {@link #offerTCPBytes(byte[])}, for length bytes of a buffer that the caller may reuse
+     * as soon as this returns.
+     */
+    public SendResult offerTCPBytes(byte[] bytes, int offset, int length)
+    {
+        if (!isNonBlocking())
+            return sendTCPBytes(offset == 0 && length == bytes.length ? bytes : Arrays.copyOfRange(bytes, offset, offset + length), 0)
+                    ? SendResult.QUEUED : SendResult.DROPPED;
+        if (this.channel == null || !this.channel.isOpen())
+        {
+            this.messagesDropped.incrementAndGet();
+            return SendResult.DROPPED;
+        }
+        ByteBuffer message = ByteBuffer.allocate(4 + length).order(ByteOrder.BIG_ENDIAN);
+        message.putInt(length);
+        message.put(bytes, offset, length);
+        message.flip();
+        ByteBuffer start = null;
+        this.lock.lock();
+        try
+        {
+            // A message bigger than the watermark still goes if nothing else is waiting.
+            if (this.closing || (this.bytesPending > 0 && this.bytesPending + message.remaining() > this.highWatermark))
+            {
+                this.messagesDropped.incrementAndGet();
+                return SendResult.DROPPED;
+            }
+            this.bytesPending += message.remaining();
+            if (this.writing)
+            {
+                this.outbound.addLast(message);
+            }
+            else
+            {
+                this.writing = true;
+                start = message;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        if (start != null)
+            startWrite(start);
+        return SendResult.QUEUED;
+    }
+
+    private void startWrite(ByteBuffer buffer)
+    {
+        try
+        {
+            this.channel.write(buffer, buffer, this.writeHandler);
+        }
+        catch (Exception e)
+        {
+            onWriteFailed(e);
+        }
+    }
+
+    /** A write has completed; carry on with what's left of the buffer, or the next message. */
+    private void onWritten(int written, ByteBuffer buffer)
+    {
+        ByteBuffer next;
+        this.lock.lock();
+        try
+        {
+            this.bytesPending -= written;
+            this.bytesSent += written;
+            if (buffer.hasRemaining())
+            {
+                next = buffer;
+            }
+            else
+            {
+                next = this.outbound.pollFirst();
+                if (next == null)
+                {
+                    this.writing = false;
+                    this.drained.signalAll();
+                }
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        if (next != null)
+            startWrite(next);
+    }
+
+    private void onWriteFailed(Throwable exc)
+    {
+        boolean closing;
+        this.lock.lock();
+        try
+        {
+            closing = this.closing;
+            this.messagesDropped.addAndGet(this.outbound.size() + 1);
+            this.outbound.clear();
+            this.bytesPending = 0;
+            this.writing = false;
+            this.drained.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        this.exception = (exc instanceof Exception) ? (Exception) exc : new IOException(exc);
+        if (!closing)
+            SysLog(Level.SEVERE, "Failed to send TCP bytes: " + exc);
+        try { channel.close(); } catch (IOException ioe) {}
+    }
+
+    /** Stop taking messages, and give whatever is queued a moment to go out. */
+    private void drainForClose()
+    {
+        this.lock.lock();
+        try
+        {
+            this.closing = true;
+            long remainingNs = TimeUnit.MILLISECONDS.toNanos(CLOSE_DRAIN_TIMEOUT_MS);
+            while (this.writing && remainingNs > 0)
+                remainingNs = this.drained.awaitNanos(remainingNs);
+            if (this.writing)
+                Log(Level.WARNING, "Closing with " + this.bytesPending + " bytes still unsent.");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+
     /**
      * Send byte buffer over TCP, including a length header.
      *
@@ -133,6 +387,8 @@ public class TCPSocketChannel
      * @return true if the message was sent successfully
      */
     public boolean sendTCPBytes(byte[] bytes, int retries) {
+        if (isNonBlocking())
+            return offerTCPBytes(bytes) == SendResult.QUEUED;
         try {
             ByteBuffer header = createHeader(bytes.length);
 
@@ -173,6 +429,13 @@ public class TCPSocketChannel
      */
     public boolean sendTCPBytes(ByteBuffer[] srcbuffers, int length)
     {
+        if (isNonBlocking())
+        {
+            byte[] bytes = new byte[length];
+            ByteBuffer dst = ByteBuffer.wrap(bytes);
+            for (ByteBuffer srcbuffer : srcbuffers) dst.put(srcbuffer);
+            return offerTCPBytes(bytes) == SendResult.QUEUED;
+        }
         boolean success = false;
         try
         {
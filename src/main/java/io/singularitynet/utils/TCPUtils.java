@@ -6,7 +6,8 @@ import org.apache.commons.lang3.time.FastDateFormat;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
 import java.util.Date;
 import java.util.Random;
 import java.util.TimeZone;
@@ -145,36 +146,48 @@ public class TCPUtils
     }
 
     /**
-     * Choose a port from the specified range - either sequentially, or at random.
+     * Choose a port from the specified range - either sequentially, or at random - and bind a
+     * ServerSocketChannel to it.
      *
      * @param minPort     minimum (inclusive) value for port.
      * @param maxPort     max (inclusive) possible port value.
      * @param random      true to allocate based on a random sample; false to allocate sequentially, starting from minPort.
-     * @return a ServerSocket.
+     * @return a bound ServerSocketChannel, in blocking mode, or null if no port in the range was free.
      */
-    public static ServerSocket getSocketInRange(int minPort, int maxPort, boolean random)
+    public static ServerSocketChannel getServerChannelInRange(int minPort, int maxPort, boolean random)
     {
-        TCPUtils.Log(Level.INFO, "Attempting to create a ServerSocket in range (" + minPort + "-" + maxPort + (random ? ") at random..." : ") sequentially..."));
-        ServerSocket s = null;
+        TCPUtils.Log(Level.INFO, "Attempting to create a ServerSocketChannel in range (" + minPort + "-" + maxPort + (random ? ") at random..." : ") sequentially..."));
         int port = minPort - 1;
         Random r = new Random(System.currentTimeMillis());
-        while (s == null && port <= maxPort)
+        while (port <= maxPort)
         {
             if (random)
                 port = minPort + r.nextInt(maxPort - minPort);
             else
                 port++;
+            ServerSocketChannel channel = null;
             try
             {
                 TCPUtils.Log(Level.INFO, "    - trying " + port + "...");
-                s = new ServerSocket(port);
+                channel = ServerSocketChannel.open();
+                channel.bind(new InetSocketAddress(port));
                 TCPUtils.Log(Level.INFO, "Succeeded!");
-                return s; // Created okay, so this port is available.
+                return channel; // Bound okay, so this port is available.
             }
             catch (IOException e)
             {
                 // Try the next port.
                 TCPUtils.Log(Level.INFO, "    - failed: " + e);
+                if (channel != null)
+                {
+                    try
+                    {
+                        channel.close();
+                    }
+                    catch (IOException ignored)
+                    {
+                    }
+                }
             }
         }
         TCPUtils.Log(Level.SEVERE, "Could find no available port!");
@@ -3,11 +3,12 @@ package io.singularitynet.utils;
 import com.mojang.blaze3d.platform.GlConst;
 import com.mojang.blaze3d.platform.GlStateManager;
 import com.mojang.blaze3d.systems.RenderSystem;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import net.minecraft.block.Block;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gl.Framebuffer;
 import net.minecraft.client.gl.ShaderProgram;
 import net.minecraft.client.gl.SimpleFramebuffer;
-import net.minecraft.client.gl.GlUniform;
 import net.minecraft.client.render.VertexFormat;
 import net.minecraft.client.render.VertexFormatElement;
 import net.minecraft.client.render.VertexFormats;
@@ -26,7 +27,9 @@ import org.lwjgl.opengl.GL30;
 import java.io.BufferedInputStream;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
@@ -52,6 +55,10 @@ import java.util.concurrent.ConcurrentMap;
    * RenderSystemDrawMixin and GlStateManagerDrawMixin run at drawElements
      time during the segmentation pass and push the pending RGB and related
      uniforms into the active annotate shader program.
+ - Colour tables: setMobColours/setMiscTextureColours build dense int[] tables
+   indexed by block raw id, EntityType raw id and GL texture id, so that the
+   per-draw colour for a block, entity or bound texture is a single array load
+   rather than a string-keyed map lookup.
  - Shader: annotate.vsh/annotate.fsh is loaded once. Uniforms entityColourR/G/B
    are set per draw to:
      * a solid RGB for entities (from map or deterministic fallback),
@@ -89,6 +96,27 @@ public class TextureHelper {
     private static Map<String, Integer> idealMobColours = null;
     // Optional mapping from texture identifiers (paths) to colours for misc elements (eg sun/moon).
     private static Map<String, Integer> miscTexturesToColours = null;
+    // Dense colour tables, rebuilt whenever the maps above change: ARGB by block raw id, by
+    // EntityType raw id, and by GL texture id (-1 where no misc colour applies).
+    private static int[] blockColourTable = null;
+    private static int[] entityColourTable = null;
+
+    // Instance segmentation: each entity is drawn in its own colour, INSTANCE_COLOUR_BASE | id,
+    // instead of its type's. Block colours stay below 0xE0 in red, so the two never collide.
+    private static final int INSTANCE_COLOUR_BASE = 0xE00000;
+    private static final int MAX_INSTANCE_ID = 0xFFFF;
+    private static volatile boolean instanceSegmentation = false;
+    // Entity network id -> instance id, kept for the whole mission so ids are stable across frames.
+    private static final Int2IntOpenHashMap instanceIds = new Int2IntOpenHashMap();
+    private static int nextInstanceId = 1;
+    // Set when the ids ran out; they are reassigned at the start of the next pass, not mid-frame.
+    private static boolean instanceIdsExhausted = false;
+    // Per instance id, the pass in which it was last added to instanceTable.
+    private static final int[] instanceSeenInPass = new int[MAX_INSTANCE_ID + 1];
+    private static int instancePass = 0;
+    // Entities drawn in the current (or last finished) segmentation pass.
+    private static final InstanceTable instanceTable = new InstanceTable();
+    private static int[] textureColourTable = null;
 
     // Placeholder sky renderer reference (no-op in this port).
     private static Object blankSkyRenderer = null;
@@ -101,8 +129,8 @@ public class TextureHelper {
     // When true, force a solid per-block-type colour for the entire block draw
     // section (all binds within BlockRenderManager.renderBlock scope).
     private static volatile boolean strictBlockDraw = false;
-    // Current block type string being rendered (eg "minecraft:stone"), set via mixin.
-    private static String currentBlockType = null;
+    // Raw registry id of the block being rendered, or -1; set via mixin.
+    private static int currentBlockRawId = -1;
     // Flag to indicate a block draw call is in progress
     private static volatile boolean drawingBlock = false;
 
@@ -118,6 +146,12 @@ public class TextureHelper {
 
     // Off-screen framebuffer used for the segmentation pass.
     private static SimpleFramebuffer segmentationFbo = null;
+    // Size of the segmentation pass relative to the main framebuffer.
+    private static volatile double segmentationRenderScale = 1.0;
+    // Set by the colour map VideoHook for frames it will capture; the pass is skipped otherwise.
+    private static volatile boolean segmentationPassRequested = false;
+    // Number of segmentation passes rendered so far, so a capture can tell whether its pass has run.
+    private static volatile long segmentationPassCount = 0;
 
     // Pending colour to apply to annotate programs when they are bound.
     private static volatile int pendingR = 0;
@@ -129,6 +163,8 @@ public class TextureHelper {
     private static final int PARTICLE_RGB = 0x0000FF;
     // Track last texture bound to help choose pending colour when a shader is set
     private static volatile Identifier lastBoundTexture = null;
+    // Misc colour of lastBoundTexture (-1 if none), resolved when it was bound.
+    private static volatile int lastBoundMiscColour = -1;
     // Map GL texture ids back to Identifiers so that bindings which only see
     // an integer (eg GlStateManager._bindTexture or setShaderTexture(int,int))
     // can still be associated with logical texture paths for logging and
@@ -138,6 +174,19 @@ public class TextureHelper {
     // Debug: 0=off, 1=magenta, 2=UV debug, 3=frag debug
     private static volatile int segmentationDebugLevel = 0;
 
+    // Atlas tiling the annotate shaders sample the block atlas with.
+    private static final int ATLAS_GRID = 32;
+    private static final int ATLAS_LOD = 8;
+    // Uniform handles and last uploaded values per annotate program, so that a draw does not
+    // look the uniforms up by name or re-upload unchanged values. Render thread only; emptied at
+    // the start of every segmentation pass so programs dropped by a resource reload go with it.
+    private static final Map<ShaderProgram, AnnotateUniforms> annotateUniforms = new IdentityHashMap<>();
+    // -Dvereya.seg.uniformCache=false looks up and uploads everything on every draw, as before.
+    private static final boolean UNIFORM_CACHE = !"false".equalsIgnoreCase(System.getProperty("vereya.seg.uniformCache"));
+    // -Dvereya.seg.benchmark=true times the segmentation draw hooks and logs the average.
+    private static final boolean SEG_BENCHMARK = Boolean.getBoolean("vereya.seg.benchmark");
+    private static final int SEG_BENCHMARK_PASSES = 300;
+
     // Saved GL state toggled during segmentation pass
     private static boolean prevBlend = false;
     private static boolean prevDepth = false;
@@ -244,6 +293,7 @@ public class TextureHelper {
     public static void setMobColours(Map<String, Integer> mobColours) {
         if (mobColours == null || mobColours.isEmpty()) {
             idealMobColours = null;
+            buildColourTables();
             return;
         }
 
@@ -294,6 +344,7 @@ public class TextureHelper {
         }
 
         idealMobColours = resolved.isEmpty() ? null : resolved;
+        buildColourTables();
     }
 
     /**
@@ -305,6 +356,39 @@ public class TextureHelper {
         } else {
             miscTexturesToColours = new HashMap<>(miscColours);
         }
+        buildColourTables();
+    }
+
+    /**
+     * Precompute the colour of every registered block and entity type, and of every
+     * registered texture that has a misc colour.
+     */
+    private static void buildColourTables() {
+        int[] blocks = new int[Registries.BLOCK.size()];
+        for (Block block : Registries.BLOCK) {
+            int raw = Registries.BLOCK.getRawId(block);
+            if (raw >= 0 && raw < blocks.length)
+                blocks[raw] = getColourForBlockType(Registries.BLOCK.getId(block).toString());
+        }
+        int[] entities = new int[Registries.ENTITY_TYPE.size()];
+        for (EntityType<?> type : Registries.ENTITY_TYPE) {
+            int raw = Registries.ENTITY_TYPE.getRawId(type);
+            if (raw >= 0 && raw < entities.length)
+                entities[raw] = computeColourForEntityType(type);
+        }
+        int[] textures = null;
+        if (miscTexturesToColours != null) {
+            int maxGlId = 0;
+            for (Integer glId : glIdToIdentifier.keySet())
+                maxGlId = Math.max(maxGlId, glId);
+            textures = new int[maxGlId + 1];
+            Arrays.fill(textures, -1);
+            for (Map.Entry<Integer, Identifier> e : glIdToIdentifier.entrySet())
+                textures[e.getKey()] = getColourForTexture(e.getValue());
+        }
+        blockColourTable = blocks;
+        entityColourTable = entities;
+        textureColourTable = textures;
     }
 
     public static void setCurrentEntity(Entity entity) {
@@ -346,16 +430,16 @@ public class TextureHelper {
         }
     }
 
-    public static void setCurrentBlockType(String blockType) {
-        currentBlockType = blockType;
+    public static void setCurrentBlock(Block block) {
+        currentBlockRawId = block != null ? Registries.BLOCK.getRawId(block) : -1;
     }
 
     public static void setDrawingBlock(boolean on) { drawingBlock = on; }
     public static boolean isDrawingBlock() { return drawingBlock; }
 
     public static void setPendingColourForCurrentBlock() {
-        if (currentBlockType != null && !currentBlockType.isEmpty()) {
-            int rgb = getColourForBlockType(currentBlockType) & 0x00FFFFFF;
+        if (currentBlockRawId >= 0) {
+            int rgb = getColourForCurrentBlock() & 0x00FFFFFF;
             pendingR = (rgb >> 16) & 0xFF;
             pendingG = (rgb >> 8) & 0xFF;
             pendingB = (rgb) & 0xFF;
@@ -370,6 +454,14 @@ public class TextureHelper {
         pendingB = (PARTICLE_RGB) & 0xFF;
     }
 
+    private static int getColourForCurrentBlock() {
+        int raw = currentBlockRawId;
+        int[] table = blockColourTable;
+        if (table != null && raw < table.length)
+            return table[raw];
+        return getColourForBlockType(Registries.BLOCK.getId(Registries.BLOCK.get(raw)).toString());
+    }
+
     private static int getColourForBlockType(String blockType) {
         if (blockType == null || blockType.isEmpty()) return 0xFF444444;
         // Derive 3 decorrelated bytes from the string hash; then clamp to mid-range (32..223)
@@ -387,13 +479,66 @@ public class TextureHelper {
 
     public static int getColourForEntity(Entity entity) {
         if (entity == null) return 0x000000;
+        if (instanceSegmentation)
+            return 0xFF000000 | INSTANCE_COLOUR_BASE | getInstanceId(entity);
+        EntityType<?> type = entity.getType();
+        int raw = Registries.ENTITY_TYPE.getRawId(type);
+        int[] table = entityColourTable;
+        if (table != null && raw >= 0 && raw < table.length)
+            return table[raw];
+        return computeColourForEntityType(type);
+    }
+
+    public static void setInstanceSegmentation(boolean on) {
+        instanceSegmentation = on;
+        instanceIds.clear();
+        nextInstanceId = 1;
+        instanceIdsExhausted = false;
+        instanceTable.clear();
+    }
+
+    public static boolean isInstanceSegmentation() {
+        return instanceSegmentation;
+    }
+
+    /** Entities drawn in the last segmentation pass, or null when not in instance mode. */
+    public static InstanceTable getInstanceTable() {
+        return instanceSegmentation ? instanceTable : null;
+    }
+
+    /**
+     * The entity's instance id, assigned the first time it is drawn, and added to this pass's
+     * instance table the first time it is seen in the pass. Once the ids have run out, entities
+     * new to the mission get 0, which has no table entry, until the next pass starts the
+     * numbering again. Render thread only.
+     */
+    private static int getInstanceId(Entity entity) {
+        int id = instanceIds.get(entity.getId());
+        if (id == 0) {
+            if (nextInstanceId > MAX_INSTANCE_ID) {
+                // Renumbering now would leave the entities already drawn in this frame with rows
+                // for ids that no longer mean them, so wait for the next pass.
+                instanceIdsExhausted = true;
+                return 0;
+            }
+            id = nextInstanceId++;
+            instanceIds.put(entity.getId(), id);
+        }
+        if (colourmapFrame && instanceSeenInPass[id] != instancePass) {
+            instanceSeenInPass[id] = instancePass;
+            instanceTable.add(id, entity);
+        }
+        return id;
+    }
+
+    private static int computeColourForEntityType(EntityType<?> type) {
         // Prefer a stable, namespaced id for the entity type (eg "minecraft:zombie")
         String key;
         try {
-            net.minecraft.util.Identifier rid = net.minecraft.registry.Registries.ENTITY_TYPE.getId(entity.getType());
-            key = (rid != null) ? rid.toString() : entity.getType().toString();
+            net.minecraft.util.Identifier rid = net.minecraft.registry.Registries.ENTITY_TYPE.getId(type);
+            key = (rid != null) ? rid.toString() : type.toString();
         } catch (Throwable t) {
-            key = entity.getType().toString();
+            key = type.toString();
         }
         if (idealMobColours != null) {
             Integer col = idealMobColours.get(key);
@@ -419,8 +564,23 @@ public class TextureHelper {
         return 0xFF000000 | (col & 0x00FFFFFF);
     }
 
+    /** Colour for a GL texture id from the precomputed table, or -1 if it has no misc colour. */
+    public static int getColourForTextureGlId(int glId) {
+        int[] table = textureColourTable;
+        if (table == null || glId < 0 || glId >= table.length) return -1;
+        return table[glId];
+    }
+
+    /** setPendingColourForMiscTexture for the last bound texture, using the colour resolved at bind time. */
+    public static boolean setPendingColourForLastBoundTexture() {
+        return setPendingColour(lastBoundMiscColour);
+    }
+
     public static boolean setPendingColourForMiscTexture(Identifier id) {
-        int col = getColourForTexture(id);
+        return setPendingColour(getColourForTexture(id));
+    }
+
+    private static boolean setPendingColour(int col) {
         if (col == -1) {
             return false;
         }
@@ -476,7 +636,7 @@ public class TextureHelper {
 
     /**
      * Fallback per-block colour derived from a block texture path when we
-     * don't have a currentBlockType. Produces a stable bright RGB from
+     * don't have a current block. Produces a stable bright RGB from
      * something like textures/block/<name>.png.
      */
     private static int getFallbackBlockColourFromTexture(Identifier id) {
@@ -552,6 +712,18 @@ public class TextureHelper {
     public static void registerTextureGlId(Identifier id, int glId) {
         if (id == null || glId <= 0) return;
         glIdToIdentifier.put(glId, id);
+        int[] table = textureColourTable;
+        if (table != null) {
+            int col = getColourForTexture(id);
+            if (glId >= table.length) {
+                if (col == -1) return;
+                int oldLength = table.length;
+                table = Arrays.copyOf(table, Math.max(glId + 1, oldLength * 2));
+                Arrays.fill(table, oldLength, table.length, -1);
+                textureColourTable = table;
+            }
+            table[glId] = col;
+        }
         // Optional debug; disabled by default to keep runs fast.
         if (segmentationDebugLevel > 1 && LOGGER.isInfoEnabled()) {
             LOGGER.trace("SegTexMap: glId={} -> id={}", glId, id.toString());
@@ -573,31 +745,36 @@ public class TextureHelper {
     public static void onTextureBoundGlId(int glId) {
         Identifier id = lookupTextureByGlId(glId);
         if (id != null) {
-            onTextureBound(id);
+            textureBound(id, getColourForTextureGlId(glId));
         } else if (segmentationDebugLevel > 0 && LOGGER.isInfoEnabled()) {
-            LOGGER.trace("SegTexBind: id=<unmapped> glId={} segFrame={} isProducing={} hasEntity={} drawingBlock={} currentBlockType={}",
+            LOGGER.trace("SegTexBind: id=<unmapped> glId={} segFrame={} isProducing={} hasEntity={} drawingBlock={} currentBlock={}",
                     glId,
                     colourmapFrame,
                     isProducingColourMap,
                     hasCurrentEntity(),
                     isDrawingBlock(),
-                    currentBlockType);
+                    currentBlockRawId);
         }
     }
 
     public static void onTextureBound(int unit, Identifier id) {
+        textureBound(id, getColourForTexture(id));
+    }
+
+    private static void textureBound(Identifier id, int misc) {
         lastBoundTexture = id;
+        lastBoundMiscColour = misc;
         // Debug: record texture binds only when segmentation debug is enabled; this
         // is very verbose and slows tests down if left on by default.
         if (segmentationDebugLevel > 0 && LOGGER.isInfoEnabled()) {
             String tex = (id != null) ? id.toString() : "<null>";
-            LOGGER.trace("SegTexBind: id={} segFrame={} isProducing={} hasEntity={} drawingBlock={} currentBlockType={}",
+            LOGGER.trace("SegTexBind: id={} segFrame={} isProducing={} hasEntity={} drawingBlock={} currentBlock={}",
                     tex,
                     colourmapFrame,
                     isProducingColourMap,
                     hasCurrentEntity(),
                     isDrawingBlock(),
-                    currentBlockType);
+                    currentBlockRawId);
         }
         // Only drive segmentation colours when a colour-map frame is active.
         if (!isProducingColourMap || !colourmapFrame) {
@@ -612,7 +789,6 @@ public class TextureHelper {
                 (id != null && id.getPath() != null && id.getPath().contains("textures/atlas/")));
         boolean isEntityTex = (id != null && id.getPath() != null && id.getPath().startsWith("textures/entity/"));
         boolean isBlockTexPath = (id != null && id.getPath() != null && id.getPath().startsWith("textures/block/"));
-        int misc = getColourForTexture(id);
         if (hasCurrentEntity() || strictEntityDraw) {
             // While rendering an entity, keep entity colour fully stable regardless of binds
             col = getColourForEntity(currentEntity) & 0x00FFFFFF;
@@ -630,9 +806,9 @@ public class TextureHelper {
             } else {
                 col = -1;
             }
-        } else if (isBlockTexPath || isAtlas || isDrawingBlock() || strictBlockDraw || (currentBlockType != null && !currentBlockType.isEmpty())) {
+        } else if (isBlockTexPath || isAtlas || isDrawingBlock() || strictBlockDraw || currentBlockRawId >= 0) {
             // For block/world draws: prefer stable per-type colour whenever we know the current block type.
-            if (isDrawingBlock() || strictBlockDraw || (currentBlockType != null && !currentBlockType.isEmpty())) {
+            if (isDrawingBlock() || strictBlockDraw || currentBlockRawId >= 0) {
                 setPendingColourForCurrentBlock();
                 col = (pendingR < 0 || pendingG < 0 || pendingB < 0) ? -1 : ((pendingR << 16) | (pendingG << 8) | pendingB);
             } else {
@@ -680,14 +856,9 @@ public class TextureHelper {
         ShaderProgram active = RenderSystem.getShader();
         if (active != null) {
             active.bind();
-            GlUniform r = active.getUniform("entityColourR");
-            GlUniform g = active.getUniform("entityColourG");
-            GlUniform b = active.getUniform("entityColourB");
-            if (r != null && g != null && b != null) {
-            
-                r.set(-1);
-                g.set(-1);
-                b.set(-1);
+            AnnotateUniforms uniforms = annotateUniformsFor(active);
+            if (uniforms.hasColour()) {
+                segUniformUploads += uniforms.setColour(-1, -1, -1);
                 LOGGER.trace("Applied block-atlas override to ACTIVE program {} -> R:-1 G:-1 B:-1", active.getName());
             }
         }
@@ -715,38 +886,35 @@ public class TextureHelper {
         int g = (rgb >> 8) & 0xFF;
         int b = (rgb) & 0xFF;
         program.bind();
-        GlUniform ur = program.getUniform("entityColourR");
-        GlUniform ug = program.getUniform("entityColourG");
-        GlUniform ub = program.getUniform("entityColourB");
-        GlUniform dbg = program.getUniform("debugMode");
-        GlUniform alpha = program.getUniform("respectAlpha");
-        GlUniform grid = program.getUniform("atlasGrid");
-        GlUniform lod = program.getUniform("atlasLod");
-        if (ur != null && ug != null && ub != null) {
-            ur.set(r);
-            ug.set(g);
-            ub.set(b);
-            ur.upload();
-            ug.upload();
-            ub.upload();
-            LOGGER.trace("Applied SOLID entity colour to PROGRAM {} -> R:{} G:{} B:{}", program.getName(), r, g, b);
-        }
-        if (dbg != null) {
-            dbg.set(segmentationDebugLevel);
-            dbg.upload();
-        }
-        if (alpha != null) {
-            alpha.set(respectOpacity ? 1 : 0);
-            alpha.upload();
-        }
-        if (grid != null) {
-            grid.set(32);
-            grid.upload();
+        uploadAnnotateUniforms(program, r, g, b);
+        LOGGER.trace("Applied SOLID entity colour to PROGRAM {} -> R:{} G:{} B:{}", program.getName(), r, g, b);
+    }
+
+    /**
+     * Upload the pending colour and the other segmentation uniforms to the currently bound
+     * program, skipping any that already hold the same value. Called by the draw hooks.
+     */
+    public static void uploadPendingUniforms(ShaderProgram program) {
+        uploadAnnotateUniforms(program, pendingR, pendingG, pendingB);
+    }
+
+    private static void uploadAnnotateUniforms(ShaderProgram program, int r, int g, int b) {
+        segUniformUploads += annotateUniformsFor(program).apply(r, g, b,
+                segmentationDebugLevel, respectOpacity ? 1 : 0, ATLAS_GRID, ATLAS_LOD);
+    }
+
+    private static AnnotateUniforms annotateUniformsFor(ShaderProgram program) {
+        if (!UNIFORM_CACHE) {
+            segUniformLookups++;
+            return new AnnotateUniforms(program, false);
         }
-        if (lod != null) {
-            lod.set(8);
-            lod.upload();
+        AnnotateUniforms uniforms = annotateUniforms.get(program);
+        if (uniforms == null) {
+            segUniformLookups++;
+            uniforms = new AnnotateUniforms(program, true);
+            annotateUniforms.put(program, uniforms);
         }
+        return uniforms;
     }
 
     /** If the last bound texture is the block atlas and we know the current block type,
@@ -756,8 +924,8 @@ public class TextureHelper {
         boolean isAtlas = SpriteAtlasTexture.BLOCK_ATLAS_TEXTURE.equals(lastBoundTexture)
                 || (lastBoundTexture.getPath() != null && lastBoundTexture.getPath().contains("textures/atlas/"));
         if (!isAtlas) return;
-        if (currentBlockType == null || currentBlockType.isEmpty()) return;
-        int rgb = getColourForBlockType(currentBlockType) & 0x00FFFFFF;
+        if (currentBlockRawId < 0) return;
+        int rgb = getColourForCurrentBlock() & 0x00FFFFFF;
         pendingR = (rgb >> 16) & 0xFF;
         pendingG = (rgb >> 8) & 0xFF;
         pendingB = (rgb) & 0xFF;
@@ -792,7 +960,7 @@ public class TextureHelper {
                         pendingG = (fb >> 8) & 0xFF;
                         pendingB = (fb) & 0xFF;
                     }
-                } else if ((SpriteAtlasTexture.BLOCK_ATLAS_TEXTURE.equals(last) || (p != null && p.contains("textures/atlas/"))) && (isDrawingBlock() || currentBlockType != null)) {
+                } else if ((SpriteAtlasTexture.BLOCK_ATLAS_TEXTURE.equals(last) || (p != null && p.contains("textures/atlas/"))) && (isDrawingBlock() || currentBlockRawId >= 0)) {
                     // Ensure blocks keep their per-type colour even if a late bind overwrote pending to -1
                     setPendingColourForCurrentBlock();
                 }
@@ -924,6 +1092,37 @@ public class TextureHelper {
         }
     }
 
+    public static void setSegmentationRenderScale(double scale) {
+        segmentationRenderScale = scale > 0 && scale <= 1 ? scale : 1.0;
+    }
+
+    /** Size the segmentation pass will render at, given the size of the main framebuffer. */
+    public static int scaleSegmentationSize(int size) {
+        return Math.max(1, (int) Math.round(size * segmentationRenderScale));
+    }
+
+    /**
+     * Ask for the segmentation pass to be rendered with the next world render.
+     *
+     * @return the current pass count; the requested pass has run once getSegmentationPassCount() exceeds it.
+     */
+    public static long requestSegmentationPass() {
+        segmentationPassRequested = true;
+        return segmentationPassCount;
+    }
+
+    /** True, once, if a segmentation pass has been requested since the last one was rendered. */
+    public static boolean takeSegmentationPassRequest() {
+        if (!segmentationPassRequested)
+            return false;
+        segmentationPassRequested = false;
+        return true;
+    }
+
+    public static long getSegmentationPassCount() {
+        return segmentationPassCount;
+    }
+
     /**
      * Deletes and clears the segmentation framebuffer owned by TextureHelper.
      * Safe to call repeatedly.
@@ -940,9 +1139,8 @@ public class TextureHelper {
     private static boolean prevCull = false;
     private static int prevDrawFb = 0;
     private static int prevReadFb = 0;
-    private static int prevDrawBuf = 0;
-    private static int prevReadBuf = 0;
     private static final int[] PREV_VIEWPORT = new int[4];
+    private static final java.nio.ByteBuffer SAMPLE_PIXEL = org.lwjgl.BufferUtils.createByteBuffer(4);
     private static int prevProgram = 0;
 
     // Debug stats: number of draw calls that used the segmentation shaders
@@ -950,9 +1148,21 @@ public class TextureHelper {
     private static int segDrawCallsRenderSystem = 0;
     private static int segDrawCallsGlState = 0;
 
+    // Uniform uploads and by-name lookups made by the draw hooks this pass.
+    private static int segUniformUploads = 0;
+    private static int segUniformLookups = 0;
+    // Benchmark totals over the last SEG_BENCHMARK_PASSES passes.
+    private static long benchHookNanos = 0;
+    private static long benchDraws = 0;
+    private static long benchUploads = 0;
+    private static long benchLookups = 0;
+    private static int benchPasses = 0;
+
     public static void resetSegDrawStats() {
         segDrawCallsRenderSystem = 0;
         segDrawCallsGlState = 0;
+        segUniformUploads = 0;
+        segUniformLookups = 0;
     }
 
     public static void recordSegDraw(boolean viaRenderSystem) {
@@ -960,27 +1170,68 @@ public class TextureHelper {
         else segDrawCallsGlState++;
     }
 
+    /** Start time for {@link #recordSegDrawHookTime}, or 0 when not benchmarking. */
+    public static long segDrawHookStart() {
+        return SEG_BENCHMARK ? System.nanoTime() : 0L;
+    }
+
+    /** Add the time since the given {@link #segDrawHookStart} to the benchmark totals. */
+    public static void recordSegDrawHookTime(long start) {
+        if (start != 0L)
+            benchHookNanos += System.nanoTime() - start;
+    }
+
+    private static void logSegBenchmark() {
+        benchDraws += segDrawCallsRenderSystem + segDrawCallsGlState;
+        benchUploads += segUniformUploads;
+        benchLookups += segUniformLookups;
+        if (++benchPasses < SEG_BENCHMARK_PASSES)
+            return;
+        LOGGER.info("TextureHelper: segmentation draw hooks over {} passes (uniformCache={}) -> {} hook calls, {} ns/call, {} uniform uploads/call, {} program lookups",
+                benchPasses, UNIFORM_CACHE, benchDraws,
+                benchDraws == 0 ? 0 : benchHookNanos / benchDraws,
+                benchDraws == 0 ? 0 : String.format("%.2f", (double) benchUploads / benchDraws),
+                benchLookups);
+        benchHookNanos = benchDraws = benchUploads = benchLookups = 0;
+        benchPasses = 0;
+    }
+
     public static void beginSegmentationPass() {
         if (segmentationFbo != null) {
             resetSegDrawStats();
+            // Programs may have been recreated since the last pass, and GL state reset under us.
+            annotateUniforms.clear();
+            // Read the debug level property once per pass rather than on every draw.
+            getSegmentationDebugLevel();
+            if (instanceSegmentation) {
+                if (instanceIdsExhausted) {
+                    // Out of ids; start again, which renumbers the entities still about.
+                    LOGGER.warn("TextureHelper: more than {} entities seen, reassigning instance ids", MAX_INSTANCE_ID);
+                    instanceIds.clear();
+                    Arrays.fill(instanceSeenInPass, 0);
+                    nextInstanceId = 1;
+                    instanceIdsExhausted = false;
+                }
+                instancePass++;
+                instanceTable.clear();
+            }
             segAtlasBinds = segEntityBinds = segOtherBinds = 0;
             segProgramSwapsUV = segProgramSwapsNoUV = 0;
             LOGGER.trace("TextureHelper: beginSegPass (debugLevel={}) FBO={} size={}x{}", segmentationDebugLevel,
                     segmentationFbo.fbo,
                     segmentationFbo.textureWidth,
                     segmentationFbo.textureHeight);
-            // Capture GL state before we mutate it
-            prevProgram = GL11.glGetInteger(GL20.GL_CURRENT_PROGRAM);
-            prevBlend = GL11.glIsEnabled(GL11.GL_BLEND);
-            prevDepth = GL11.glIsEnabled(GL11.GL_DEPTH_TEST);
-            prevScissor = GL11.glIsEnabled(GL11.GL_SCISSOR_TEST);
-            prevStencil = GL11.glIsEnabled(GL11.GL_STENCIL_TEST);
-            prevCull = GL11.glIsEnabled(GL11.GL_CULL_FACE);
-            prevDrawFb = GL11.glGetInteger(GL30.GL_DRAW_FRAMEBUFFER_BINDING);
-            prevReadFb = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
-            prevDrawBuf = GL11.glGetInteger(GL11.GL_DRAW_BUFFER);
-            prevReadBuf = GL11.glGetInteger(GL11.GL_READ_BUFFER);
-            GL11.glGetIntegerv(GL11.GL_VIEWPORT, PREV_VIEWPORT);
+            // Capture GL state before we mutate it. Bindings come from GlStateTracker; the draw
+            // and read buffers belong to the framebuffer object, so they need no saving.
+            prevProgram = GlStateTracker.getProgram();
+            prevBlend = GlStateTracker.isEnabled(GL11.GL_BLEND);
+            prevDepth = GlStateTracker.isEnabled(GL11.GL_DEPTH_TEST);
+            prevScissor = GlStateTracker.isEnabled(GL11.GL_SCISSOR_TEST);
+            prevStencil = GlStateTracker.isEnabled(GL11.GL_STENCIL_TEST);
+            prevCull = GlStateTracker.isEnabled(GL11.GL_CULL_FACE);
+            prevDrawFb = GlStateTracker.getDrawFramebuffer();
+            prevReadFb = GlStateTracker.getReadFramebuffer();
+            GlStateTracker.getIntegerv(GL11.GL_VIEWPORT, PREV_VIEWPORT);
 
             segmentationFbo.beginWrite(true);
             GlStateManager._glBindFramebuffer(GlConst.GL_DRAW_FRAMEBUFFER, segmentationFbo.fbo);
@@ -1012,22 +1263,17 @@ public class TextureHelper {
             } catch (Throwable t) {
                 LOGGER.warn("TextureHelper: manual clear failed: {}", t.toString());
             }
-            int fb = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
-            if (fb == segmentationFbo.fbo) {
-                java.nio.ByteBuffer px = org.lwjgl.BufferUtils.createByteBuffer(4);
-                GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, 1);
-                GL11.glReadPixels(0, 0, 1, 1, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, px);
-                int sample = 0;
-                for (int k = 0; k < 4; k++) sample |= (px.get(k) & 0xFF);
-                LOGGER.trace("TextureHelper: post-clear 1x1 BGRA sample_or={} (0 implies clear not applied)", sample);
-            } else {
-                LOGGER.trace("TextureHelper: post-clear read skipped; READ_FB={} not seg FBO {}", fb, segmentationFbo.fbo);
+            // The diagnostics below read back from the GPU, so only when someone is looking.
+            boolean trace = LOGGER.isTraceEnabled();
+            if (trace) {
+                int fb = GlStateTracker.getReadFramebuffer();
+                if (fb == segmentationFbo.fbo) {
+                    LOGGER.trace("TextureHelper: post-clear 1x1 BGRA sample_or={} (0 implies clear not applied)", sampleSegmentationPixel());
+                } else {
+                    LOGGER.trace("TextureHelper: post-clear read skipped; READ_FB={} not seg FBO {}", fb, segmentationFbo.fbo);
+                }
+                LOGGER.trace("TextureHelper: beginSegPass before state -> BLEND={} DEPTH={} SCISSOR={} STENCIL={}", prevBlend, prevDepth, prevScissor, prevStencil);
             }
-            prevBlend = GL11.glIsEnabled(GL11.GL_BLEND);
-            prevDepth = GL11.glIsEnabled(GL11.GL_DEPTH_TEST);
-            prevScissor = GL11.glIsEnabled(GL11.GL_SCISSOR_TEST);
-            prevStencil = GL11.glIsEnabled(GL11.GL_STENCIL_TEST);
-            LOGGER.trace("TextureHelper: beginSegPass before state -> BLEND={} DEPTH={} SCISSOR={} STENCIL={}", prevBlend, prevDepth, prevScissor, prevStencil);
             GL11.glDisable(GL11.GL_BLEND);
             GL11.glDisable(GL11.GL_SCISSOR_TEST);
             GL11.glDisable(GL11.GL_STENCIL_TEST);
@@ -1036,53 +1282,64 @@ public class TextureHelper {
             if (segmentationDebugLevel != 0) {
                 GL11.glDisable(GL11.GL_DEPTH_TEST);
             }
-            boolean blendAfter = GL11.glIsEnabled(GL11.GL_BLEND);
-            boolean depthAfter = GL11.glIsEnabled(GL11.GL_DEPTH_TEST);
-            boolean scissorAfter = GL11.glIsEnabled(GL11.GL_SCISSOR_TEST);
-            boolean stencilAfter = GL11.glIsEnabled(GL11.GL_STENCIL_TEST);
-            boolean cullAfter = GL11.glIsEnabled(GL11.GL_CULL_FACE);
-            LOGGER.trace("TextureHelper: beginSegPass after state -> BLEND={} DEPTH={} SCISSOR={} STENCIL={} CULL={}", blendAfter, depthAfter, scissorAfter, stencilAfter, cullAfter);
-            int drawFb = GL11.glGetInteger(GL30.GL_DRAW_FRAMEBUFFER_BINDING);
-            int readFb = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
-            int drawBuf = GL11.glGetInteger(GL11.GL_DRAW_BUFFER);
-            int readBuf = GL11.glGetInteger(GL11.GL_READ_BUFFER);
-            boolean rd = GL11.glIsEnabled(GL30.GL_RASTERIZER_DISCARD);
-            LOGGER.trace("TextureHelper: beginSegPass -> DRAW_FB={} READ_FB={} DRAW_BUF={} READ_BUF={} RASTERIZER_DISCARD={}", drawFb, readFb, drawBuf, readBuf, rd);
+            if (trace) {
+                boolean blendAfter = GlStateTracker.isEnabled(GL11.GL_BLEND);
+                boolean depthAfter = GlStateTracker.isEnabled(GL11.GL_DEPTH_TEST);
+                boolean scissorAfter = GlStateTracker.isEnabled(GL11.GL_SCISSOR_TEST);
+                boolean stencilAfter = GlStateTracker.isEnabled(GL11.GL_STENCIL_TEST);
+                boolean cullAfter = GlStateTracker.isEnabled(GL11.GL_CULL_FACE);
+                LOGGER.trace("TextureHelper: beginSegPass after state -> BLEND={} DEPTH={} SCISSOR={} STENCIL={} CULL={}", blendAfter, depthAfter, scissorAfter, stencilAfter, cullAfter);
+                logFramebufferState("beginSegPass");
+            }
         }
     }
 
+    /** OR of the BGRA bytes of the segmentation target's first pixel; zero means black. Stalls. */
+    private static int sampleSegmentationPixel() {
+        GlStateManager._pixelStore(GL11.GL_PACK_ALIGNMENT, 1);
+        GL11.glReadPixels(0, 0, 1, 1, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, SAMPLE_PIXEL);
+        GlStateManager._pixelStore(GL11.GL_PACK_ALIGNMENT, 4);
+        int sample = 0;
+        for (int k = 0; k < 4; k++) sample |= (SAMPLE_PIXEL.get(k) & 0xFF);
+        return sample;
+    }
+
+    private static void logFramebufferState(String where) {
+        int drawBuf = GlStateTracker.getInteger(GL11.GL_DRAW_BUFFER);
+        int readBuf = GlStateTracker.getInteger(GL11.GL_READ_BUFFER);
+        boolean rd = GlStateTracker.isEnabled(GL30.GL_RASTERIZER_DISCARD);
+        LOGGER.trace("TextureHelper: {} -> DRAW_FB={} READ_FB={} DRAW_BUF={} READ_BUF={} RASTERIZER_DISCARD={}", where,
+                GlStateTracker.getDrawFramebuffer(), GlStateTracker.getReadFramebuffer(), drawBuf, readBuf, rd);
+    }
+
     public static void endSegmentationPass() {
         if (segmentationFbo != null) {
-            GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, segmentationFbo.fbo);
-            GL11.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0);
-            GL11.glPixelStorei(GL11.GL_PACK_ALIGNMENT, 1);
-            java.nio.ByteBuffer px = org.lwjgl.BufferUtils.createByteBuffer(4);
-            GL11.glReadPixels(0, 0, 1, 1, GL12.GL_BGRA, GL11.GL_UNSIGNED_BYTE, px);
-            int sample = 0;
-            for (int k = 0; k < 4; k++) sample |= (px.get(k) & 0xFF);
-            LOGGER.trace("TextureHelper: endSegPass 1x1 BGRA sample_or={} (0 implies black)", sample);
+            boolean trace = LOGGER.isTraceEnabled();
+            if (trace) {
+                GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, segmentationFbo.fbo);
+                GL11.glReadBuffer(GL30.GL_COLOR_ATTACHMENT0);
+                LOGGER.trace("TextureHelper: endSegPass 1x1 BGRA sample_or={} (0 implies black)", sampleSegmentationPixel());
+            }
             LOGGER.trace("TextureHelper: seg frame binds -> atlas={} entity={} other={}, program swaps -> withUV={} withoutUV={} ", segAtlasBinds, segEntityBinds, segOtherBinds, segProgramSwapsUV, segProgramSwapsNoUV);
-            LOGGER.trace("TextureHelper: seg frame draw calls -> RenderSystem.drawElements={} GlStateManager._drawElements={}", segDrawCallsRenderSystem, segDrawCallsGlState);
+            LOGGER.trace("TextureHelper: seg frame draw calls -> RenderSystem.drawElements={} GlStateManager._drawElements={} uniform uploads={} lookups={}",
+                    segDrawCallsRenderSystem, segDrawCallsGlState, segUniformUploads, segUniformLookups);
+            if (SEG_BENCHMARK)
+                logSegBenchmark();
             segmentationFbo.endWrite();
-            GL20.glUseProgram(prevProgram);
+            segmentationPassCount++;
+            GlStateManager._glUseProgram(prevProgram);
             if (prevBlend) GL11.glEnable(GL11.GL_BLEND); else GL11.glDisable(GL11.GL_BLEND);
             if (prevScissor) GL11.glEnable(GL11.GL_SCISSOR_TEST); else GL11.glDisable(GL11.GL_SCISSOR_TEST);
             if (prevStencil) GL11.glEnable(GL11.GL_STENCIL_TEST); else GL11.glDisable(GL11.GL_STENCIL_TEST);
             if (prevDepth) GL11.glEnable(GL11.GL_DEPTH_TEST); else GL11.glDisable(GL11.GL_DEPTH_TEST);
             if (prevCull) GL11.glEnable(GL11.GL_CULL_FACE); else GL11.glDisable(GL11.GL_CULL_FACE);
-            // Restore framebuffer bindings, draw/read buffers and viewport
+            // Restore framebuffer bindings and viewport
             GlStateManager._glBindFramebuffer(GlConst.GL_DRAW_FRAMEBUFFER, prevDrawFb);
             GlStateManager._glBindFramebuffer(GlConst.GL_READ_FRAMEBUFFER, prevReadFb);
-            GL11.glDrawBuffer(prevDrawBuf);
-            GL11.glReadBuffer(prevReadBuf);
             GL11.glViewport(PREV_VIEWPORT[0], PREV_VIEWPORT[1], PREV_VIEWPORT[2], PREV_VIEWPORT[3]);
             GL11.glDisable(GL30.GL_RASTERIZER_DISCARD);
-            int drawFb = GL11.glGetInteger(GL30.GL_DRAW_FRAMEBUFFER_BINDING);
-            int readFb = GL11.glGetInteger(GL30.GL_READ_FRAMEBUFFER_BINDING);
-            int drawBuf = GL11.glGetInteger(GL11.GL_DRAW_BUFFER);
-            int readBuf = GL11.glGetInteger(GL11.GL_READ_BUFFER);
-            boolean rd = GL11.glIsEnabled(GL30.GL_RASTERIZER_DISCARD);
-            LOGGER.trace("TextureHelper: endSegPass -> DRAW_FB={} READ_FB={} DRAW_BUF={} READ_BUF={} RASTERIZER_DISCARD={}", drawFb, readFb, drawBuf, readBuf, rd);
+            if (trace)
+                logFramebufferState("endSegPass");
         }
     }
 
@@ -1097,12 +1354,16 @@ public class TextureHelper {
      */
     public static void resetSegmentationState() {
         currentEntity = null;
-        currentBlockType = null;
+        currentBlockRawId = -1;
         drawingBlock = false;
         pendingR = pendingG = pendingB = 0;
         lastBoundTexture = null;
+        lastBoundMiscColour = -1;
         segAtlasBinds = segEntityBinds = segOtherBinds = 0;
         segProgramSwapsUV = segProgramSwapsNoUV = 0;
         renderingParticles = false;
+        segmentationPassRequested = false;
+        segmentationRenderScale = 1.0;
+        setInstanceSegmentation(false);
     }
 }
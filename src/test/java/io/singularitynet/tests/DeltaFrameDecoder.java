@@ -0,0 +1,72 @@
+package io.singularitynet.tests;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reference decoder for tile delta frames (encoding="delta"). Keeps the last frame it decoded,
+ * so use one instance per video stream and feed it every frame in order.
+ * See io.singularitynet.Client.TileDeltaEncoder for the layout.
+ */
+public final class DeltaFrameDecoder {
+    private static final int HEADER_SIZE = 20;
+
+    private byte[] reference;
+    private long referenceSeq = -1;
+    private int width;
+    private int height;
+    private int channels;
+
+    /** Rebuild the full frame from a delta against the previous one; returns a fresh array. */
+    public synchronized byte[] decode(byte[] body, int width, int height, int channels) {
+        ByteBuffer bb = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        if (bb.remaining() < HEADER_SIZE) throw new IllegalArgumentException("delta frame too small");
+        long seq = bb.getLong();
+        long againstSeq = bb.getLong();
+        int tileSize = bb.getShort() & 0xFFFF;
+        bb.getShort(); // reserved
+        if (tileSize == 0) throw new IllegalArgumentException("invalid tile size");
+
+        byte[] out;
+        if (againstSeq < 0) {
+            out = new byte[width * height * channels];
+        } else {
+            if (this.reference == null || againstSeq != this.referenceSeq
+                    || width != this.width || height != this.height || channels != this.channels)
+                throw new IllegalStateException("frame " + seq + " is a delta against frame " + againstSeq
+                        + " but the last frame decoded was " + this.referenceSeq);
+            out = this.reference.clone();
+        }
+
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tileCount = tilesX * ((height + tileSize - 1) / tileSize);
+        int bitmapStart = bb.position();
+        int pos = bitmapStart + (tileCount + 7) / 8;
+        int stride = width * channels;
+        int present = 0;
+        for (int tile = 0; tile < tileCount; tile++) {
+            if ((body[bitmapStart + (tile >>> 3)] & (1 << (tile & 7))) == 0)
+                continue;
+            present++;
+            int x0 = (tile % tilesX) * tileSize;
+            int y0 = (tile / tilesX) * tileSize;
+            int rowBytes = Math.min(tileSize, width - x0) * channels;
+            int rows = Math.min(tileSize, height - y0);
+            for (int r = 0, off = y0 * stride + x0 * channels; r < rows; r++, off += stride) {
+                System.arraycopy(body, pos, out, off, rowBytes);
+                pos += rowBytes;
+            }
+        }
+        if (againstSeq < 0 && present != tileCount)
+            throw new IllegalArgumentException("keyframe " + seq + " is missing tiles");
+        if (pos != body.length)
+            throw new IllegalArgumentException("delta frame has " + (body.length - pos) + " trailing bytes");
+
+        this.reference = out;
+        this.referenceSeq = seq;
+        this.width = width;
+        this.height = height;
+        this.channels = channels;
+        return out.clone();
+    }
+}
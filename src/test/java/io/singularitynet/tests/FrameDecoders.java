@@ -0,0 +1,79 @@
+package io.singularitynet.tests;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reference decoders for the pixel encodings the client can send.
+ * See io.singularitynet.Client.RunLengthFrameEncoder for the run-length layout.
+ */
+public final class FrameDecoders {
+    /** Encoding values of the binary header; the JSON header uses the lower-case names. */
+    public static final int ENCODING_RAW = 0;
+    public static final int ENCODING_RLE = 1;
+    public static final int ENCODING_DELTA = 2;
+
+    private FrameDecoders() {}
+
+    /** Expand a palette + run-length encoded frame back to raw pixels. */
+    public static byte[] decodeRle(byte[] encoded, int width, int height, int channels) {
+        ByteBuffer bb = ByteBuffer.wrap(encoded).order(ByteOrder.LITTLE_ENDIAN);
+        int paletteSize = bb.getInt();
+        if (paletteSize < 0 || paletteSize > 65536 || (long) paletteSize * channels > bb.remaining())
+            throw new IllegalArgumentException("invalid palette size: " + paletteSize);
+        byte[] palette = new byte[paletteSize * channels];
+        bb.get(palette);
+        int runCount = bb.getInt();
+        boolean wideIndex = paletteSize > 256;
+        byte[] out = new byte[width * height * channels];
+        int off = 0;
+        for (int r = 0; r < runCount; r++) {
+            int index = wideIndex ? (bb.getShort() & 0xFFFF) : (bb.get() & 0xFF);
+            int length = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = bb.get() & 0xFF;
+                length |= (b & 0x7F) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            if (index >= paletteSize || off + length * channels > out.length)
+                throw new IllegalArgumentException("run " + r + " out of range");
+            for (int i = 0; i < length; i++, off += channels)
+                System.arraycopy(palette, index * channels, out, off, channels);
+        }
+        if (off != out.length)
+            throw new IllegalArgumentException("runs cover " + off + " of " + out.length + " bytes");
+        return out;
+    }
+
+    /** Binary header value for a JSON header "encoding" name. */
+    public static int fromName(String name) {
+        switch (name) {
+            case "rle":
+                return ENCODING_RLE;
+            case "delta":
+                return ENCODING_DELTA;
+            default:
+                return ENCODING_RAW;
+        }
+    }
+
+    /**
+     * Raw pixels for a frame body sent with the given encoding. Delta frames need the
+     * stream's decoder; without one they are rejected.
+     */
+    public static byte[] decode(int encoding, byte[] body, int width, int height, int channels, DeltaFrameDecoder delta) {
+        switch (encoding) {
+            case ENCODING_RAW:
+                return body;
+            case ENCODING_RLE:
+                return decodeRle(body, width, height, channels);
+            case ENCODING_DELTA:
+                if (delta == null) throw new IllegalArgumentException("delta frame without a DeltaFrameDecoder");
+                return delta.decode(body, width, height, channels);
+            default:
+                throw new IllegalArgumentException("unknown frame encoding: " + encoding);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package io.singularitynet.tests;
+
+import io.singularitynet.utils.InstanceTable;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * InstanceTable growing past its initial storage, and leaving out what won't fit in a header.
+ */
+public class InstanceTableTest {
+
+    private static final int FIXED_ENTRY_SIZE = 4 + 16 + 24 + 2;
+    // As VideoFrameHeader: its 16-bit size field less the fixed fields.
+    private static final int HEADER_ROOM = 0xFFFF - 200;
+
+    private static String type(int i) {
+        // Lengths vary, and one is not ASCII, so bytes and chars differ.
+        return i % 5 == 0 ? "vereya:\u00e9" + i : "minecraft:chicken".substring(0, 10 + i % 8);
+    }
+
+    private static void fill(InstanceTable table, int count) {
+        for (int i = 0; i < count; i++)
+            table.add(i + 1, i, -i, type(i), i, i + 1, i + 2, i + 3, i + 4, i + 5);
+    }
+
+    private static ByteBuffer written(InstanceTable table, int count) {
+        ByteBuffer dst = ByteBuffer.allocate(table.getBinarySize(count)).order(ByteOrder.LITTLE_ENDIAN);
+        table.write(dst, count);
+        assertEquals(0, dst.remaining(), "getBinarySize disagrees with write");
+        dst.flip();
+        return dst;
+    }
+
+    /** Read back entries written from {@link #fill}. */
+    private static void check(ByteBuffer src, int count) {
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 1, src.getInt());
+            assertEquals(i, src.getLong());
+            assertEquals(-i, src.getLong());
+            for (int k = 0; k < 6; k++)
+                assertEquals(i + k, src.getFloat());
+            byte[] type = new byte[src.getShort() & 0xFFFF];
+            src.get(type);
+            assertEquals(type(i), new String(type, StandardCharsets.UTF_8));
+        }
+        assertEquals(0, src.remaining());
+    }
+
+    @Test
+    void growsPastItsInitialStorage() {
+        InstanceTable table = new InstanceTable();
+        fill(table, 100);
+        assertEquals(100, table.size());
+        check(written(table, 100), 100);
+        // Asking for more than there are writes them all.
+        assertEquals(table.getBinarySize(100), table.getBinarySize(1000));
+    }
+
+    @Test
+    void countFittingStopsAtAWholeEntry() {
+        InstanceTable table = new InstanceTable();
+        fill(table, 20);
+        int seven = table.getBinarySize(7);
+        assertEquals(7, table.countFitting(seven));
+        assertEquals(6, table.countFitting(seven - 1));
+        assertEquals(0, table.countFitting(FIXED_ENTRY_SIZE));
+        assertEquals(20, table.countFitting(table.getBinarySize(20)));
+        assertEquals(20, table.countFitting(Integer.MAX_VALUE));
+        check(written(table, 7), 7);
+    }
+
+    @Test
+    void tablesTooBigForTheHeaderAreCut() {
+        InstanceTable table = new InstanceTable();
+        // Comfortably more than a 64KB header holds.
+        int entries = HEADER_ROOM / FIXED_ENTRY_SIZE + 100;
+        fill(table, entries);
+        assertTrue(table.getBinarySize(entries) > HEADER_ROOM);
+        int count = table.countFitting(HEADER_ROOM);
+        assertTrue(count > 0 && count < entries);
+        assertTrue(table.getBinarySize(count) <= HEADER_ROOM);
+        assertTrue(table.getBinarySize(count + 1) > HEADER_ROOM);
+        check(written(table, count), count);
+    }
+
+    @Test
+    void copiesAreIndependentAndStorageIsReused() {
+        InstanceTable source = new InstanceTable();
+        fill(source, 40);
+        InstanceTable copy = new InstanceTable();
+        copy.copyFrom(source);
+        source.clear();
+        assertEquals(0, source.size());
+        assertEquals(0, source.getBinarySize(40));
+        assertEquals(40, copy.size());
+        check(written(copy, 40), 40);
+
+        // Refilled after a clear, with fewer entries than before.
+        fill(source, 3);
+        check(written(source, 3), 3);
+        copy.copyFrom(source);
+        assertEquals(3, copy.size());
+        check(written(copy, 3), 3);
+
+        copy.copyFrom(null);
+        assertEquals(0, copy.size());
+        assertEquals(0, copy.countFitting(0));
+    }
+}
@@ -0,0 +1,112 @@
+package io.singularitynet.tests;
+
+import io.singularitynet.utils.LatencyHistogram;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Percentiles read back from LatencyHistogram against the values recorded.
+ */
+public class LatencyHistogramTest {
+
+    private static final long US = 1000L;
+
+    @Test
+    void emptyReadsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getPercentileMs(0.5));
+        assertEquals(0.0, histogram.getMaxMs());
+    }
+
+    @Test
+    void exactBelowSixteenMicroseconds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int us = 1; us <= 10; us++)
+            histogram.recordNanos(us * US + 999);
+        assertEquals(10, histogram.getCount());
+        assertEquals(0.005, histogram.getPercentileMs(0.5));
+        assertEquals(0.009, histogram.getPercentileMs(0.9));
+        assertEquals(0.010, histogram.getPercentileMs(1.0));
+        // The smallest value still counts as the first rank.
+        assertEquals(0.001, histogram.getPercentileMs(0.0));
+    }
+
+    @Test
+    void percentilesAreWithinABucketOfTheTruth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int us = 1; us <= 100000; us++)
+            histogram.recordNanos(us * US);
+        assertEquals(100000, histogram.getCount());
+        assertEquals(100.0, histogram.getMaxMs());
+        double last = 0;
+        for (double q : new double[]{0.01, 0.1, 0.5, 0.9, 0.95, 0.99, 0.999}) {
+            double trueMs = q * 100000 / 1000.0;
+            double ms = histogram.getPercentileMs(q);
+            // Buckets report their upper bound, and are a sixteenth of a power of two wide.
+            assertTrue(ms >= trueMs && ms <= trueMs * (1 + 1.0 / 16), "p" + q + " = " + ms + ", expected " + trueMs);
+            assertTrue(ms >= last);
+            last = ms;
+        }
+        assertEquals(100.0, histogram.getPercentileMs(1.0));
+    }
+
+    @Test
+    void percentilesNeverExceedTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        // 1000us shares a bucket up to 1023us.
+        histogram.recordNanos(1000 * US);
+        assertEquals(1.0, histogram.getPercentileMs(0.5));
+        assertEquals(1.0, histogram.getPercentileMs(1.0));
+    }
+
+    @Test
+    void outliersLandInTheLastBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(5 * US);
+        long huge = (1L << 50) * US;
+        histogram.recordNanos(huge);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0.005, histogram.getPercentileMs(0.5));
+        assertEquals(huge / US / 1000.0, histogram.getPercentileMs(1.0));
+        assertEquals(huge / US / 1000.0, histogram.getMaxMs());
+    }
+
+    @Test
+    void negativesAreIgnoredAndResetForgets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.recordNanos(-1);
+        assertEquals(0, histogram.getCount());
+        histogram.recordNanos(500);
+        histogram.recordNanos(20 * US);
+        assertEquals(2, histogram.getCount());
+        assertEquals(0.0, histogram.getPercentileMs(0.5));
+        histogram.reset();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0.0, histogram.getPercentileMs(0.99));
+        assertEquals(0.0, histogram.getMaxMs());
+    }
+
+    @Test
+    void concurrentRecordingLosesNothing() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            long us = (t + 1) * 100L;
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10000; i++)
+                    histogram.recordNanos(us * US);
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(40000, histogram.getCount());
+        assertEquals(0.4, histogram.getMaxMs());
+        assertEquals(0.4, histogram.getPercentileMs(1.0));
+        double p25 = histogram.getPercentileMs(0.25);
+        assertTrue(p25 >= 0.1 && p25 < 0.1 * (1 + 1.0 / 16), "p25 = " + p25);
+    }
+}
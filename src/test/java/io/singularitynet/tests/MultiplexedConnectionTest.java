@@ -0,0 +1,363 @@
+package io.singularitynet.tests;
+
+import io.singularitynet.utils.MultiplexedConnection;
+import io.singularitynet.utils.TCPInputPoller;
+import io.singularitynet.utils.TCPSocketChannel;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * MultiplexedConnection against an agent on a loopback socket, which reads the fragments
+ * itself rather than through an agent library.
+ */
+public class MultiplexedConnectionTest {
+
+    private static final int TIMEOUT_MS = 10000;
+
+    /** One fragment as the agent sees it. */
+    record Fragment(int channel, int flags, byte[] data) {
+        boolean isEnd() {
+            return (this.flags & MultiplexedConnection.FLAG_END) != 0;
+        }
+
+        String text() {
+            return new String(this.data, StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * The agent's end: a server socket with a small receive buffer, so that a client which gets
+     * ahead of it soon has to wait.
+     */
+    static class Agent implements AutoCloseable {
+        private final ServerSocket server;
+        private Socket socket;
+        private DataInputStream in;
+        private DataOutputStream out;
+
+        Agent() throws IOException {
+            this.server = new ServerSocket();
+            this.server.setReceiveBufferSize(64 * 1024);
+            this.server.bind(new InetSocketAddress("127.0.0.1", 0));
+            this.server.setSoTimeout(TIMEOUT_MS);
+        }
+
+        int port() {
+            return this.server.getLocalPort();
+        }
+
+        void accept() throws IOException {
+            this.socket = this.server.accept();
+            this.socket.setSoTimeout(TIMEOUT_MS);
+            this.in = new DataInputStream(new BufferedInputStream(this.socket.getInputStream()));
+            this.out = new DataOutputStream(this.socket.getOutputStream());
+        }
+
+        Fragment next() throws IOException {
+            int channel = this.in.readUnsignedByte();
+            int flags = this.in.readUnsignedByte();
+            assertEquals(0, this.in.readShort());
+            byte[] data = new byte[this.in.readInt()];
+            this.in.readFully(data);
+            return new Fragment(channel, flags, data);
+        }
+
+        /** The next fragment, which must be a whole control message. */
+        String nextControl() throws IOException {
+            Fragment fragment = next();
+            assertEquals(MultiplexedConnection.CHANNEL_CONTROL, fragment.channel());
+            assertEquals(MultiplexedConnection.FLAG_END, fragment.flags());
+            return fragment.text();
+        }
+
+        /** Fragments up to and including the end of a message on channel. */
+        List<Fragment> until(int channel) throws IOException {
+            List<Fragment> fragments = new ArrayList<>();
+            Fragment fragment;
+            do {
+                fragment = next();
+                fragments.add(fragment);
+            } while (fragment.channel() != channel || !fragment.isEnd());
+            return fragments;
+        }
+
+        void send(int channel, int flags, String text) throws IOException {
+            byte[] data = text.getBytes(StandardCharsets.UTF_8);
+            this.out.writeByte(channel);
+            this.out.writeByte(flags);
+            this.out.writeShort(0);
+            this.out.writeInt(data.length);
+            this.out.write(data);
+            this.out.flush();
+        }
+
+        void disconnect() throws IOException {
+            this.socket.close();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.socket != null)
+                this.socket.close();
+            this.server.close();
+        }
+    }
+
+    private static MultiplexedConnection connect(Agent agent) throws IOException {
+        MultiplexedConnection mux = new MultiplexedConnection("127.0.0.1", agent.port(), "test", "experiment", 1);
+        agent.accept();
+        assertTrue(mux.isConnected());
+        String hello = agent.nextControl();
+        assertTrue(hello.contains("\"hello\":" + MultiplexedConnection.VERSION), hello);
+        assertTrue(hello.contains("\"experimentId\":\"experiment\""), hello);
+        assertTrue(hello.contains("\"role\":1"), hello);
+        return mux;
+    }
+
+    private static byte[] pattern(int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++)
+            bytes[i] = (byte) (i * 31 + 7);
+        return bytes;
+    }
+
+    /** Wait for something another thread will make true. */
+    private static void await(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    void channelsAreAnnounced() throws IOException {
+        try (Agent agent = new Agent()) {
+            MultiplexedConnection mux = connect(agent);
+            try {
+                MultiplexedConnection.Channel obs = mux.openChannel("obs", MultiplexedConnection.PRIORITY_OBSERVATIONS, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+                MultiplexedConnection.Channel rew = mux.openChannel("rew", MultiplexedConnection.PRIORITY_REWARDS, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+                assertEquals(MultiplexedConnection.CHANNEL_COMMANDS + 1, obs.getId());
+                assertEquals(MultiplexedConnection.CHANNEL_COMMANDS + 2, rew.getId());
+                String open = agent.nextControl();
+                assertTrue(open.contains("\"open\":" + obs.getId()) && open.contains("\"name\":\"obs\""), open);
+                open = agent.nextControl();
+                assertTrue(open.contains("\"open\":" + rew.getId()) && open.contains("\"name\":\"rew\""), open);
+
+                // No length prefix: the fragment is the message.
+                assertEquals(TCPSocketChannel.SendResult.QUEUED, obs.offerTCPString("{\"x\":1}"));
+                Fragment fragment = agent.next();
+                assertEquals(obs.getId(), fragment.channel());
+                assertEquals(MultiplexedConnection.FLAG_END, fragment.flags());
+                assertEquals("{\"x\":1}", fragment.text());
+            } finally {
+                mux.close();
+            }
+        }
+    }
+
+    @Test
+    void largeMessagesAreFragmented() throws Exception {
+        try (Agent agent = new Agent()) {
+            MultiplexedConnection mux = connect(agent);
+            try {
+                // Blocking: the send returns once the last fragment is written.
+                MultiplexedConnection.Channel video = mux.openChannel("vid", MultiplexedConnection.PRIORITY_VIDEO, 0);
+                agent.nextControl();
+                byte[] frame = pattern(3 * MultiplexedConnection.FRAGMENT_SIZE + 1000);
+                CompletableFuture<Boolean> sent = CompletableFuture.supplyAsync(() -> video.sendTCPBytes(frame, 0));
+
+                List<Fragment> fragments = agent.until(video.getId());
+                assertTrue(sent.get());
+                assertEquals(4, fragments.size());
+                byte[] received = new byte[0];
+                for (int i = 0; i < fragments.size(); i++) {
+                    Fragment fragment = fragments.get(i);
+                    assertEquals(video.getId(), fragment.channel());
+                    assertEquals(i == 3 ? MultiplexedConnection.FLAG_END : 0, fragment.flags());
+                    assertEquals(i == 3 ? 1000 : MultiplexedConnection.FRAGMENT_SIZE, fragment.data().length);
+                    byte[] joined = java.util.Arrays.copyOf(received, received.length + fragment.data().length);
+                    System.arraycopy(fragment.data(), 0, joined, received.length, fragment.data().length);
+                    received = joined;
+                }
+                assertArrayEquals(frame, received);
+                assertEquals(frame.length, video.getBytesSent());
+                assertEquals(0, video.getBytesPending());
+            } finally {
+                mux.close();
+            }
+        }
+    }
+
+    @Test
+    void urgentChannelsOvertakeVideo() throws IOException {
+        try (Agent agent = new Agent()) {
+            MultiplexedConnection mux = connect(agent);
+            try {
+                MultiplexedConnection.Channel video = mux.openChannel("vid", MultiplexedConnection.PRIORITY_VIDEO, 64L << 20);
+                MultiplexedConnection.Channel rew = mux.openChannel("rew", MultiplexedConnection.PRIORITY_REWARDS, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+                agent.nextControl();
+                agent.nextControl();
+                // Far more than the socket buffers hold, so most of it is still queued when the reward comes.
+                byte[] frame = pattern(8 << 20);
+                assertEquals(TCPSocketChannel.SendResult.QUEUED, video.offerTCPBytes(frame));
+                assertEquals(TCPSocketChannel.SendResult.QUEUED, rew.offerTCPString("reward"));
+
+                List<Fragment> fragments = agent.until(rew.getId());
+                Fragment reward = fragments.get(fragments.size() - 1);
+                assertEquals("reward", reward.text());
+                int videoFragments = fragments.size() - 1;
+                assertTrue(videoFragments < frame.length / MultiplexedConnection.FRAGMENT_SIZE / 2,
+                        "reward waited behind " + videoFragments + " video fragments");
+                for (Fragment fragment : fragments.subList(0, videoFragments))
+                    assertFalse(fragment.isEnd());
+                // The frame then carries on where it left off.
+                List<Fragment> rest = agent.until(video.getId());
+                assertEquals(frame.length / MultiplexedConnection.FRAGMENT_SIZE, videoFragments + rest.size());
+            } finally {
+                mux.close();
+            }
+        }
+    }
+
+    @Test
+    void equalPrioritiesTakeTurns() throws IOException {
+        try (Agent agent = new Agent()) {
+            MultiplexedConnection mux = connect(agent);
+            try {
+                MultiplexedConnection.Channel a = mux.openChannel("vid-a", MultiplexedConnection.PRIORITY_VIDEO, 64L << 20);
+                MultiplexedConnection.Channel b = mux.openChannel("vid-b", MultiplexedConnection.PRIORITY_VIDEO, 64L << 20);
+                agent.nextControl();
+                agent.nextControl();
+                assertEquals(TCPSocketChannel.SendResult.QUEUED, a.offerTCPBytes(pattern(4 << 20)));
+                assertEquals(TCPSocketChannel.SendResult.QUEUED, b.offerTCPBytes(pattern(4 << 20)));
+
+                // Once b has anything queued, the two alternate, a fragment each, until one runs out.
+                List<Fragment> fragments = agent.until(b.getId());
+                int first = 0;
+                while (fragments.get(first).channel() != b.getId())
+                    first++;
+                assertTrue(first < fragments.size() / 2, "b started after " + first + " fragments of a");
+                int turns = 0;
+                for (int i = first + 1; i < fragments.size(); i++) {
+                    Fragment fragment = fragments.get(i);
+                    if (fragments.get(i - 1).isEnd())
+                        break;
+                    assertTrue(fragment.channel() != fragments.get(i - 1).channel(), "no turn at fragment " + i);
+                    turns++;
+                }
+                assertTrue(turns > 10, "only " + turns + " turns");
+            } finally {
+                mux.close();
+            }
+        }
+    }
+
+    @Test
+    void commandsReachThePoller() throws Exception {
+        try (Agent agent = new Agent()) {
+            MultiplexedConnection mux = connect(agent);
+            try {
+                TCPInputPoller poller = new TCPInputPoller(0, "test");
+                mux.setCommandPoller(poller);
+                // One message in two fragments, with something for another channel between them.
+                agent.send(MultiplexedConnection.CHANNEL_COMMANDS, 0, "move 1\nju");
+                agent.send(7, MultiplexedConnection.FLAG_END, "ignored");
+                agent.send(MultiplexedConnection.CHANNEL_COMMANDS, MultiplexedConnection.FLAG_END, "mp 1\n\nturn -0.5");
+                await(() -> poller.getQueueDepth() == 3);
+                assertEquals("move 1", poller.getCommand());
+                assertEquals("jump 1", poller.getCommand());
+                TCPInputPoller.CommandAndIPAddress turn = poller.getCommandAndIPAddress();
+                assertEquals("turn -0.5", turn.command);
+                assertEquals("127.0.0.1", turn.ipAddress);
+                assertTrue(mux.isConnected());
+            } finally {
+                mux.close();
+            }
+        }
+    }
+
+    @Test
+    void closingAChannelMidMessageAbortsOnlyThatMessage() throws Exception {
+        try (Agent agent = new Agent()) {
+            MultiplexedConnection mux = connect(agent);
+            try {
+                MultiplexedConnection.Channel video = mux.openChannel("vid", MultiplexedConnection.PRIORITY_VIDEO, 0);
+                MultiplexedConnection.Channel rew = mux.openChannel("rew", MultiplexedConnection.PRIORITY_REWARDS, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+                agent.nextControl();
+                agent.nextControl();
+                byte[] frame = pattern(8 << 20);
+                CompletableFuture<Boolean> sent = CompletableFuture.supplyAsync(() -> video.sendTCPBytes(frame, 0));
+                // Started, and stuck behind an agent that isn't reading.
+                await(() -> video.getBytesSent() > 0);
+                video.close();
+                assertFalse(sent.get());
+                assertEquals(1, video.getMessagesDropped());
+
+                List<Fragment> fragments = agent.until(video.getId());
+                Fragment last = fragments.get(fragments.size() - 1);
+                assertEquals(MultiplexedConnection.FLAG_END | MultiplexedConnection.FLAG_ABORT, last.flags());
+                assertEquals(0, last.data().length);
+                assertTrue(fragments.size() - 1 < frame.length / MultiplexedConnection.FRAGMENT_SIZE);
+                await(() -> video.getBytesPending() == 0);
+
+                // The connection carries on for the other channels.
+                assertTrue(mux.isConnected());
+                assertEquals(TCPSocketChannel.SendResult.QUEUED, rew.offerTCPString("after"));
+                assertEquals("after", agent.until(rew.getId()).get(0).text());
+                assertEquals(TCPSocketChannel.SendResult.DROPPED, video.offerTCPString("closed"));
+            } finally {
+                mux.close();
+            }
+        }
+    }
+
+    @Test
+    void reconnectsAndAnnouncesChannelsAgain() throws Exception {
+        try (Agent agent = new Agent()) {
+            MultiplexedConnection mux = connect(agent);
+            try {
+                MultiplexedConnection.Channel obs = mux.openChannel("obs", MultiplexedConnection.PRIORITY_OBSERVATIONS, TCPSocketChannel.DEFAULT_HIGH_WATERMARK);
+                agent.nextControl();
+                assertEquals(1, mux.getConnectionCount());
+
+                agent.disconnect();
+                await(() -> !mux.isConnected());
+                assertFalse(obs.isValid());
+                assertEquals(TCPSocketChannel.SendResult.DROPPED, obs.offerTCPString("lost"));
+                assertEquals(null, obs.exception);
+
+                // The client comes back by itself, as if new, and keeps the channel's id.
+                agent.accept();
+                String hello = agent.nextControl();
+                assertTrue(hello.contains("\"hello\":" + MultiplexedConnection.VERSION), hello);
+                String open = agent.nextControl();
+                assertTrue(open.contains("\"open\":" + obs.getId()) && open.contains("\"name\":\"obs\""), open);
+                await(mux::isConnected);
+                assertEquals(2, mux.getConnectionCount());
+                assertEquals(TCPSocketChannel.SendResult.QUEUED, obs.offerTCPString("again"));
+                Fragment fragment = agent.next();
+                assertEquals(obs.getId(), fragment.channel());
+                assertEquals("again", fragment.text());
+            } finally {
+                mux.close();
+            }
+        }
+    }
+}
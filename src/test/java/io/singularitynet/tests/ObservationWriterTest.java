@@ -0,0 +1,320 @@
+package io.singularitynet.tests;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import io.singularitynet.utils.ObservationWriter;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Messages from ObservationWriter, read back with a small CBOR decoder of the kind an agent would use.
+ */
+public class ObservationWriterTest {
+
+    /** A CBOR tag and the item it wraps. */
+    record Tagged(long tag, Object value) {}
+
+    /** Decodes the subset of CBOR the writer produces; maps keep their order. */
+    static class CborReader {
+        private static final Object BREAK = new Object();
+        private final byte[] data;
+        private int pos;
+
+        CborReader(byte[] data, int length) {
+            this.data = Arrays.copyOf(data, length);
+        }
+
+        Object read() {
+            Object item = item();
+            assertEquals(this.data.length, this.pos, "trailing bytes");
+            return item;
+        }
+
+        private Object item() {
+            int initial = this.data[this.pos++] & 0xFF;
+            int major = initial >>> 5;
+            int info = initial & 31;
+            if (initial == 0xFF)
+                return BREAK;
+            if (major == 7) {
+                switch (info) {
+                    case 20: return false;
+                    case 21: return true;
+                    case 22: return null;
+                    case 26: return Float.intBitsToFloat((int) bigEndian(4));
+                    case 27: return Double.longBitsToDouble(bigEndian(8));
+                    default: throw new AssertionError("simple value " + info);
+                }
+            }
+            boolean indefinite = info == 31;
+            long arg = indefinite ? -1 : argument(info);
+            switch (major) {
+                case 0: return arg;
+                case 1: return -1 - arg;
+                case 2: {
+                    byte[] bytes = Arrays.copyOfRange(this.data, this.pos, this.pos + (int) arg);
+                    this.pos += (int) arg;
+                    return bytes;
+                }
+                case 3: {
+                    String s = new String(this.data, this.pos, (int) arg, StandardCharsets.UTF_8);
+                    this.pos += (int) arg;
+                    return s;
+                }
+                case 4: {
+                    List<Object> list = new ArrayList<>();
+                    for (long i = 0; indefinite || i < arg; i++) {
+                        Object e = item();
+                        if (e == BREAK)
+                            break;
+                        list.add(e);
+                    }
+                    return list;
+                }
+                case 5: {
+                    Map<Object, Object> map = new LinkedHashMap<>();
+                    for (long i = 0; indefinite || i < arg; i++) {
+                        Object k = item();
+                        if (k == BREAK)
+                            break;
+                        map.put(k, item());
+                    }
+                    return map;
+                }
+                case 6: return new Tagged(arg, item());
+                default: throw new AssertionError("major type " + major);
+            }
+        }
+
+        private long argument(int info) {
+            if (info < 24)
+                return info;
+            return bigEndian(1 << (info - 24));
+        }
+
+        private long bigEndian(int bytes) {
+            long v = 0;
+            for (int i = 0; i < bytes; i++)
+                v = (v << 8) | (this.data[this.pos++] & 0xFF);
+            return v;
+        }
+    }
+
+    private static Map<?, ?> decode(ObservationWriter out) {
+        return (Map<?, ?>) new CborReader(out.getBuffer(), out.getLength()).read();
+    }
+
+    private static Map<?, ?> observation(Map<?, ?> message) {
+        return (Map<?, ?>) message.get((long) ObservationWriter.KEY_OBSERVATION);
+    }
+
+    private static Map<?, ?> definitions(Map<?, ?> message) {
+        return (Map<?, ?>) message.get((long) ObservationWriter.KEY_DEFINITIONS);
+    }
+
+    @Test
+    void typedValuesRoundTrip() {
+        ObservationWriter out = new ObservationWriter();
+        out.begin();
+        out.key("Life").value(20.0f);
+        out.key("XPos").value(-12.5);
+        out.key("Air").value(300);
+        out.key("TimeAlive").value(-5L);
+        out.key("IsAlive").value(true);
+        out.key("Name").value("Agent");
+        out.key("Missing").value((String) null);
+        out.key("grid").floats(new float[]{1.5f, -2f, 0f}, 2);
+        out.key("ints").ints(new int[]{7, -1, 9}, 3);
+        out.key("list").beginArray().value(1).value(2).end();
+        out.key("nested").beginMap().key("inner").value(false).end();
+        out.finish();
+
+        Map<?, ?> message = decode(out);
+        Map<?, ?> definitions = definitions(message);
+        Map<Object, Object> named = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> e : observation(message).entrySet())
+            named.put(definitions.get(e.getKey()), e.getValue());
+        assertEquals(20.0f, named.get("Life"));
+        assertEquals(-12.5, named.get("XPos"));
+        assertEquals(300L, named.get("Air"));
+        assertEquals(-5L, named.get("TimeAlive"));
+        assertEquals(true, named.get("IsAlive"));
+        assertEquals("Agent", named.get("Name"));
+        assertTrue(named.containsKey("Missing"));
+        assertNull(named.get("Missing"));
+
+        Tagged floats = (Tagged) named.get("grid");
+        assertEquals(85L, floats.tag());
+        ByteBuffer fb = ByteBuffer.wrap((byte[]) floats.value()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(8, fb.remaining());
+        assertEquals(1.5f, fb.getFloat());
+        assertEquals(-2f, fb.getFloat());
+
+        Tagged ints = (Tagged) named.get("ints");
+        assertEquals(78L, ints.tag());
+        ByteBuffer ib = ByteBuffer.wrap((byte[]) ints.value()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(7, ib.getInt());
+        assertEquals(-1, ib.getInt());
+        assertEquals(9, ib.getInt());
+
+        assertEquals(List.of(1L, 2L), named.get("list"));
+        Map<?, ?> nested = (Map<?, ?>) named.get("nested");
+        assertEquals(1, nested.size());
+        Map.Entry<?, ?> inner = nested.entrySet().iterator().next();
+        assertEquals("inner", definitions.get(inner.getKey()));
+        assertEquals(false, inner.getValue());
+    }
+
+    @Test
+    void definitionsRepeatUntilCommitted() {
+        ObservationWriter out = new ObservationWriter();
+        out.begin().key("a").value(1).finish();
+        Map<?, ?> first = decode(out);
+        assertEquals(Map.of(0L, "a"), definitions(first));
+        assertEquals(Map.of(0L, 1L), observation(first));
+
+        // Not committed - the agent may not have seen it - so defined again, with the new id.
+        out.begin().key("a").value(2).key("b").value(3).finish();
+        assertEquals(Map.of(0L, "a", 1L, "b"), definitions(decode(out)));
+
+        out.commit();
+        out.begin().key("a").value(4).key("b").value(5).finish();
+        Map<?, ?> third = decode(out);
+        assertFalse(third.containsKey((long) ObservationWriter.KEY_DEFINITIONS));
+        assertEquals(Map.of(0L, 4L, 1L, 5L), observation(third));
+
+        out.commit();
+        out.begin().key("c").value(6).finish();
+        assertEquals(Map.of(2L, "c"), definitions(decode(out)));
+    }
+
+    @Test
+    void redefineRepeatsEveryDefinition() {
+        ObservationWriter out = new ObservationWriter();
+        out.begin().key("a").value(1).key("b").symbol("stone").finish();
+        out.commit();
+        // A new connection: the agent needs them all again, under the same ids.
+        out.redefine();
+        out.begin().key("b").value(2).key("c").value(3).finish();
+        assertEquals(Map.of(0L, "a", 1L, "b", 2L, "stone", 3L, "c"), definitions(decode(out)));
+        out.commit();
+        out.begin().key("a").value(4).finish();
+        assertFalse(decode(out).containsKey((long) ObservationWriter.KEY_DEFINITIONS));
+    }
+
+    @Test
+    void symbolsShareTheDictionary() {
+        ObservationWriter out = new ObservationWriter();
+        out.begin();
+        out.key("type").symbol("stone");
+        out.key("floor").symbols(new String[]{"stone", "dirt", "stone", "air", "unused"}, 4);
+        out.finish();
+        Map<?, ?> message = decode(out);
+        Map<?, ?> definitions = definitions(message);
+        Map<?, ?> observation = observation(message);
+
+        Tagged symbol = (Tagged) observation.get(0L);
+        assertEquals((long) ObservationWriter.SYMBOL_TAG, symbol.tag());
+        assertEquals("stone", definitions.get(symbol.value()));
+
+        Tagged symbols = (Tagged) observation.get(2L);
+        assertEquals((long) ObservationWriter.SYMBOLS_TAG, symbols.tag());
+        ByteBuffer ids = ByteBuffer.wrap((byte[]) symbols.value()).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(8, ids.remaining());
+        String[] names = new String[4];
+        for (int i = 0; i < 4; i++)
+            names[i] = (String) definitions.get((long) (ids.getShort() & 0xFFFF));
+        assertArrayEquals(new String[]{"stone", "dirt", "stone", "air"}, names);
+        // The two keys and three distinct names, "stone" only once.
+        assertEquals(5, definitions.size());
+    }
+
+    @Test
+    void symbolsFallBackToTextWhenTheDictionaryIsFull() {
+        ObservationWriter out = new ObservationWriter();
+        // "fill" is id 0 and the symbols 1 to 0xFFFC, leaving two of the ids up to 0xFFFE.
+        out.begin().key("fill").beginArray();
+        for (int i = 0; i < 0xFFFC; i++)
+            out.symbol("s" + i);
+        out.end().finish();
+        out.commit();
+
+        out.begin();
+        out.key("grid").symbols(new String[]{"s0", "new1", "new2"}, 3);
+        out.textKey("late").symbol("late");
+        out.textKey("full").symbol("full");
+        out.finish();
+        Map<?, ?> message = decode(out);
+        Map<?, ?> observation = observation(message);
+        // "grid" took one id and "new1" the last; "new2" then didn't fit, so the array went out
+        // as text and the id "new1" took was given back, for "late" to have.
+        assertEquals(Map.of(0xFFFDL, "grid", 0xFFFEL, "late"), definitions(message));
+        assertEquals(List.of("s0", "new1", "new2"), observation.get(0xFFFDL));
+        assertEquals(new Tagged(ObservationWriter.SYMBOL_TAG, 0xFFFEL), observation.get("late"));
+        assertEquals("full", observation.get("full"));
+    }
+
+    @Test
+    void transcodedKeysStayText() {
+        ObservationWriter out = new ObservationWriter();
+        JsonObject entity = new JsonObject();
+        entity.addProperty("yaw", 90.5);
+        entity.addProperty("life", 20);
+        JsonObject controllable = new JsonObject();
+        controllable.add("0d4c8bd4-5c4b-4b71-9d2b-e1c1d9a1c2f3", entity);
+        JsonObject json = new JsonObject();
+        json.add("Controllable", controllable);
+        JsonArray array = new JsonArray();
+        array.add("x");
+        array.add(1);
+        json.add("array", array);
+        json.addProperty("isPaused", false);
+
+        out.begin();
+        out.key("inventory").value(1);
+        out.writeJson(json);
+        out.textKey("once").value(2);
+        out.finish();
+        Map<?, ?> message = decode(out);
+        // Only the key written with key() is in the dictionary.
+        assertEquals(Map.of(0L, "inventory"), definitions(message));
+        Map<?, ?> observation = observation(message);
+        assertEquals(1L, observation.get(0L));
+        assertEquals(2L, observation.get("once"));
+        assertEquals(false, observation.get("isPaused"));
+        assertEquals(List.of("x", 1L), observation.get("array"));
+        Map<?, ?> uuids = (Map<?, ?>) observation.get("Controllable");
+        Map<?, ?> decodedEntity = (Map<?, ?>) uuids.get("0d4c8bd4-5c4b-4b71-9d2b-e1c1d9a1c2f3");
+        assertEquals(90.5, decodedEntity.get("yaw"));
+        assertEquals(20L, decodedEntity.get("life"));
+    }
+
+    @Test
+    void containerLengthsOfThirtyOneAreDefinite() {
+        // 31 is the indefinite-length marker, so a definite length of 31 needs its own byte.
+        JsonArray array = new JsonArray();
+        for (int i = 0; i < 31; i++)
+            array.add(i);
+        JsonObject json = new JsonObject();
+        json.add("a", array);
+        ObservationWriter out = new ObservationWriter();
+        out.begin().writeJson(json).finish();
+        List<?> decoded = (List<?>) observation(decode(out)).get("a");
+        assertEquals(31, decoded.size());
+        assertEquals(30L, decoded.get(30));
+    }
+}
@@ -0,0 +1,149 @@
+package io.singularitynet.tests;
+
+import io.singularitynet.Client.RunLengthFrameEncoder;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Frames through RunLengthFrameEncoder and back through the reference decoder in FrameDecoders.
+ */
+public class RunLengthFrameEncoderTest {
+
+    /** The encoded frame, or null if the encoder said to send it raw. */
+    private static byte[] encode(RunLengthFrameEncoder encoder, byte[] frame, int channels, int maxBytes) {
+        // Room for the worst case, so that only maxBytes decides.
+        ByteBuffer dst = ByteBuffer.allocate(16 + frame.length / channels * 7 + 65536 * channels);
+        int length = encoder.encode(ByteBuffer.wrap(frame), frame.length / channels, channels, dst, maxBytes);
+        if (length < 0)
+            return null;
+        assertEquals(length, dst.remaining());
+        byte[] body = new byte[length];
+        dst.get(body);
+        return body;
+    }
+
+    private static byte[] roundTrip(RunLengthFrameEncoder encoder, byte[] frame, int width, int height, int channels) {
+        byte[] body = encode(encoder, frame, channels, Integer.MAX_VALUE);
+        assertArrayEquals(frame, FrameDecoders.decodeRle(body, width, height, channels));
+        return body;
+    }
+
+    private static int runCount(byte[] body, int channels) {
+        ByteBuffer bb = ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN);
+        return bb.getInt(4 + bb.getInt(0) * channels);
+    }
+
+    /** A frame of horizontal bands, each a solid colour. */
+    private static byte[] bands(int width, int height, int channels, int bandHeight) {
+        byte[] frame = new byte[width * height * channels];
+        for (int y = 0; y < height; y++) {
+            int band = y / bandHeight;
+            for (int x = 0; x < width; x++)
+                for (int c = 0; c < channels; c++)
+                    frame[(y * width + x) * channels + c] = (byte) (band * 37 + c * 101);
+        }
+        return frame;
+    }
+
+    @Test
+    void flatRegionsRoundTrip() {
+        RunLengthFrameEncoder encoder = new RunLengthFrameEncoder();
+        for (int channels = 1; channels <= 4; channels++) {
+            byte[] frame = bands(50, 40, channels, 7);
+            byte[] body = roundTrip(encoder, frame, 50, 40, channels);
+            // A band is one run even though it spans rows.
+            assertEquals(6, runCount(body, channels), channels + " channels");
+            assertTrue(body.length < frame.length / 10);
+        }
+    }
+
+    @Test
+    void runsLongerThanOneVarintByte() {
+        RunLengthFrameEncoder encoder = new RunLengthFrameEncoder();
+        // 127 fits in one varint byte, 128 and 16384 take two and three; runs are never split.
+        int[] lengths = {127, 128, 1, 16383, 16384, 300000};
+        int total = Arrays.stream(lengths).sum();
+        byte[] frame = new byte[total * 3];
+        int off = 0;
+        for (int r = 0; r < lengths.length; r++) {
+            for (int i = 0; i < lengths[r]; i++, off += 3) {
+                frame[off] = (byte) r;
+                frame[off + 2] = (byte) (r * 50);
+            }
+        }
+        byte[] body = roundTrip(encoder, frame, total, 1, 3);
+        assertEquals(lengths.length, runCount(body, 3));
+        int varintBytes = 1 + 2 + 1 + 2 + 3 + 3;
+        assertEquals(4 + 6 * 3 + 4 + lengths.length + varintBytes, body.length);
+    }
+
+    @Test
+    void aFrameOfOneValueIsOneRun() {
+        RunLengthFrameEncoder encoder = new RunLengthFrameEncoder();
+        int width = 1920, height = 1080;
+        byte[] frame = new byte[width * height * 4];
+        for (int i = 0; i < frame.length; i += 4) {
+            frame[i] = 10;
+            frame[i + 1] = 20;
+            frame[i + 2] = 30;
+            frame[i + 3] = (byte) 255;
+        }
+        byte[] body = roundTrip(encoder, frame, width, height, 4);
+        assertEquals(1, runCount(body, 4));
+        // Palette of one, one run: index byte and a three-byte varint for 2073600.
+        assertEquals(4 + 4 + 4 + 1 + 3, body.length);
+    }
+
+    @Test
+    void aFrameWithNoRunsIsSentRaw() {
+        RunLengthFrameEncoder encoder = new RunLengthFrameEncoder();
+        int width = 64, height = 16;
+        // Neighbouring pixels always differ, from a palette of two.
+        byte[] frame = new byte[width * height];
+        for (int i = 0; i < frame.length; i++)
+            frame[i] = (byte) (i & 1);
+        assertNull(encode(encoder, frame, 1, frame.length));
+
+        // Allowed to be bigger than raw, it still decodes: one run per pixel.
+        byte[] body = roundTrip(encoder, frame, width, height, 1);
+        assertEquals(frame.length, runCount(body, 1));
+    }
+
+    @Test
+    void widePalettesUseTwoByteIndices() {
+        RunLengthFrameEncoder encoder = new RunLengthFrameEncoder();
+        int width = 300, height = 4;
+        byte[] frame = new byte[width * height * 2];
+        // 300 distinct values, each a run of four pixels.
+        for (int p = 0; p < width * height; p++) {
+            int value = p / 4;
+            frame[p * 2] = (byte) value;
+            frame[p * 2 + 1] = (byte) (value >>> 8);
+        }
+        byte[] body = roundTrip(encoder, frame, width, height, 2);
+        assertEquals(300, runCount(body, 2));
+        assertEquals(4 + 300 * 2 + 4 + 300 * (2 + 1), body.length);
+    }
+
+    @Test
+    void tooManyDistinctValuesIsSentRaw() {
+        RunLengthFrameEncoder encoder = new RunLengthFrameEncoder();
+        byte[] frame = new byte[65537 * 3];
+        for (int p = 0; p < 65537; p++) {
+            frame[p * 3] = (byte) p;
+            frame[p * 3 + 1] = (byte) (p >>> 8);
+            frame[p * 3 + 2] = (byte) (p >>> 16);
+        }
+        assertNull(encode(encoder, frame, 3, Integer.MAX_VALUE));
+        // The encoder is reusable after giving up.
+        roundTrip(encoder, bands(32, 32, 3, 8), 32, 32, 3);
+    }
+}
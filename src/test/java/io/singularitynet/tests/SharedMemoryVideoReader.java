@@ -0,0 +1,128 @@
+package io.singularitynet.tests;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Reference reader for the shared-memory video transport (ClientAgentConnection videoTransport="sharedMemory").
+ * <p>
+ * The video port only carries JSON announcements of the ring file; frames are read from the
+ * mapped file and handed on as TimestampedVideoFrame, exactly as VideoServer does for TCP.
+ * See io.singularitynet.utils.SharedMemoryFrameRing for the layout.
+ */
+public final class SharedMemoryVideoReader implements Runnable {
+    private static final java.util.logging.Logger LOG = java.util.logging.Logger.getLogger(SharedMemoryVideoReader.class.getName());
+    private static final int MAGIC = 0x53595256;
+    private static final int HEADER_SIZE = 64;
+    private static final int OFFSET_SLOT_COUNT = 8;
+    private static final int OFFSET_SLOT_SIZE = 12;
+    private static final int OFFSET_WRITE_SEQ = 16;
+    private static final int OFFSET_READ_SEQ = 24;
+    private static final int OFFSET_CLOSED = 32;
+    private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final int port;
+    private final FrameType frametype;
+    private final Consumer<TimestampedVideoFrame> handleFrame;
+    private final TCPServer tcp;
+    private final DeltaFrameDecoder delta = new DeltaFrameDecoder();
+    private final AtomicBoolean stop = new AtomicBoolean(false);
+    private volatile MappedByteBuffer pendingRing;
+    private Thread thread;
+
+    public SharedMemoryVideoReader(int port, FrameType frametype, Consumer<TimestampedVideoFrame> handleFrame) {
+        this.port = port;
+        this.frametype = frametype;
+        this.handleFrame = handleFrame;
+        this.tcp = new TCPServer(port, (tv) -> {
+            JSONObject msg = new JSONObject(new String(tv.data, StandardCharsets.UTF_8));
+            String path = msg.optString("sharedMemory", null);
+            if (path == null) return;
+            try (FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, ch.size());
+                map.order(ByteOrder.LITTLE_ENDIAN);
+                if (map.getInt(0) != MAGIC) {
+                    LOG.warning("Not a frame ring: " + path);
+                    return;
+                }
+                this.pendingRing = map;
+            } catch (IOException e) {
+                LOG.warning("Failed to map " + path + ": " + e.getMessage());
+            }
+        });
+    }
+
+    public Thread start() {
+        tcp.start("SharedMemoryAnnounce-" + port + "-" + frametype);
+        this.thread = new Thread(this, "SharedMemoryVideoReader-" + port + "-" + frametype);
+        this.thread.setDaemon(true);
+        this.thread.start();
+        return this.thread;
+    }
+
+    public void stop() {
+        stop.set(true);
+        tcp.stop();
+    }
+
+    @Override public void run() {
+        MappedByteBuffer ring = null;
+        while (!stop.get()) {
+            MappedByteBuffer next = this.pendingRing;
+            if (next != null && next != ring) {
+                ring = next; // a new ring supersedes the old one
+            }
+            if (ring == null || !readAvailable(ring)) {
+                if (ring != null && isClosed(ring)) {
+                    this.pendingRing = null; // mission over; wait for another announcement
+                    ring = null;
+                }
+                LockSupport.parkNanos(500_000L);
+            }
+        }
+    }
+
+    /** Consume every published frame; returns false if there was nothing to read. */
+    private boolean readAvailable(MappedByteBuffer ring) {
+        int slotCount = ring.getInt(OFFSET_SLOT_COUNT);
+        int slotSize = ring.getInt(OFFSET_SLOT_SIZE);
+        long readSeq = (long) LONG.getAcquire(ring, OFFSET_READ_SEQ);
+        long writeSeq = (long) LONG.getAcquire(ring, OFFSET_WRITE_SEQ);
+        if (readSeq == writeSeq) {
+            return false;
+        }
+        while (readSeq < writeSeq) {
+            int offset = HEADER_SIZE + (int) (readSeq % slotCount) * slotSize;
+            int len = ring.getInt(offset);
+            // An agent that can work on the mapped bytes in place would slice here instead of copying.
+            byte[] payload = new byte[len];
+            ring.get(offset + 4, payload);
+            readSeq++;
+            LONG.setRelease(ring, OFFSET_READ_SEQ, readSeq);
+            try {
+                handleFrame.accept(new TimestampedVideoFrame(new TimestampedByteVector(System.nanoTime(), payload), frametype, delta));
+            } catch (Throwable t) {
+                LOG.warning("SharedMemoryVideoReader callback error: " + t.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /** True once the client has marked the ring closed. */
+    private static boolean isClosed(MappedByteBuffer ring) {
+        return (int) INT.getAcquire(ring, OFFSET_CLOSED) != 0;
+    }
+}
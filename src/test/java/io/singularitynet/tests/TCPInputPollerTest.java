@@ -0,0 +1,130 @@
+package io.singularitynet.tests;
+
+import io.singularitynet.utils.TCPInputPoller;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * The command queue of TCPInputPoller, without a socket: commands are added as the
+ * connection threads would add them.
+ */
+public class TCPInputPollerTest {
+
+    private static TCPInputPoller poller(int capacity, TCPInputPoller.OverflowPolicy policy) {
+        // Never started, so it never binds the port.
+        TCPInputPoller poller = new TCPInputPoller(0, "test");
+        poller.setCapacity(capacity, policy);
+        return poller;
+    }
+
+    @Test
+    void unboundedByDefault() {
+        TCPInputPoller poller = new TCPInputPoller(0, "test");
+        for (int i = 0; i < 1000; i++)
+            poller.commandReceived("move " + i, "127.0.0.1", null);
+        assertEquals(1000, poller.getQueueDepth());
+        assertEquals(1000, poller.getHighWaterMark());
+        assertEquals(0, poller.getCommandsDropped());
+        assertEquals("move 0", poller.getCommand());
+        assertEquals(999, poller.getQueueDepth());
+    }
+
+    @Test
+    void drainToTakesEverythingOldestFirst() {
+        TCPInputPoller poller = poller(0, TCPInputPoller.OverflowPolicy.DROP_OLDEST);
+        poller.addCommand("a");
+        poller.addCommand("b");
+        poller.addCommand("c");
+        List<String> commands = new ArrayList<>();
+        commands.add("earlier");
+        assertEquals(3, poller.drainTo(commands));
+        assertEquals(List.of("earlier", "a", "b", "c"), commands);
+        assertEquals(0, poller.getQueueDepth());
+        assertEquals(0, poller.drainTo(commands));
+        assertEquals("", poller.getCommand());
+        assertEquals(3, poller.getHighWaterMark());
+    }
+
+    @Test
+    void dropOldestKeepsTheNewest() {
+        TCPInputPoller poller = poller(3, TCPInputPoller.OverflowPolicy.DROP_OLDEST);
+        for (int i = 0; i < 5; i++)
+            poller.addCommand("c" + i);
+        assertEquals(3, poller.getQueueDepth());
+        assertEquals(2, poller.getCommandsDropped());
+        assertEquals(3, poller.getHighWaterMark());
+        List<String> commands = new ArrayList<>();
+        poller.drainTo(commands);
+        assertEquals(List.of("c2", "c3", "c4"), commands);
+    }
+
+    @Test
+    void dropNewestKeepsTheOldest() {
+        TCPInputPoller poller = poller(3, TCPInputPoller.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 5; i++)
+            poller.addCommand("c" + i);
+        assertEquals(3, poller.getQueueDepth());
+        assertEquals(2, poller.getCommandsDropped());
+        List<String> commands = new ArrayList<>();
+        poller.drainTo(commands);
+        assertEquals(List.of("c0", "c1", "c2"), commands);
+        // Room again once drained.
+        poller.addCommand("c5");
+        assertEquals("c5", poller.getCommand());
+        assertEquals(2, poller.getCommandsDropped());
+    }
+
+    @Test
+    void nullPolicyMeansDropOldest() {
+        TCPInputPoller poller = poller(1, null);
+        poller.addCommand("first");
+        poller.addCommand("second");
+        assertEquals(1, poller.getCommandsDropped());
+        assertEquals("second", poller.getCommand());
+    }
+
+    @Test
+    void boundHoldsWithConcurrentProducers() throws InterruptedException {
+        for (TCPInputPoller.OverflowPolicy policy : TCPInputPoller.OverflowPolicy.values()) {
+            TCPInputPoller poller = poller(16, policy);
+            Thread[] threads = new Thread[4];
+            for (int t = 0; t < threads.length; t++) {
+                threads[t] = new Thread(() -> {
+                    for (int i = 0; i < 10000; i++)
+                        poller.addCommand("x");
+                });
+                threads[t].start();
+            }
+            for (Thread thread : threads)
+                thread.join();
+            List<String> commands = new ArrayList<>();
+            int drained = poller.drainTo(commands);
+            // Racing drops can leave fewer than the capacity, never more, and nothing is lost uncounted.
+            assertTrue(drained > 0 && drained <= 16, policy + ": " + drained);
+            assertTrue(poller.getHighWaterMark() <= 16 + threads.length, policy.toString());
+            assertEquals(40000, drained + poller.getCommandsDropped(), policy.toString());
+            assertEquals(0, poller.getQueueDepth(), policy.toString());
+        }
+    }
+
+    @Test
+    void squelchedCommandsAreNotQueued() {
+        TCPInputPoller poller = new TCPInputPoller(0, "test") {
+            @Override
+            public boolean onCommand(String command, String ipFrom, java.io.DataOutputStream dos) {
+                return !command.startsWith("ignore");
+            }
+        };
+        poller.commandReceived("ignore me", "127.0.0.1", null);
+        poller.commandReceived("jump 1", "127.0.0.1", null);
+        TCPInputPoller.CommandAndIPAddress command = poller.getCommandAndIPAddress();
+        assertEquals("jump 1", command.command);
+        assertEquals("127.0.0.1", command.ipAddress);
+        assertEquals(0, poller.getQueueDepth());
+    }
+}
@@ -0,0 +1,155 @@
+package io.singularitynet.tests;
+
+import io.singularitynet.Client.TileDeltaEncoder;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Frames through TileDeltaEncoder and back through the reference DeltaFrameDecoder an agent
+ * would use.
+ */
+public class TileDeltaEncoderTest {
+
+    private static byte[] encode(TileDeltaEncoder encoder, byte[] frame, int width, int height, int channels, long seq) {
+        ByteBuffer dst = ByteBuffer.allocate(TileDeltaEncoder.maxEncodedSize(width, height, channels));
+        int length = encoder.encode(ByteBuffer.wrap(frame), width, height, channels, seq, dst);
+        assertEquals(length, dst.remaining());
+        byte[] body = new byte[length];
+        dst.get(body);
+        return body;
+    }
+
+    /** The sequence number the frame is a delta against, or -1 for a keyframe. */
+    private static long against(byte[] body) {
+        return ByteBuffer.wrap(body).order(ByteOrder.LITTLE_ENDIAN).getLong(8);
+    }
+
+    private static int bitmapBytes(int width, int height) {
+        int tiles = ((width + TileDeltaEncoder.TILE_SIZE - 1) / TileDeltaEncoder.TILE_SIZE)
+                * ((height + TileDeltaEncoder.TILE_SIZE - 1) / TileDeltaEncoder.TILE_SIZE);
+        return (tiles + 7) / 8;
+    }
+
+    private static byte[] noise(Random random, int length) {
+        byte[] frame = new byte[length];
+        random.nextBytes(frame);
+        return frame;
+    }
+
+    @Test
+    void deltasCarryOnlyChangedTiles() {
+        // Not a multiple of the tile size either way, so the edge tiles are clipped.
+        int width = 100, height = 70, channels = 3;
+        TileDeltaEncoder encoder = new TileDeltaEncoder(100);
+        DeltaFrameDecoder decoder = new DeltaFrameDecoder();
+        Random random = new Random(1);
+        byte[] frame = noise(random, width * height * channels);
+
+        byte[] body = encode(encoder, frame, width, height, channels, 0);
+        assertEquals(-1, against(body));
+        assertEquals(TileDeltaEncoder.maxEncodedSize(width, height, channels), body.length);
+        assertArrayEquals(frame, decoder.decode(body, width, height, channels));
+        encoder.commit();
+
+        // One pixel in the second tile of the first row.
+        frame[(5 * width + 40) * channels] ^= 1;
+        body = encode(encoder, frame, width, height, channels, 1);
+        assertEquals(0, against(body));
+        assertEquals(TileDeltaEncoder.HEADER_SIZE + bitmapBytes(width, height) + 32 * 32 * channels, body.length);
+        assertArrayEquals(frame, decoder.decode(body, width, height, channels));
+        encoder.commit();
+
+        // A clipped corner tile: 4 by 6 pixels.
+        frame[((height - 1) * width + width - 1) * channels + 2] ^= 1;
+        body = encode(encoder, frame, width, height, channels, 2);
+        assertEquals(TileDeltaEncoder.HEADER_SIZE + bitmapBytes(width, height) + 4 * 6 * channels, body.length);
+        assertArrayEquals(frame, decoder.decode(body, width, height, channels));
+        encoder.commit();
+
+        body = encode(encoder, frame, width, height, channels, 3);
+        assertEquals(TileDeltaEncoder.HEADER_SIZE + bitmapBytes(width, height), body.length);
+        assertArrayEquals(frame, decoder.decode(body, width, height, channels));
+    }
+
+    @Test
+    void keyframesComeAtTheInterval() {
+        int width = 64, height = 64, channels = 1;
+        TileDeltaEncoder encoder = new TileDeltaEncoder(3);
+        DeltaFrameDecoder decoder = new DeltaFrameDecoder();
+        Random random = new Random(2);
+        byte[] frame = noise(random, width * height * channels);
+        for (int seq = 0; seq < 7; seq++) {
+            frame[random.nextInt(frame.length)]++;
+            byte[] body = encode(encoder, frame, width, height, channels, seq);
+            long expected = seq % 3 == 0 ? -1 : seq - 1;
+            assertEquals(expected, against(body), "frame " + seq);
+            assertArrayEquals(frame, decoder.decode(body, width, height, channels));
+            encoder.commit();
+        }
+
+        TileDeltaEncoder everyFrame = new TileDeltaEncoder(1);
+        for (int seq = 0; seq < 3; seq++) {
+            assertEquals(-1, against(encode(everyFrame, frame, width, height, channels, seq)));
+            everyFrame.commit();
+        }
+    }
+
+    @Test
+    void aChangeOfSizeMakesAKeyframe() {
+        TileDeltaEncoder encoder = new TileDeltaEncoder(100);
+        DeltaFrameDecoder decoder = new DeltaFrameDecoder();
+        Random random = new Random(3);
+        byte[] small = noise(random, 64 * 64 * 3);
+        decoder.decode(encode(encoder, small, 64, 64, 3, 0), 64, 64, 3);
+        encoder.commit();
+
+        byte[] wide = noise(random, 96 * 48 * 3);
+        byte[] body = encode(encoder, wide, 96, 48, 3, 1);
+        assertEquals(-1, against(body));
+        assertArrayEquals(wide, decoder.decode(body, 96, 48, 3));
+        encoder.commit();
+
+        // Same pixel count, different channels.
+        byte[] rgba = noise(random, 72 * 48 * 4);
+        body = encode(encoder, rgba, 72, 48, 4, 2);
+        assertEquals(-1, against(body));
+        assertArrayEquals(rgba, decoder.decode(body, 72, 48, 4));
+        encoder.commit();
+
+        body = encode(encoder, rgba, 72, 48, 4, 3);
+        assertEquals(2, against(body));
+        assertArrayEquals(rgba, decoder.decode(body, 72, 48, 4));
+    }
+
+    @Test
+    void onlyCommittedFramesAreReferences() {
+        int width = 64, height = 32, channels = 3;
+        TileDeltaEncoder encoder = new TileDeltaEncoder(100);
+        DeltaFrameDecoder decoder = new DeltaFrameDecoder();
+        Random random = new Random(4);
+        byte[] frame = noise(random, width * height * channels);
+        decoder.decode(encode(encoder, frame, width, height, channels, 0), width, height, channels);
+        encoder.commit();
+
+        // Frame 1 never reaches the agent, so frame 2 is against frame 0.
+        frame[0]++;
+        encode(encoder, frame, width, height, channels, 1);
+        frame[frame.length - 1]++;
+        byte[] body = encode(encoder, frame, width, height, channels, 2);
+        assertEquals(0, against(body));
+        assertArrayEquals(frame, decoder.decode(body, width, height, channels));
+        encoder.commit();
+
+        // After a reset the agent may have nothing to go on.
+        encoder.reset();
+        body = encode(encoder, frame, width, height, channels, 3);
+        assertEquals(-1, against(body));
+        assertArrayEquals(frame, new DeltaFrameDecoder().decode(body, width, height, channels));
+    }
+}
@@ -6,6 +6,10 @@ import org.json.JSONObject;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
 
 /** Parsed video/colourmap frame + metadata header. */
 public final class TimestampedVideoFrame {
@@ -15,7 +19,7 @@ public final class TimestampedVideoFrame {
     public final double timestamp; // seconds
     public final FrameType frametype;
 
-    public final byte[] _pixels; // raw bytes, BGR(A) as sent
+    public final byte[] _pixels; // raw bytes, BGR(A) as read back (decoded if the client encoded them)
 
     public final float pitch;
     public final float yaw;
@@ -27,14 +31,91 @@ public final class TimestampedVideoFrame {
     public final int iWidth;
     public final int iCh;
 
+    /** Frame sequence number and client capture time (System.nanoTime); -1 for JSON headers. */
+    public final long sequence;
+    public final long captureTimeNs;
+
+    /** Entities in an instance segmentation frame, by instance id; empty for other frames. */
+    public final List<Instance> instances;
+
+    /** One entry of the instance table, see io.singularitynet.utils.InstanceTable. */
+    public static final class Instance {
+        public final int id;
+        public final UUID uuid;
+        public final String type;
+        public final float[] box; // minX, minY, minZ, maxX, maxY, maxZ
+
+        Instance(int id, UUID uuid, String type, float[] box) {
+            this.id = id;
+            this.uuid = uuid;
+            this.type = type;
+            this.box = box;
+        }
+
+        /** The colour this instance's pixels have, as returned by getRGB. */
+        public int getRGB() {
+            return 0xE00000 | this.id;
+        }
+    }
+
     /** Optional sequential index assigned by test harness when saving frames. */
     public int debugIndex = -1;
 
     public TimestampedVideoFrame(TimestampedByteVector message, FrameType frametype) {
+        this(message, frametype, null);
+    }
+
+    /** @param delta decoder for the stream this frame belongs to; needed for encoding="delta". */
+    public TimestampedVideoFrame(TimestampedByteVector message, FrameType frametype, DeltaFrameDecoder delta) {
         this.timestamp = message.getTimestampSeconds();
         this.frametype = frametype;
         ByteBuffer bb = ByteBuffer.wrap(message.data).order(ByteOrder.BIG_ENDIAN);
         if (bb.remaining() < 4) throw new IllegalArgumentException("payload too small");
+        if (bb.order(ByteOrder.LITTLE_ENDIAN).getInt(0) == BINARY_MAGIC) {
+            // Binary header, see io.singularitynet.Client.VideoFrameHeader for the layout.
+            if (bb.remaining() < BINARY_MIN_SIZE) throw new IllegalArgumentException("binary header too small");
+            bb.getInt(); // magic
+            int version = bb.getShort() & 0xFFFF;
+            int headerSize = bb.getShort() & 0xFFFF;
+            if (version < 1 || headerSize < BINARY_MIN_SIZE || headerSize > bb.capacity())
+                throw new IllegalArgumentException("invalid binary header: version " + version + ", size " + headerSize);
+            this.sequence = bb.getLong();
+            this.captureTimeNs = bb.getLong();
+            bb.getLong(); // send time, ms since epoch
+            this.xPos = bb.getFloat();
+            this.yPos = bb.getFloat();
+            this.zPos = bb.getFloat();
+            this.yaw = bb.getFloat();
+            this.pitch = bb.getFloat();
+            this.iWidth = bb.getInt();
+            this.iHeight = bb.getInt();
+            this.iCh = bb.getInt();
+            this.calibrationMatrix = new float[16];
+            for (int i = 0; i < 16; i++) this.calibrationMatrix[i] = bb.getFloat();
+            this.modelViewMatrix = new float[16];
+            for (int i = 0; i < 16; i++) this.modelViewMatrix[i] = bb.getFloat();
+            int encoding = headerSize >= 200 ? bb.getInt() : FrameDecoders.ENCODING_RAW;
+            int instanceCount = headerSize >= 200 ? bb.getInt() : 0;
+            List<Instance> instances = new ArrayList<>(instanceCount);
+            for (int i = 0; i < instanceCount; i++) {
+                int id = bb.getInt();
+                UUID uuid = new UUID(bb.getLong(), bb.getLong());
+                float[] box = new float[6];
+                for (int k = 0; k < 6; k++) box[k] = bb.getFloat();
+                byte[] type = new byte[bb.getShort() & 0xFFFF];
+                bb.get(type);
+                instances.add(new Instance(id, uuid, new String(type, StandardCharsets.UTF_8), box));
+            }
+            this.instances = Collections.unmodifiableList(instances);
+            bb.position(headerSize);
+            byte[] body = new byte[bb.remaining()];
+            bb.get(body);
+            this._pixels = FrameDecoders.decode(encoding, body, iWidth, iHeight, iCh, delta);
+            return;
+        }
+        bb.order(ByteOrder.BIG_ENDIAN);
+        this.sequence = -1;
+        this.captureTimeNs = -1;
         int jsonLen = bb.getInt();
         if (jsonLen < 0 || jsonLen > bb.remaining()) throw new IllegalArgumentException("invalid json length: " + jsonLen);
         byte[] js = new byte[jsonLen];
@@ -53,12 +134,31 @@ public final class TimestampedVideoFrame {
         this.modelViewMatrix = toFloat16(hdr.optJSONArray("modelViewMatrix"));
         this.calibrationMatrix = toFloat16(hdr.optJSONArray("projectionMatrix"));
 
+        List<Instance> instances = new ArrayList<>();
+        JSONArray table = hdr.optJSONArray("instances");
+        if (table != null) {
+            for (int i = 0; i < table.length(); i++) {
+                JSONObject jo = table.getJSONObject(i);
+                float[] box = new float[6];
+                JSONArray jb = jo.optJSONArray("box");
+                for (int k = 0; jb != null && k < 6 && k < jb.length(); k++) box[k] = (float) jb.optDouble(k, 0.0);
+                instances.add(new Instance(jo.getInt("id"), UUID.fromString(jo.getString("uuid")), jo.optString("type", ""), box));
+            }
+        }
+        this.instances = Collections.unmodifiableList(instances);
+
         int remaining = bb.remaining();
         if (remaining < 0) remaining = 0;
-        this._pixels = new byte[remaining];
-        bb.get(this._pixels);
+        byte[] body = new byte[remaining];
+        bb.get(body);
+        int encoding = FrameDecoders.fromName(hdr.optString("encoding", "raw"));
+        this._pixels = FrameDecoders.decode(encoding, body, iWidth, iHeight, iCh, delta);
     }
 
+    /** "VRYF" read as a little-endian int; as a big-endian JSON length it would be ~1.4GB. */
+    private static final int BINARY_MAGIC = 0x46595256;
+    private static final int BINARY_MIN_SIZE = 192;
+
     private static float[] toFloat16(JSONArray arr) {
         float[] out = new float[16];
         if (arr == null) return out;
@@ -9,6 +9,7 @@ public final class VideoServer {
     private final FrameType frametype;
     private final Consumer<TimestampedVideoFrame> handleFrame;
     private final TCPServer tcp;
+    private final DeltaFrameDecoder delta = new DeltaFrameDecoder();
     private Thread thread;
 
     public VideoServer(int port, int channels, FrameType frametype, Consumer<TimestampedVideoFrame> handleFrame) {
@@ -17,7 +18,7 @@ public final class VideoServer {
         this.frametype = frametype;
         this.handleFrame = handleFrame;
         this.tcp = new TCPServer(port, (tv) -> {
-            TimestampedVideoFrame frame = new TimestampedVideoFrame(tv, frametype);
+            TimestampedVideoFrame frame = new TimestampedVideoFrame(tv, frametype, delta);
             handleFrame.accept(frame);
         });
     }